@@ -0,0 +1,26 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall clock with microsecond resolution.
+ *
+ * System.currentTimeMillis() is only read once, the elapsed time since then
+ * comes from System.nanoTime(). The result can be compared between JVMs as
+ * far as their clocks are synchronised.
+ */
+public final class AMQPClock {
+
+	private static final long BASE_MICROS = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+	private static final long BASE_NANOS = System.nanoTime();
+
+	private AMQPClock() {
+	}
+
+	/**
+	 * @return microseconds since the epoch
+	 */
+	public static long currentTimeMicros() {
+		return BASE_MICROS + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - BASE_NANOS);
+	}
+}
@@ -0,0 +1,202 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.config.ConfigTestElement;
+import org.apache.jmeter.testelement.TestStateListener;
+
+/**
+ * Base class of the config elements that talk to the broker themselves
+ * rather than through a sampler, holding the connection settings.
+ */
+public abstract class AMQPConnectionConfig extends ConfigTestElement implements TestStateListener {
+
+	private static final long serialVersionUID = 1L;
+
+	// ++ These are JMX names, and must not be changed
+	private static final String HOST = "AMQPConnectionConfig.Host";
+	private static final String PORT = "AMQPConnectionConfig.Port";
+	private static final String VIRTUAL_HOST = "AMQPConnectionConfig.VirtualHost";
+	private static final String USERNAME = "AMQPConnectionConfig.Username";
+	private static final String PASSWORD = "AMQPConnectionConfig.Password";
+	private static final String SSL = "AMQPConnectionConfig.SSL";
+	private static final String TIMEOUT = "AMQPConnectionConfig.Timeout";
+	private static final String HEARTBEAT = "AMQPConnectionConfig.Heartbeat";
+	private static final String AUTOMATIC_RECOVERY = "AMQPConnectionConfig.AutomaticRecovery";
+	private static final String NIO = "AMQPConnectionConfig.Nio";
+	private static final String NIO_THREADS = "AMQPConnectionConfig.NioThreads";
+	private static final String NIO_READ_BUFFER_SIZE = "AMQPConnectionConfig.NioReadBufferSize";
+	private static final String NIO_WRITE_BUFFER_SIZE = "AMQPConnectionConfig.NioWriteBufferSize";
+	private static final String BALANCING = "AMQPConnectionConfig.Balancing";
+
+	public String getHost() {
+		return getPropertyAsString(HOST);
+	}
+
+	public void setHost(String host) {
+		setProperty(HOST, host);
+	}
+
+	public String getPort() {
+		return getPropertyAsString(PORT);
+	}
+
+	public void setPort(String port) {
+		setProperty(PORT, port);
+	}
+
+	protected int getPortAsInt() {
+		if (getPropertyAsInt(PORT) < 1) {
+			return AMQPSampler.DEFAULT_PORT;
+		}
+		return getPropertyAsInt(PORT);
+	}
+
+	public String getVirtualHost() {
+		return getPropertyAsString(VIRTUAL_HOST);
+	}
+
+	public void setVirtualHost(String virtualHost) {
+		setProperty(VIRTUAL_HOST, virtualHost);
+	}
+
+	public String getUsername() {
+		return getPropertyAsString(USERNAME);
+	}
+
+	public void setUsername(String username) {
+		setProperty(USERNAME, username);
+	}
+
+	public String getPassword() {
+		return getPropertyAsString(PASSWORD);
+	}
+
+	public void setPassword(String password) {
+		setProperty(PASSWORD, password);
+	}
+
+	public boolean connectionSSL() {
+		return getPropertyAsBoolean(SSL);
+	}
+
+	public void setConnectionSSL(Boolean ssl) {
+		setProperty(SSL, ssl);
+	}
+
+	public String getTimeout() {
+		return getPropertyAsString(TIMEOUT, AMQPSampler.DEFAULT_TIMEOUT_STRING);
+	}
+
+	public void setTimeout(String timeout) {
+		setProperty(TIMEOUT, timeout);
+	}
+
+	protected int getTimeoutAsInt() {
+		if (getPropertyAsInt(TIMEOUT) < 1) {
+			return AMQPSampler.DEFAULT_TIMEOUT;
+		}
+		return getPropertyAsInt(TIMEOUT);
+	}
+
+	/**
+	 * @return the requested heartbeat in seconds, 0 disables heartbeats
+	 */
+	public String getHeartbeat() {
+		return getPropertyAsString(HEARTBEAT, AMQPSampler.DEFAULT_HEARTBEAT_STRING);
+	}
+
+	public void setHeartbeat(String heartbeat) {
+		setProperty(HEARTBEAT, heartbeat);
+	}
+
+	protected int getHeartbeatAsInt() {
+		if (StringUtils.isBlank(getHeartbeat()) || getPropertyAsInt(HEARTBEAT) < 0) {
+			return AMQPSampler.DEFAULT_HEARTBEAT;
+		}
+		return getPropertyAsInt(HEARTBEAT);
+	}
+
+	public boolean getAutomaticRecovery() {
+		return getPropertyAsBoolean(AUTOMATIC_RECOVERY, AMQPSampler.DEFAULT_AUTOMATIC_RECOVERY);
+	}
+
+	public void setAutomaticRecovery(Boolean recovery) {
+		setProperty(AUTOMATIC_RECOVERY, recovery);
+	}
+
+	/**
+	 * @return whether the connection uses NIO on the threads shared with the
+	 *         samplers
+	 */
+	public boolean getNio() {
+		return getPropertyAsBoolean(NIO, AMQPSampler.DEFAULT_NIO);
+	}
+
+	public void setNio(Boolean nio) {
+		setProperty(NIO, nio);
+	}
+
+	/**
+	 * @return the number of NIO threads, empty or 0 for the client default
+	 */
+	public String getNioThreads() {
+		return getPropertyAsString(NIO_THREADS);
+	}
+
+	public void setNioThreads(String threads) {
+		setProperty(NIO_THREADS, threads);
+	}
+
+	/**
+	 * @return the NIO read buffer size in bytes, empty or 0 for the client
+	 *         default
+	 */
+	public String getNioReadBufferSize() {
+		return getPropertyAsString(NIO_READ_BUFFER_SIZE);
+	}
+
+	public void setNioReadBufferSize(String size) {
+		setProperty(NIO_READ_BUFFER_SIZE, size);
+	}
+
+	/**
+	 * @return the NIO write buffer size in bytes, empty or 0 for the client
+	 *         default
+	 */
+	public String getNioWriteBufferSize() {
+		return getPropertyAsString(NIO_WRITE_BUFFER_SIZE);
+	}
+
+	public void setNioWriteBufferSize(String size) {
+		setProperty(NIO_WRITE_BUFFER_SIZE, size);
+	}
+
+	/**
+	 * @return how the connection picks one of the hosts, see
+	 *         {@link ClusterBalancer}
+	 */
+	public String getBalancing() {
+		return getPropertyAsString(BALANCING, ClusterBalancer.SHUFFLE);
+	}
+
+	public void setBalancing(String balancing) {
+		setProperty(BALANCING, balancing);
+	}
+
+	protected AMQPConnectionSettings getConnectionSettings() {
+		return new AMQPConnectionSettings(getHost(), getPortAsInt(), getVirtualHost(), getUsername(), getPassword(),
+				connectionSSL(), getTimeoutAsInt(), getHeartbeatAsInt(), getAutomaticRecovery(), getNio(),
+				getPropertyAsInt(NIO_THREADS), getPropertyAsInt(NIO_READ_BUFFER_SIZE),
+				getPropertyAsInt(NIO_WRITE_BUFFER_SIZE), getBalancing());
+	}
+
+	@Override
+	public void testStarted(String host) {
+		testStarted();
+	}
+
+	@Override
+	public void testEnded(String host) {
+		testEnded();
+	}
+}
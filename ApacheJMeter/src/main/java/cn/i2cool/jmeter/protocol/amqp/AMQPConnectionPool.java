@@ -0,0 +1,272 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+/**
+ * JVM-wide set of broker connections shared by every sampler with the same
+ * {@link AMQPConnectionSettings}.
+ *
+ * By default each sampler gets its own channel, channels are spread
+ * round-robin over at most {@code size} connections which are opened lazily.
+ * With a fixed number of channels per connection the pool instead has
+ * {@code size * channelsPerConnection} channel slots, samplers are assigned
+ * to the slots round-robin and share a slot's channel when there are more
+ * samplers than slots. The pool is reference counted and closes its
+ * connections when the last sampler releases it.
+ */
+public final class AMQPConnectionPool {
+
+	private static final Logger log = LoggerFactory.getLogger(AMQPConnectionPool.class);
+
+	private static final Map<AMQPConnectionSettings, AMQPConnectionPool> POOLS = new HashMap<>();
+
+	private final AMQPConnectionSettings settings;
+	private final ConnectionFactory factory;
+	private final AtomicReferenceArray<Connection> connections;
+	private final Object[] locks;
+	private final AtomicInteger nextConnection = new AtomicInteger();
+	private final int channelsPerConnection;
+	private final AtomicReferenceArray<Channel> channels;
+	private final Object[] channelLocks;
+	private final AtomicInteger nextChannel = new AtomicInteger();
+	private int references;
+
+	private final LongAdder connectionsOpened = new LongAdder();
+	private final LongAdder channelsOpened = new LongAdder();
+	private final LongAdder channelsClosed = new LongAdder();
+	private final LongAdder channelOpenNanos = new LongAdder();
+	private final LongAccumulator channelOpenMaxNanos = new LongAccumulator(Long::max, 0L);
+
+	private AMQPConnectionPool(AMQPConnectionSettings settings, int size, int channelsPerConnection)
+			throws NoSuchAlgorithmException, KeyManagementException {
+		this.settings = settings;
+		this.factory = settings.newConnectionFactory();
+		this.connections = new AtomicReferenceArray<>(size);
+		this.locks = new Object[size];
+		for (int i = 0; i < size; i++) {
+			locks[i] = new Object();
+		}
+		this.channelsPerConnection = Math.max(channelsPerConnection, 0);
+		int slots = size * this.channelsPerConnection;
+		this.channels = new AtomicReferenceArray<>(slots);
+		this.channelLocks = new Object[slots];
+		for (int i = 0; i < slots; i++) {
+			channelLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Get the pool for the given settings, creating it on first use. Every call
+	 * must be matched by a call to {@link #release()}.
+	 *
+	 * @param settings              where to connect
+	 * @param size                  the maximum number of connections, only
+	 *                              used when the pool is created
+	 * @param channelsPerConnection the number of shared channels on every
+	 *                              connection, 0 for a channel per sampler;
+	 *                              only used when the pool is created
+	 * @return the shared pool
+	 */
+	public static synchronized AMQPConnectionPool acquire(AMQPConnectionSettings settings, int size,
+			int channelsPerConnection) throws NoSuchAlgorithmException, KeyManagementException {
+		AMQPConnectionPool pool = POOLS.get(settings);
+		if (pool == null) {
+			pool = new AMQPConnectionPool(settings, size, channelsPerConnection);
+			POOLS.put(settings, pool);
+			log.info("Created connection pool {} with {} connections, {} channels per connection", settings, size,
+					channelsPerConnection > 0 ? channelsPerConnection : "one per sampler,");
+		}
+		pool.references++;
+		return pool;
+	}
+
+	/**
+	 * Drop one reference, the connections are closed with the last one.
+	 */
+	public void release() {
+		synchronized (AMQPConnectionPool.class) {
+			if (--references > 0) {
+				return;
+			}
+			POOLS.remove(settings);
+		}
+		log.info("Closing connection pool {}: {}", settings, getStats());
+		for (int i = 0; i < connections.length(); i++) {
+			Connection connection = connections.getAndSet(i, null);
+			try {
+				if (connection != null && connection.isOpen()) {
+					connection.close();
+				}
+			} catch (IOException e) {
+				log.error("Failed to close pooled connection", e);
+			}
+		}
+	}
+
+	/**
+	 * @return true if samplers are assigned to shared channel slots, see
+	 *         {@link #assignChannel()}
+	 */
+	public boolean hasChannelSlots() {
+		return channels.length() > 0;
+	}
+
+	/**
+	 * Assign a sampler to the next channel slot. Consecutive slots are on
+	 * different connections.
+	 */
+	public int assignChannel() {
+		return (nextChannel.getAndIncrement() & Integer.MAX_VALUE) % channels.length();
+	}
+
+	/**
+	 * Get the channel of a slot, opening it if there is none or it was
+	 * closed. The channel may be shared by several samplers and must not be
+	 * closed by them.
+	 */
+	public Channel getChannel(int slot) throws IOException {
+		Channel channel = channels.get(slot);
+		if (channel != null && channel.isOpen()) {
+			return channel;
+		}
+		synchronized (channelLocks[slot]) {
+			channel = channels.get(slot);
+			if (channel == null || !channel.isOpen()) {
+				if (channel != null) {
+					// the dead channel is replaced, it no longer counts as open
+					channelsClosed.increment();
+				}
+				channel = openChannel(getConnection(slot % connections.length()));
+				channels.set(slot, channel);
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * Open a new channel on the next connection of the pool.
+	 */
+	public Channel openChannel() throws IOException {
+		int slot = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.length();
+		return openChannel(getConnection(slot));
+	}
+
+	private Channel openChannel(Connection connection) throws IOException {
+		long start = System.nanoTime();
+		Channel channel = connection.createChannel();
+		long elapsed = System.nanoTime() - start;
+		channelOpenNanos.add(elapsed);
+		channelOpenMaxNanos.accumulate(elapsed);
+		channelsOpened.increment();
+		AMQPMetrics.channelOpened(channel, elapsed);
+		return channel;
+	}
+
+	/**
+	 * Close a channel obtained from {@link #openChannel()}, channels of the
+	 * slots are closed with their connections.
+	 */
+	public void closeChannel(Channel channel) {
+		if (channel == null) {
+			return;
+		}
+		channelsClosed.increment();
+		try {
+			if (channel.isOpen()) {
+				channel.close();
+			}
+		} catch (IOException | TimeoutException e) {
+			log.warn("Failed to close pooled channel", e);
+		}
+	}
+
+	private Connection getConnection(int slot) throws IOException {
+		Connection connection = connections.get(slot);
+		if (connection != null && connection.isOpen()) {
+			return connection;
+		}
+		if (ConnectionRecoveryMonitor.isRecovering(connection)) {
+			// keep it, a new connection would be opened by every sampler
+			throw new IOException("Connection to " + settings + " is recovering");
+		}
+		synchronized (locks[slot]) {
+			connection = connections.get(slot);
+			if (connection == null || !connection.isOpen()) {
+				connection = settings.newConnection(factory);
+				connections.set(slot, connection);
+				connectionsOpened.increment();
+				AMQPMetrics.connectionOpened(connection);
+			}
+			return connection;
+		}
+	}
+
+	public int getChannelsPerConnection() {
+		return channelsPerConnection;
+	}
+
+	public AMQPConnectionSettings getSettings() {
+		return settings;
+	}
+
+	public int getOpenConnections() {
+		int open = 0;
+		for (int i = 0; i < connections.length(); i++) {
+			Connection connection = connections.get(i);
+			if (connection != null && connection.isOpen()) {
+				open++;
+			}
+		}
+		return open;
+	}
+
+	public long getConnectionsOpened() {
+		return connectionsOpened.sum();
+	}
+
+	public long getChannelsOpened() {
+		return channelsOpened.sum();
+	}
+
+	public long getOpenChannels() {
+		return channelsOpened.sum() - channelsClosed.sum();
+	}
+
+	/**
+	 * @return mean channel open latency in microseconds
+	 */
+	public long getChannelOpenMeanMicros() {
+		long opened = channelsOpened.sum();
+		return opened == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(channelOpenNanos.sum() / opened);
+	}
+
+	/**
+	 * @return max channel open latency in microseconds
+	 */
+	public long getChannelOpenMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(channelOpenMaxNanos.get());
+	}
+
+	public String getStats() {
+		return "connections open=" + getOpenConnections() + " opened=" + getConnectionsOpened() + ", channels open="
+				+ getOpenChannels() + " opened=" + getChannelsOpened() + ", channel open mean="
+				+ getChannelOpenMeanMicros() + "us max=" + getChannelOpenMaxMicros() + "us";
+	}
+}
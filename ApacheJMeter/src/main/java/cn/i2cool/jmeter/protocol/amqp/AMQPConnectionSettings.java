@@ -0,0 +1,223 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeoutException;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+/**
+ * Immutable description of where and how to connect to a broker.
+ *
+ * Two samplers with equal settings may share connections, so this class is
+ * used as the key of {@link AMQPConnectionPool}.
+ */
+public final class AMQPConnectionSettings {
+
+	public static final int DEFAULT_HEARTBEAT = 1;
+
+	private static final Map<AMQPConnectionSettings, ConnectionFactory> FACTORIES = new HashMap<>();
+
+	private final String host;
+	private final int port;
+	private final String virtualHost;
+	private final String username;
+	private final String password;
+	private final boolean ssl;
+	private final int timeout;
+	private final int heartbeat;
+	private final boolean automaticRecovery;
+	private final boolean nio;
+	private final int nioThreads;
+	private final int readBufferSize;
+	private final int writeBufferSize;
+	private final String balancing;
+
+	/**
+	 * @param nioThreads      I/O threads of the shared NIO factory, 0 for the
+	 *                        client default
+	 * @param readBufferSize  NIO read buffer in bytes, 0 for the client default
+	 * @param writeBufferSize NIO write buffer in bytes, 0 for the client
+	 *                        default
+	 * @param balancing       how connections are placed on the hosts, see
+	 *                        {@link ClusterBalancer}
+	 */
+	public AMQPConnectionSettings(String host, int port, String virtualHost, String username, String password,
+			boolean ssl, int timeout, int heartbeat, boolean automaticRecovery, boolean nio, int nioThreads,
+			int readBufferSize, int writeBufferSize, String balancing) {
+		this.host = host;
+		this.port = port;
+		this.virtualHost = virtualHost;
+		this.username = username;
+		this.password = password;
+		this.ssl = ssl;
+		this.timeout = timeout;
+		this.heartbeat = heartbeat;
+		this.automaticRecovery = automaticRecovery;
+		this.nio = nio;
+		this.nioThreads = nioThreads;
+		this.readBufferSize = readBufferSize;
+		this.writeBufferSize = writeBufferSize;
+		this.balancing = balancing;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getVirtualHost() {
+		return virtualHost;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public boolean isSsl() {
+		return ssl;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @return the requested heartbeat in seconds, 0 disables heartbeats
+	 */
+	public int getHeartbeat() {
+		return heartbeat;
+	}
+
+	public boolean isAutomaticRecovery() {
+		return automaticRecovery;
+	}
+
+	public boolean isNio() {
+		return nio;
+	}
+
+	/**
+	 * @return the comma separated host list as broker addresses
+	 */
+	public Address[] getAddresses() {
+		String[] hosts = host.split(",");
+		Address[] addresses = new Address[hosts.length];
+		for (int i = 0; i < hosts.length; i++) {
+			addresses[i] = new Address(hosts[i].trim(), port);
+		}
+		return addresses;
+	}
+
+	public String getBalancing() {
+		return balancing;
+	}
+
+	/**
+	 * Open a connection to one of the hosts. The balancing strategy decides
+	 * the order in which every connection tries them, also when it recovers,
+	 * so the connections are spread over the hosts instead of all hitting
+	 * the first one.
+	 */
+	public Connection newConnection(ConnectionFactory factory) throws IOException {
+		List<Address> addresses = ClusterBalancer.order(balancing, getAddresses());
+		Connection connection;
+		try {
+			connection = factory.newConnection(addresses);
+		} catch (TimeoutException e) {
+			throw new IOException("Timed out connecting to " + this, e);
+		}
+		ClusterBalancer.connected(connection, addresses);
+		return connection;
+	}
+
+	public void configure(ConnectionFactory factory) throws NoSuchAlgorithmException, KeyManagementException {
+		factory.setRequestedHeartbeat(heartbeat);
+		factory.setAutomaticRecoveryEnabled(automaticRecovery);
+		factory.setTopologyRecoveryEnabled(automaticRecovery);
+		factory.setRecoveryDelayHandler(Backoff.DEFAULT);
+		factory.setConnectionTimeout(timeout);
+		factory.setVirtualHost(virtualHost);
+		factory.setUsername(username);
+		factory.setPassword(password);
+		if (ssl) {
+			factory.useSslProtocol("TLS");
+		}
+		if (nio) {
+			NioTransport.configure(factory, nioThreads, readBufferSize, writeBufferSize);
+		}
+	}
+
+	public ConnectionFactory newConnectionFactory() throws NoSuchAlgorithmException, KeyManagementException {
+		ConnectionFactory factory = new ConnectionFactory();
+		configure(factory);
+		return factory;
+	}
+
+	/**
+	 * @return the factory shared by all connections with these settings; in
+	 *         NIO mode its connections share the factory's I/O threads
+	 */
+	public ConnectionFactory getSharedConnectionFactory() throws NoSuchAlgorithmException, KeyManagementException {
+		synchronized (FACTORIES) {
+			ConnectionFactory factory = FACTORIES.get(this);
+			if (factory == null) {
+				factory = newConnectionFactory();
+				FACTORIES.put(this, factory);
+			}
+			return factory;
+		}
+	}
+
+	/**
+	 * Forget the shared factories, called when a test ends so that their
+	 * settings and passwords are not kept until the next one.
+	 */
+	public static void reset() {
+		synchronized (FACTORIES) {
+			FACTORIES.clear();
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof AMQPConnectionSettings)) {
+			return false;
+		}
+		AMQPConnectionSettings other = (AMQPConnectionSettings) o;
+		return port == other.port && ssl == other.ssl && timeout == other.timeout && heartbeat == other.heartbeat
+				&& automaticRecovery == other.automaticRecovery && nio == other.nio && nioThreads == other.nioThreads
+				&& readBufferSize == other.readBufferSize && writeBufferSize == other.writeBufferSize
+				&& Objects.equals(balancing, other.balancing) && Objects.equals(host, other.host)
+				&& Objects.equals(virtualHost, other.virtualHost) && Objects.equals(username, other.username)
+				&& Objects.equals(password, other.password);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(host, port, virtualHost, username, password, ssl, timeout, heartbeat, automaticRecovery,
+				nio, nioThreads, readBufferSize, writeBufferSize, balancing);
+	}
+
+	/**
+	 * The password is deliberately left out, this string ends up in logs.
+	 */
+	@Override
+	public String toString() {
+		return username + "@" + host + ":" + port + virtualHost + (ssl ? " (ssl)" : "")
+				+ (automaticRecovery ? " (recovery)" : "") + (nio ? " (nio)" : "");
+	}
+}
@@ -3,23 +3,30 @@ package cn.i2cool.jmeter.protocol.amqp;
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.jmeter.samplers.Entry;
 import org.apache.jmeter.samplers.Interruptible;
 import org.apache.jmeter.samplers.SampleResult;
-import org.apache.jmeter.testelement.TestStateListener;
+import org.apache.jmeter.threads.JMeterContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConsumerCancelledException;
+import com.rabbitmq.client.Delivery;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.GetResponse;
 import com.rabbitmq.client.ShutdownSignalException;
 
-public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStateListener {
+public class AMQPConsumer extends AMQPSampler implements Interruptible {
 	private static final int DEFAULT_PREFETCH_COUNT = 0; // unlimited
 
 	public static final boolean DEFAULT_READ_RESPONSE = true;
@@ -35,16 +42,47 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 	private static final String PURGE_QUEUE = "AMQPConsumer.PurgeQueue";
 	private static final String AUTO_ACK = "AMQPConsumer.AutoAck";
 	private static final String RECEIVE_TIMEOUT = "AMQPConsumer.ReceiveTimeout";
+	private static final String USE_BASIC_CONSUME = "AMQPConsumer.UseBasicConsume";
+	private static final String MEASURE_LATENCY = "AMQPConsumer.MeasureLatency";
+	private static final String STREAM_OFFSET = "AMQPConsumer.StreamOffset";
+	private static final String ACK_BATCH_SIZE = "AMQPConsumer.AckBatchSize";
+	private static final String ACK_BATCH_TIME = "AMQPConsumer.AckBatchTime";
 	public static final String TIMESTAMP_PARAMETER = "Timestamp";
 	public static final String EXCHANGE_PARAMETER = "Exchange";
 	public static final String ROUTING_KEY_PARAMETER = "Routing Key";
 	public static final String DELIVERY_TAG_PARAMETER = "Delivery Tag";
+	public static final String LATENCY_PARAMETER = "End-to-End Latency (us)";
 
 	public static boolean DEFAULT_USE_TX = false;
 	private static final String USE_TX = "AMQPConsumer.UseTx";
 
+	public static boolean DEFAULT_USE_BASIC_CONSUME = false;
+	public static boolean DEFAULT_MEASURE_LATENCY = false;
+
+	public static final int DEFAULT_ACK_BATCH_SIZE = 1;
+	public static final String DEFAULT_ACK_BATCH_SIZE_STRING = Integer.toString(DEFAULT_ACK_BATCH_SIZE);
+	public static final int DEFAULT_ACK_BATCH_TIME = 0; // no time limit
+	public static final String DEFAULT_ACK_BATCH_TIME_STRING = Integer.toString(DEFAULT_ACK_BATCH_TIME);
+	private static final int DEFAULT_BUFFER_SIZE = 1000;
+
+	/**
+	 * Attach to a stream at the next message published
+	 */
+	public static final String DEFAULT_STREAM_OFFSET = "next";
+	// a stream consumer must have a prefetch
+	private static final int DEFAULT_STREAM_PREFETCH_COUNT = 1000;
+
 	private transient Channel channel;
-	private transient String consumerTag;
+	private transient List<String> consumerTags = new ArrayList<>();
+	private transient String[] queues;
+	private transient int nextQueue;
+	private transient int[] ownedShards;
+	private transient StreamProgress streamProgress;
+	private transient AckBatcher acks;
+	private transient boolean transactional;
+	private transient boolean commitPerBatch;
+	private transient BufferingConsumer consumer;
+	private transient String remaining = "";
 
 	public AMQPConsumer() {
 		super();
@@ -56,31 +94,102 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 	@Override
 	public SampleResult sample(Entry entry) {
 		SampleResult result = new SampleResult();
-		result.sampleStart();
 		result.setSampleLabel(getName());
 		result.setSuccessful(false);
 		result.setResponseCode("500");
 		try {
 			initChannel();
-			GetResponse get = channel.basicGet(getQueue(), autoAck());
+		} catch (Exception ex) {
+			log.error("Failed to initialize channel : ", ex);
+			result.setResponseMessage(ex.toString());
+			return result;
+		}
+		result.setConnectTime(takeChannelInitMillis());
+		int loop = Math.max(1, getIterationsAsInt());
+		MessageTimings timings = startMessageTimings(loop);
+		int received = 0;
+		StreamProgress stream = streamProgress;
+		if (stream != null) {
+			stream.startSample();
+		}
+		result.sampleStart();
+		try {
+			boolean measureLatency = getMeasureLatency();
+			boolean autoAck = autoAck() && stream == null;
+			Delivery delivery = null;
+			long bodyBytes = 0;
+			long latency = -1;
+			for (int idx = 0; idx < loop; idx++) {
+				long messageStart = timings != null ? System.nanoTime() : 0;
+				Delivery next = receive();
+				if (next == null) {
+					if (!autoAck) {
+						// the broker may be waiting for these acks to deliver more
+						acks.flush();
+					}
+					break;
+				}
+				delivery = next;
+				received++;
+				AMQPMetrics.consumed();
+				if (delivery.getEnvelope().isRedeliver()) {
+					AMQPMetrics.redelivered();
+				}
+				bodyBytes += delivery.getBody().length;
+				if (measureLatency) {
+					latency = recordLatency(delivery.getProperties());
+				}
+				if (stream != null) {
+					stream.record(delivery, sendTimeMicros(delivery.getProperties()));
+				}
+				// the ack is timed apart from the receive
+				if (timings != null) {
+					timings.record(messageStart, System.nanoTime());
+				}
+				if (!autoAck) {
+					acks.add(delivery.getEnvelope().getDeliveryTag());
+				}
+			}
+			String ackStats = "";
+			if (!autoAck) {
+				acks.flushIfDue();
+				ackStats = acks.takeSampleStats();
+			}
+			if (transactional && received > 0 && !commitPerBatch) {
+				channel.txCommit();
+			}
+			if (delivery == null) {
+				result.setResponseMessage("No message received");
+				return result;
+			}
+			boolean metricsOnly = isMetricsOnly();
 			if (getReadResponseAsBoolean()) {
-				String response = new String(get.getBody(), "UTF-8");
-				result.setSamplerData(String.valueOf(get.getMessageCount()));
-				result.setResponseData(response, "UTF-8");
+				if (!metricsOnly) {
+					result.setSamplerData(remaining);
+				}
+				setResponseBody(result, delivery.getBody());
 				result.setResponseMessage("OK");
-			} else {
+			} else if (!metricsOnly) {
 				result.setSamplerData("Read response is false.");
 			}
-
-			result.setDataType(SampleResult.TEXT);
-			result.setResponseHeaders(formatHeaders(get.getEnvelope(), get.getProps()));
-			result.setResponseCodeOK();
-			result.setSuccessful(true);
-			if (!autoAck())
-				channel.basicAck(get.getEnvelope().getDeliveryTag(), false);
-			if (getUseTx()) {
-				channel.txCommit();
+			result.setBodySize(bodyBytes);
+
+			if (!metricsOnly) {
+				String headers = formatHeaders(delivery.getEnvelope(), delivery.getProperties());
+				if (latency >= 0) {
+					headers += LATENCY_PARAMETER + ": " + latency + "\n";
+				}
+				result.setResponseHeaders(headers + ackStats);
+			}
+			if (received < loop) {
+				result.setResponseMessage("Received " + received + " of " + loop + " messages");
+			} else {
+				result.setResponseCodeOK();
+				result.setSuccessful(true);
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.setResponseMessage(e.toString());
 		} catch (ShutdownSignalException e) {
 			log.warn("AMQP consumer failed to ShutdownSignalException", e);
 			result.setResponseCode("400");
@@ -95,18 +204,66 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 			log.warn("AMQP consumer failed to IOException", e);
 			result.setResponseCode("100");
 			result.setResponseMessage(e.getMessage());
-		} catch (KeyManagementException e) {
-			log.warn("AMQP consumer failed to KeyManagementException", e);
-			result.setResponseMessage(e.getMessage());
-		} catch (NoSuchAlgorithmException e) {
-			log.warn("AMQP consumer failed to NoSuchAlgorithmException", e);
-			result.setResponseMessage(e.getMessage());
 		} finally {
 			result.sampleEnd(); // End timimg
 		}
+		if (stream != null) {
+			String progress = stream.finishSample(result.getTime());
+			if (!isMetricsOnly()) {
+				String headers = result.getResponseHeaders() == null ? "" : result.getResponseHeaders();
+				result.setResponseHeaders(headers + progress);
+			}
+		}
+		reportNode(result, received);
+		reportMessageTimings(result, timings);
 		return result;
 	}
 
+	/**
+	 * Receive the next message, waiting up to the receive timeout in push
+	 * mode.
+	 *
+	 * @return the message, or null if there was none
+	 */
+	private Delivery receive() throws IOException, InterruptedException {
+		if (consumer != null) {
+			Delivery delivery = consumer.next(getReceiveTimeoutAsInt());
+			if (delivery != null) {
+				remaining = String.valueOf(consumer.getBuffered());
+			}
+			return delivery;
+		}
+		// poll the queues in turn, so none of the shards is starved
+		for (int i = 0; i < queues.length; i++) {
+			String queue = queues[nextQueue];
+			nextQueue = (nextQueue + 1) % queues.length;
+			GetResponse get = channel.basicGet(queue, autoAck());
+			if (get != null) {
+				remaining = String.valueOf(get.getMessageCount());
+				return new Delivery(get.getEnvelope(), get.getProps(), get.getBody());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The thread consumes from its own range of the shards, so every queue
+	 * has consumers as long as there are at least as many threads as shards.
+	 */
+	@Override
+	protected int[] getShards() {
+		int shards = getShardCountAsInt();
+		if (shards < 1) {
+			return null;
+		}
+		if (ownedShards == null) {
+			JMeterContext context = getThreadContext();
+			int threads = context.getThreadGroup() != null ? context.getThreadGroup().getNumThreads() : 1;
+			ownedShards = RoutingKeyGenerator.shardsOf(context.getThreadNum(), Math.max(1, threads), shards);
+		}
+		return ownedShards;
+	}
+
 	@Override
 	protected Channel getChannel() {
 		return channel;
@@ -182,6 +339,75 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 		return getPropertyAsInt(PREFETCH_COUNT);
 	}
 
+	/**
+	 * @return whether messages are pushed with basic.consume instead of
+	 *         polled with basic.get
+	 */
+	public Boolean getUseBasicConsume() {
+		return getPropertyAsBoolean(USE_BASIC_CONSUME, DEFAULT_USE_BASIC_CONSUME);
+	}
+
+	public void setUseBasicConsume(Boolean useBasicConsume) {
+		setProperty(USE_BASIC_CONSUME, useBasicConsume);
+	}
+
+	/**
+	 * @return whether the publish-to-consume latency is recorded
+	 */
+	public Boolean getMeasureLatency() {
+		return getPropertyAsBoolean(MEASURE_LATENCY, DEFAULT_MEASURE_LATENCY);
+	}
+
+	public void setMeasureLatency(Boolean measure) {
+		setProperty(MEASURE_LATENCY, measure);
+	}
+
+	/**
+	 * @return where a stream consumer starts reading, see
+	 *         {@link #parseStreamOffset(String)}
+	 */
+	public String getStreamOffset() {
+		return getPropertyAsString(STREAM_OFFSET, DEFAULT_STREAM_OFFSET);
+	}
+
+	public void setStreamOffset(String offset) {
+		setProperty(STREAM_OFFSET, offset);
+	}
+
+	/**
+	 * @return the deliveries acknowledged with one basic.ack
+	 */
+	public String getAckBatchSize() {
+		return getPropertyAsString(ACK_BATCH_SIZE, DEFAULT_ACK_BATCH_SIZE_STRING);
+	}
+
+	public void setAckBatchSize(String size) {
+		setProperty(ACK_BATCH_SIZE, size);
+	}
+
+	protected int getAckBatchSizeAsInt() {
+		if (getPropertyAsInt(ACK_BATCH_SIZE) < 1) {
+			return DEFAULT_ACK_BATCH_SIZE;
+		}
+		return getPropertyAsInt(ACK_BATCH_SIZE);
+	}
+
+	/**
+	 * @return the longest in milliseconds a delivery waits for its ack, 0
+	 *         for no limit
+	 */
+	public String getAckBatchTime() {
+		return getPropertyAsString(ACK_BATCH_TIME, DEFAULT_ACK_BATCH_TIME_STRING);
+	}
+
+	public void setAckBatchTime(String millis) {
+		setProperty(ACK_BATCH_TIME, millis);
+	}
+
+	protected int getAckBatchTimeAsInt() {
+		return Math.max(0, getPropertyAsInt(ACK_BATCH_TIME));
+	}
+
 	public Boolean getUseTx() {
 		return getPropertyAsBoolean(USE_TX, DEFAULT_USE_TX);
 	}
@@ -219,7 +445,8 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 
 	@Override
 	public boolean interrupt() {
-		testEnded();
+		flushAcks();
+		purge();
 		return true;
 	}
 
@@ -228,37 +455,184 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 	 */
 	@Override
 	public void testEnded() {
+		super.testEnded();
+		LatencyRecorder.reportAndReset();
+		StreamProgress.reportAndReset();
+	}
 
-		if (purgeQueue()) {
-			log.info("Purging queue {}", getQueue());
-			try {
-				channel.queuePurge(getQueue());
-			} catch (IOException e) {
-				log.error("Failed to purge queue " + getQueue(), e);
+	private void purge() {
+		// streams are truncated by retention only
+		if (purgeQueue() && channel != null && channel.isOpen() && queues != null && !isStreamQueue()) {
+			for (String queue : queues) {
+				log.info("Purging queue {}", queue);
+				try {
+					channel.queuePurge(queue);
+				} catch (IOException e) {
+					log.error("Failed to purge queue " + queue, e);
+				}
 			}
 		}
 	}
 
 	@Override
 	public void cleanup() {
-		try {
-			if (consumerTag != null) {
-				channel.basicCancel(consumerTag);
-			}
-		} catch (IOException e) {
-			log.error("Couldn't safely cancel the sample " + consumerTag, e);
+		flushAcks();
+		cancelConsumers();
+		// the test element that gets testEnded() has no channel, so every
+		// thread purges its queues when it finishes; the last one leaves them
+		// empty
+		purge();
+		if (consumer != null) {
+			consumer.discard();
 		}
+		consumer = null;
 		super.cleanup();
 	}
 
 	@Override
 	protected boolean initChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException {
-		boolean ret = super.initChannel();
-		channel.basicQos(getPrefetchCountAsInt());
-		if (getUseTx()) {
+		if (!super.initChannel()) {
+			return false;
+		}
+		boolean stream = isStreamQueue();
+		int prefetch = getPrefetchCountAsInt();
+		if (stream && prefetch < 1) {
+			prefetch = DEFAULT_STREAM_PREFETCH_COUNT;
+		}
+		channel.basicQos(prefetch);
+		transactional = getUseTx();
+		if (transactional && isChannelShared()) {
+			// a commit would cover the acks of the other threads
+			log.warn("Transactions need a channel per thread, consuming without transactions");
+			transactional = false;
+		}
+		if (transactional) {
 			channel.txSelect();
 		}
-		return ret;
+		int batchSize = getAckBatchSizeAsInt();
+		int batchTime = getAckBatchTimeAsInt();
+		if ((batchSize > 1 || batchTime > 0) && isChannelShared()) {
+			// multiple=true would acknowledge the deliveries of other threads
+			log.warn("Ack batching needs a channel per thread, acknowledging every message");
+			batchSize = 1;
+			batchTime = 0;
+		}
+		if (batchSize > prefetch && prefetch > 0 && (getUseBasicConsume() || stream)) {
+			// the broker stops delivering at the prefetch, the batch would never fill
+			log.warn("Ack batch size {} is larger than the prefetch count, acknowledging every {} messages", batchSize,
+					prefetch);
+			batchSize = prefetch;
+		}
+		commitPerBatch = transactional && (batchSize > 1 || batchTime > 0) && (!autoAck() || stream);
+		acks = new AckBatcher(channel, batchSize, batchTime, commitPerBatch);
+		if (consumer != null) {
+			consumer.discard();
+		}
+		consumer = null;
+		consumerTags.clear();
+		int[] shards = getShards();
+		if (shards == null) {
+			queues = new String[] { getQueue() };
+		} else {
+			queues = new String[shards.length];
+			for (int i = 0; i < shards.length; i++) {
+				queues[i] = RoutingKeyGenerator.shardName(getQueue(), shards[i]);
+			}
+		}
+		nextQueue = 0;
+		// streams can only be read with basic.consume and manual acks
+		streamProgress = stream ? new StreamProgress(getName()) : null;
+		if (getUseBasicConsume() || stream) {
+			int capacity = prefetch > 0 ? prefetch : DEFAULT_BUFFER_SIZE;
+			Map<String, Object> arguments = stream
+					? Collections.singletonMap(StreamProgress.OFFSET_HEADER, parseStreamOffset(getStreamOffset()))
+					: Collections.<String, Object>emptyMap();
+			// one buffer for all queues, prefetch is per consumer so it holds
+			// up to capacity per queue
+			consumer = new BufferingConsumer(channel, capacity * queues.length, autoAck() && !stream,
+					isChannelShared());
+			for (String queue : queues) {
+				consumerTags.add(channel.basicConsume(queue, autoAck() && !stream, arguments, consumer));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param offset first, last, next, an offset, an interval such as
+	 *               {@code 30m} or {@code 7D}, or an ISO-8601 instant
+	 * @return the x-stream-offset argument
+	 */
+	static Object parseStreamOffset(String offset) {
+		String value = offset == null ? "" : offset.trim();
+		if (value.isEmpty()) {
+			return DEFAULT_STREAM_OFFSET;
+		}
+		if ("first".equals(value) || "last".equals(value) || "next".equals(value)
+				|| value.matches("\\d+[YMDhms]")) {
+			return value;
+		}
+		if (value.matches("\\d+")) {
+			return Long.valueOf(value);
+		}
+		try {
+			return Date.from(Instant.parse(value));
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid stream offset: " + value, e);
+		}
+	}
+
+	private void flushAcks() {
+		if (acks == null) {
+			return;
+		}
+		try {
+			acks.flush();
+		} catch (IOException | ShutdownSignalException e) {
+			log.warn("Failed to acknowledge the last batch", e);
+		}
+	}
+
+	private void cancelConsumers() {
+		for (String consumerTag : consumerTags) {
+			try {
+				if (channel != null && channel.isOpen()) {
+					channel.basicCancel(consumerTag);
+				}
+			} catch (IOException e) {
+				log.error("Couldn't safely cancel the sample " + consumerTag, e);
+			}
+		}
+		consumerTags.clear();
+	}
+
+	/**
+	 * Record the time since the message was published, taken from the
+	 * publisher's send time header. The timestamp property is not used, its
+	 * one second resolution would swamp the latencies being measured.
+	 *
+	 * @return the latency in microseconds, -1 if the message carries no send
+	 *         time
+	 */
+	private long recordLatency(AMQP.BasicProperties properties) {
+		long now = AMQPClock.currentTimeMicros();
+		long sendTime = sendTimeMicros(properties);
+		if (sendTime < 0) {
+			return -1;
+		}
+		long latency = Math.max(0, now - sendTime);
+		LatencyRecorder.get(getName()).record(latency);
+		return latency;
+	}
+
+	/**
+	 * @return the send time of the message in microseconds since the epoch,
+	 *         -1 if it has none
+	 */
+	static long sendTimeMicros(AMQP.BasicProperties properties) {
+		Map<String, Object> headers = properties.getHeaders();
+		Object header = headers != null ? headers.get(AMQPPublisher.SEND_TIME_HEADER) : null;
+		return header instanceof Number ? ((Number) header).longValue() : -1;
 	}
 
 	private String formatHeaders(Envelope envelope, AMQP.BasicProperties properties) {
@@ -269,8 +643,10 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 		sb.append(EXCHANGE_PARAMETER).append(": ").append(envelope.getExchange()).append("\n");
 		sb.append(ROUTING_KEY_PARAMETER).append(": ").append(envelope.getRoutingKey()).append("\n");
 		sb.append(DELIVERY_TAG_PARAMETER).append(": ").append(envelope.getDeliveryTag()).append("\n");
-		for (Map.Entry<String, Object> entry : headers.entrySet()) {
-			sb.append(entry.getKey()).append(": ").append(headers.get(entry.getKey())).append("\n");
+		if (headers != null) {
+			for (Map.Entry<String, Object> entry : headers.entrySet()) {
+				sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+			}
 		}
 		return sb.toString();
 	}
@@ -278,18 +654,21 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 	@Override
 	public void testStarted() {
 		log.info("testStarted");
+		super.testStarted();
 
 	}
 
 	@Override
 	public void testStarted(String host) {
 		log.info("testStarted  {}", host);
+		testStarted();
 
 	}
 
 	@Override
 	public void testEnded(String host) {
 		log.info("testEnded  {}", host);
+		testEnded();
 
 	}
 }
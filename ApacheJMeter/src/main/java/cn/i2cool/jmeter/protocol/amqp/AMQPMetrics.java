@@ -0,0 +1,513 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * JVM-wide counters of what the plugin is doing: connections, channels,
+ * messages published and consumed, time spent inside basicPublish, confirms
+ * in flight, messages buffered by push consumers, time connections were
+ * blocked by the broker, connection recoveries and the messages lost or
+ * redelivered because of them, and RPC requests that timed out or got their
+ * reply too late.
+ *
+ * The counters are striped so the sampler threads do not contend on them.
+ * They count from the start of the current test; the gauges, such as the
+ * open connections and channels or the confirms in flight, carry over what
+ * is still open from a previous test.
+ * They are registered as the MBean {@value #OBJECT_NAME} and logged every
+ * {@code amqp.metrics.log.interval} seconds while a test runs (10 by default,
+ * 0 disables).
+ */
+public class AMQPMetrics implements AMQPMetricsMBean {
+
+	private static final Logger log = LoggerFactory.getLogger(AMQPMetrics.class);
+
+	public static final String OBJECT_NAME = "cn.i2cool.jmeter.protocol.amqp:type=Metrics";
+
+	private static final AMQPMetrics INSTANCE = new AMQPMetrics();
+
+	private static ScheduledExecutorService reporter;
+	private static boolean running;
+
+	private final LongAdder connectionsOpened = new LongAdder();
+	private final LongAdder connectionsClosed = new LongAdder();
+	private final LongAdder channelsOpened = new LongAdder();
+	private final LongAdder channelsClosed = new LongAdder();
+	private final LongAdder channelOpenNanos = new LongAdder();
+	private final LongAdder published = new LongAdder();
+	private final LongAdder publishNanos = new LongAdder();
+	private final LongAccumulator publishMaxNanos = new LongAccumulator(Long::max, 0L);
+	private final LongAdder publishedBytes = new LongAdder();
+	private final LongAdder txCommits = new LongAdder();
+	private final LongAdder txCommitNanos = new LongAdder();
+	private final LongAccumulator txCommitMaxNanos = new LongAccumulator(Long::max, 0L);
+	private final LongAdder confirmsInFlight = new LongAdder();
+	private final LongAdder consumed = new LongAdder();
+	private final LongAdder consumerBuffered = new LongAdder();
+	private final LongAdder blockedConnections = new LongAdder();
+	private final LongAdder blockedEvents = new LongAdder();
+	private final LongAdder blockedNanos = new LongAdder();
+	private final LongAdder recoveringConnections = new LongAdder();
+	private final LongAdder recoveries = new LongAdder();
+	private final LongAdder recoveryNanos = new LongAdder();
+	private final LongAccumulator recoveryMaxNanos = new LongAccumulator(Long::max, 0L);
+	private final LongAdder lost = new LongAdder();
+	private final LongAdder redelivered = new LongAdder();
+	private final LongAdder acked = new LongAdder();
+	private final LongAdder ackBatches = new LongAdder();
+	private final LongAdder ackNanos = new LongAdder();
+	private final LongAdder rpcTimeouts = new LongAdder();
+	private final LongAdder rpcOrphaned = new LongAdder();
+
+	// only touched by the reporter, see logInterval()
+	private long lastPublished;
+	private long lastConsumed;
+	private long lastPublishNanos;
+	private long lastPublishedBytes;
+
+	static {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(INSTANCE, name);
+			}
+		} catch (JMException e) {
+			log.warn("Failed to register MBean {}", OBJECT_NAME, e);
+		}
+	}
+
+	private AMQPMetrics() {
+	}
+
+	public static AMQPMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Count a newly opened connection and, once it shuts down for good, its
+	 * close. The connection is also tracked by a {@link ConnectionBlockMonitor}
+	 * and a {@link ConnectionRecoveryMonitor}.
+	 */
+	public static void connectionOpened(Connection connection) {
+		INSTANCE.connectionsOpened.increment();
+		ConnectionBlockMonitor.register(connection);
+		ConnectionRecoveryMonitor.register(connection);
+		connection.addShutdownListener(cause -> {
+			if (!ConnectionRecoveryMonitor.willRecover(connection, cause)) {
+				INSTANCE.connectionsClosed.increment();
+			}
+		});
+	}
+
+	/**
+	 * Count a newly opened channel and, once it shuts down for good, its
+	 * close. A channel also shuts down with its connection.
+	 */
+	public static void channelOpened(Channel channel, long openNanos) {
+		INSTANCE.channelsOpened.increment();
+		INSTANCE.channelOpenNanos.add(openNanos);
+		channel.addShutdownListener(cause -> {
+			if (!ConnectionRecoveryMonitor.willRecover(channel, cause)) {
+				INSTANCE.channelsClosed.increment();
+			}
+		});
+	}
+
+	/**
+	 * @param nanos time spent inside basicPublish
+	 */
+	public static void published(long nanos) {
+		INSTANCE.published.increment();
+		INSTANCE.publishNanos.add(nanos);
+		INSTANCE.publishMaxNanos.accumulate(nanos);
+	}
+
+	/**
+	 * @param bytes the bodies published by a sample
+	 */
+	public static void bytesPublished(long bytes) {
+		INSTANCE.publishedBytes.add(bytes);
+	}
+
+	/**
+	 * @param nanos time spent inside txCommit
+	 */
+	public static void committed(long nanos) {
+		INSTANCE.txCommits.increment();
+		INSTANCE.txCommitNanos.add(nanos);
+		INSTANCE.txCommitMaxNanos.accumulate(nanos);
+	}
+
+	public static void consumed() {
+		INSTANCE.consumed.increment();
+	}
+
+	public static void confirmsInFlight(int delta) {
+		INSTANCE.confirmsInFlight.add(delta);
+	}
+
+	public static void consumerBuffered(int delta) {
+		INSTANCE.consumerBuffered.add(delta);
+	}
+
+	public static void connectionBlocked() {
+		INSTANCE.blockedConnections.increment();
+		INSTANCE.blockedEvents.increment();
+	}
+
+	/**
+	 * @param nanos how long the connection was blocked
+	 */
+	public static void connectionUnblocked(long nanos) {
+		INSTANCE.blockedConnections.decrement();
+		INSTANCE.blockedNanos.add(nanos);
+	}
+
+	public static void connectionFailed() {
+		INSTANCE.recoveringConnections.increment();
+	}
+
+	/**
+	 * A recovering connection was closed before it recovered.
+	 */
+	public static void recoveryAbandoned() {
+		INSTANCE.recoveringConnections.decrement();
+	}
+
+	/**
+	 * @param nanos time from the failure to the end of the recovery
+	 */
+	public static void connectionRecovered(long nanos) {
+		INSTANCE.recoveringConnections.decrement();
+		INSTANCE.recoveries.increment();
+		INSTANCE.recoveryNanos.add(nanos);
+		INSTANCE.recoveryMaxNanos.accumulate(nanos);
+	}
+
+	/**
+	 * @param messages publishes that were not confirmed, or not committed,
+	 *                 when their channel failed, or automatically acknowledged
+	 *                 deliveries a full consumer buffer dropped
+	 */
+	public static void messagesLost(int messages) {
+		INSTANCE.lost.add(messages);
+	}
+
+	/**
+	 * Count a message the broker marked as redelivered, i.e. a possible
+	 * duplicate.
+	 */
+	public static void redelivered() {
+		INSTANCE.redelivered.increment();
+	}
+
+	/**
+	 * @param messages the deliveries acknowledged by one basic.ack
+	 * @param nanos    time spent in basicAck, and txCommit if any
+	 */
+	public static void acked(int messages, long nanos) {
+		INSTANCE.acked.add(messages);
+		INSTANCE.ackBatches.increment();
+		INSTANCE.ackNanos.add(nanos);
+	}
+
+	/**
+	 * Count an RPC request whose reply did not arrive in time.
+	 */
+	public static void rpcTimedOut() {
+		INSTANCE.rpcTimeouts.increment();
+	}
+
+	/**
+	 * Count a reply that arrived for a request nobody waits for any more.
+	 */
+	public static void rpcOrphaned() {
+		INSTANCE.rpcOrphaned.increment();
+	}
+
+	/**
+	 * Reset the counters and start logging the metrics periodically, called
+	 * when a test starts.
+	 */
+	public static synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		INSTANCE.reset();
+		NodeStats.reset();
+		int seconds = JMeterUtils.getPropDefault("amqp.metrics.log.interval", 10);
+		if (seconds <= 0) {
+			return;
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "AMQP metrics reporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reporter.scheduleAtFixedRate(() -> INSTANCE.logInterval(seconds), seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stop the periodic log and log the totals, called when a test ends.
+	 */
+	public static synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+		log.info("AMQP metrics total: {}", INSTANCE.getSummary());
+		NodeStats.logAll();
+	}
+
+	private void reset() {
+		// keep what is still open, or it would go negative once closed
+		long openConnections = connectionsOpened.sumThenReset() - connectionsClosed.sumThenReset();
+		connectionsOpened.add(openConnections);
+		long openedChannels = channelsOpened.sumThenReset();
+		long openChannels = openedChannels - channelsClosed.sumThenReset();
+		long openNanos = channelOpenNanos.sumThenReset();
+		channelsOpened.add(openChannels);
+		// at the mean time they took to open, they are in the mean of this test
+		channelOpenNanos.add(openedChannels <= 0 ? 0 : openNanos / openedChannels * Math.max(0, openChannels));
+		for (LongAdder counter : new LongAdder[] { published, publishNanos, publishedBytes,
+				txCommits, txCommitNanos, consumed, blockedEvents, blockedNanos, recoveries, recoveryNanos, lost,
+				redelivered, acked, ackBatches, ackNanos, rpcTimeouts, rpcOrphaned }) {
+			counter.reset();
+		}
+		publishMaxNanos.reset();
+		txCommitMaxNanos.reset();
+		recoveryMaxNanos.reset();
+		lastPublished = 0;
+		lastConsumed = 0;
+		lastPublishNanos = 0;
+		lastPublishedBytes = 0;
+	}
+
+	private void logInterval(int seconds) {
+		long currentPublished = published.sum();
+		long currentConsumed = consumed.sum();
+		long currentPublishNanos = publishNanos.sum();
+		long currentPublishedBytes = publishedBytes.sum();
+		long publishes = currentPublished - lastPublished;
+		long meanMicros = publishes == 0 ? 0
+				: TimeUnit.NANOSECONDS.toMicros((currentPublishNanos - lastPublishNanos) / publishes);
+		log.info("AMQP metrics: publish rate={}/s {}B/s mean={}us, consume rate={}/s, {}", publishes / seconds,
+				(currentPublishedBytes - lastPublishedBytes) / seconds, meanMicros,
+				(currentConsumed - lastConsumed) / seconds, getSummary());
+		lastPublished = currentPublished;
+		lastConsumed = currentConsumed;
+		lastPublishNanos = currentPublishNanos;
+		lastPublishedBytes = currentPublishedBytes;
+	}
+
+	@Override
+	public long getConnectionsOpened() {
+		return connectionsOpened.sum();
+	}
+
+	@Override
+	public long getConnectionsClosed() {
+		return connectionsClosed.sum();
+	}
+
+	@Override
+	public long getOpenConnections() {
+		return connectionsOpened.sum() - connectionsClosed.sum();
+	}
+
+	@Override
+	public long getChannelsOpened() {
+		return channelsOpened.sum();
+	}
+
+	@Override
+	public long getChannelsClosed() {
+		return channelsClosed.sum();
+	}
+
+	@Override
+	public long getOpenChannels() {
+		return channelsOpened.sum() - channelsClosed.sum();
+	}
+
+	@Override
+	public double getChannelsPerConnection() {
+		long connections = getOpenConnections();
+		return connections <= 0 ? 0 : (double) getOpenChannels() / connections;
+	}
+
+	@Override
+	public long getChannelOpenMeanMicros() {
+		long opened = channelsOpened.sum();
+		return opened == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(channelOpenNanos.sum() / opened);
+	}
+
+	@Override
+	public long getMessagesPublished() {
+		return published.sum();
+	}
+
+	@Override
+	public long getBytesPublished() {
+		return publishedBytes.sum();
+	}
+
+	@Override
+	public long getPublishTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(publishNanos.sum());
+	}
+
+	@Override
+	public long getPublishMeanMicros() {
+		long count = published.sum();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(publishNanos.sum() / count);
+	}
+
+	@Override
+	public long getPublishMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(publishMaxNanos.get());
+	}
+
+	@Override
+	public long getConfirmsInFlight() {
+		return confirmsInFlight.sum();
+	}
+
+	@Override
+	public long getMessagesConsumed() {
+		return consumed.sum();
+	}
+
+	@Override
+	public long getConsumerBufferDepth() {
+		return consumerBuffered.sum();
+	}
+
+	@Override
+	public long getBlockedConnections() {
+		return blockedConnections.sum();
+	}
+
+	@Override
+	public long getBlockedEvents() {
+		return blockedEvents.sum();
+	}
+
+	@Override
+	public long getBlockedTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(blockedNanos.sum());
+	}
+
+	@Override
+	public long getRecoveringConnections() {
+		return recoveringConnections.sum();
+	}
+
+	@Override
+	public long getRecoveries() {
+		return recoveries.sum();
+	}
+
+	@Override
+	public long getRecoveryMeanMillis() {
+		long count = recoveries.sum();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(recoveryNanos.sum() / count);
+	}
+
+	@Override
+	public long getRecoveryMaxMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(recoveryMaxNanos.get());
+	}
+
+	@Override
+	public long getMessagesLost() {
+		return lost.sum();
+	}
+
+	@Override
+	public long getMessagesRedelivered() {
+		return redelivered.sum();
+	}
+
+	@Override
+	public long getTxCommits() {
+		return txCommits.sum();
+	}
+
+	@Override
+	public long getTxCommitMeanMicros() {
+		long commits = txCommits.sum();
+		return commits == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(txCommitNanos.sum() / commits);
+	}
+
+	@Override
+	public long getTxCommitMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(txCommitMaxNanos.get());
+	}
+
+	@Override
+	public long getMessagesAcked() {
+		return acked.sum();
+	}
+
+	@Override
+	public long getAckBatches() {
+		return ackBatches.sum();
+	}
+
+	@Override
+	public long getAckMeanMicros() {
+		long batches = ackBatches.sum();
+		return batches == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(ackNanos.sum() / batches);
+	}
+
+	@Override
+	public long getRpcTimeouts() {
+		return rpcTimeouts.sum();
+	}
+
+	@Override
+	public long getRpcOrphanedReplies() {
+		return rpcOrphaned.sum();
+	}
+
+	@Override
+	public String getSummary() {
+		return "connections open=" + getOpenConnections() + " opened=" + getConnectionsOpened() + ", channels open="
+				+ getOpenChannels() + " opened=" + getChannelsOpened() + " per connection="
+				+ String.format("%.1f", getChannelsPerConnection()) + " open mean=" + getChannelOpenMeanMicros()
+				+ "us, published=" + getMessagesPublished() + " bytes=" + getBytesPublished() + " in basicPublish="
+				+ getPublishTimeMillis() + "ms mean=" + getPublishMeanMicros() + "us max=" + getPublishMaxMicros()
+				+ "us, tx commits=" + getTxCommits() + " mean=" + getTxCommitMeanMicros() + "us max="
+				+ getTxCommitMaxMicros() + "us, confirms in flight=" + getConfirmsInFlight() + ", consumed="
+				+ getMessagesConsumed() + " buffered=" + getConsumerBufferDepth() + " acked=" + getMessagesAcked()
+				+ " in batches=" + getAckBatches() + " ack mean=" + getAckMeanMicros() + "us, connections blocked="
+				+ getBlockedConnections() + " blocks=" + getBlockedEvents() + " blocked time=" + getBlockedTimeMillis()
+				+ "ms, recovering=" + getRecoveringConnections() + " recoveries=" + getRecoveries() + " recovery mean="
+				+ getRecoveryMeanMillis() + "ms max=" + getRecoveryMaxMillis() + "ms, lost=" + getMessagesLost()
+				+ " redelivered=" + getMessagesRedelivered() + ", rpc timeouts=" + getRpcTimeouts() + " orphaned="
+				+ getRpcOrphanedReplies();
+	}
+}
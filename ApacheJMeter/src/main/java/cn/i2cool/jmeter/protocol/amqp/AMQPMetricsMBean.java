@@ -0,0 +1,76 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+/**
+ * JMX view of {@link AMQPMetrics}. Counters are totals since the current test
+ * started, the others are current values.
+ */
+public interface AMQPMetricsMBean {
+
+	long getConnectionsOpened();
+
+	long getConnectionsClosed();
+
+	long getOpenConnections();
+
+	long getChannelsOpened();
+
+	long getChannelsClosed();
+
+	long getOpenChannels();
+
+	double getChannelsPerConnection();
+
+	long getChannelOpenMeanMicros();
+
+	long getMessagesPublished();
+
+	long getBytesPublished();
+
+	long getPublishTimeMillis();
+
+	long getPublishMeanMicros();
+
+	long getPublishMaxMicros();
+
+	long getTxCommits();
+
+	long getTxCommitMeanMicros();
+
+	long getTxCommitMaxMicros();
+
+	long getConfirmsInFlight();
+
+	long getMessagesConsumed();
+
+	long getConsumerBufferDepth();
+
+	long getMessagesAcked();
+
+	long getAckBatches();
+
+	long getAckMeanMicros();
+
+	long getBlockedConnections();
+
+	long getBlockedEvents();
+
+	long getBlockedTimeMillis();
+
+	long getRecoveringConnections();
+
+	long getRecoveries();
+
+	long getRecoveryMeanMillis();
+
+	long getRecoveryMaxMillis();
+
+	long getMessagesLost();
+
+	long getMessagesRedelivered();
+
+	long getRpcTimeouts();
+
+	long getRpcOrphanedReplies();
+
+	String getSummary();
+}
@@ -1,22 +1,32 @@
 package cn.i2cool.jmeter.protocol.amqp;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.config.Argument;
 import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.engine.util.CompoundVariable;
 import org.apache.jmeter.samplers.Entry;
 import org.apache.jmeter.samplers.Interruptible;
 import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.property.FunctionProperty;
+import org.apache.jmeter.testelement.property.JMeterProperty;
 import org.apache.jmeter.testelement.property.TestElementProperty;
+import org.apache.jmeter.threads.JMeterContext;
+import org.apache.jmeter.util.JMeterUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
 
 /**
  * JMeter creates an instance of a sampler class for every occurrence of the
@@ -34,6 +44,9 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
 
 	private static final Logger log = LoggerFactory.getLogger(AMQPPublisher.class);
 
+	// read like SampleResult does, which keeps it private
+	private static final boolean START_TIMESTAMP = JMeterUtils.getPropDefault("sampleresult.timestamp.start", false);
+
 	// ++ These are JMX names, and must not be changed
 	private static final String MESSAGE = "AMQPPublisher.Message";
 	private static final String MESSAGE_ROUTING_KEY = "AMQPPublisher.MessageRoutingKey";
@@ -50,7 +63,75 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
 	public static boolean DEFAULT_USE_TX = false;
 	private static final String USE_TX = "AMQPPublisher.UseTx";
 
+	public static final int DEFAULT_TX_BATCH_SIZE = 0; // commit every sample
+	public static final String DEFAULT_TX_BATCH_SIZE_STRING = Integer.toString(DEFAULT_TX_BATCH_SIZE);
+	private static final String TX_BATCH_SIZE = "AMQPPublisher.TxBatchSize";
+
+	public static final int DEFAULT_TX_BATCH_TIME = 0; // no time limit
+	public static final String DEFAULT_TX_BATCH_TIME_STRING = Integer.toString(DEFAULT_TX_BATCH_TIME);
+	private static final String TX_BATCH_TIME = "AMQPPublisher.TxBatchTime";
+
+	// properties the encoded message is built from, besides the headers
+	private static final String[] MESSAGE_INPUTS = { MESSAGE, CONTENT_TYPE, CORRELATION_ID, REPLY_TO_QUEUE,
+			MESSAGE_TYPE, MESSAGE_ID, PERSISTENT };
+
+	public static boolean DEFAULT_USE_CONFIRMS = false;
+	private static final String USE_CONFIRMS = "AMQPPublisher.UseConfirms";
+
+	public static final int DEFAULT_CONFIRM_WINDOW = 1000;
+	public static final String DEFAULT_CONFIRM_WINDOW_STRING = Integer.toString(DEFAULT_CONFIRM_WINDOW);
+	private static final String CONFIRM_WINDOW = "AMQPPublisher.ConfirmWindow";
+
+	public static final int DEFAULT_CONFIRM_TIMEOUT = 5000;
+	public static final String DEFAULT_CONFIRM_TIMEOUT_STRING = Integer.toString(DEFAULT_CONFIRM_TIMEOUT);
+	private static final String CONFIRM_TIMEOUT = "AMQPPublisher.ConfirmTimeout";
+
+	public static boolean DEFAULT_COMPILE_TEMPLATE = true;
+
+	public static boolean DEFAULT_STAMP_TIMESTAMP = false;
+	private static final String STAMP_TIMESTAMP = "AMQPPublisher.StampTimestamp";
+
+	private static final String TARGET_RATE = "AMQPPublisher.TargetRate";
+	private static final String RATE_PROFILE = "AMQPPublisher.RateProfile";
+
+	private static final String PAYLOAD_SOURCE = "AMQPPublisher.PayloadSource";
+	private static final String CORPUS_FILE = "AMQPPublisher.CorpusFile";
+	private static final String CORPUS_CURSOR = "AMQPPublisher.CorpusCursor";
+	private static final String COMPILE_TEMPLATE = "AMQPPublisher.CompileTemplate";
+	private static final String PAYLOAD_SIZE = "AMQPPublisher.PayloadSize";
+	private static final String PAYLOAD_CONTENT = "AMQPPublisher.PayloadContent";
+
+	/**
+	 * Publish the message content of the sampler.
+	 */
+	public static final String PAYLOAD_MESSAGE = "message";
+	/**
+	 * Publish the records of a {@link PayloadCorpus}.
+	 */
+	public static final String PAYLOAD_CORPUS = "corpus";
+	/**
+	 * Publish bodies of a {@link PayloadGenerator} size distribution.
+	 */
+	public static final String PAYLOAD_GENERATED = "generated";
+
+	private static final String ROUTING_STRATEGY = "AMQPPublisher.RoutingStrategy";
+	private static final String SHARD_KEY = "AMQPPublisher.ShardKey";
+
+	/**
+	 * Header carrying the publish time in microseconds since the epoch.
+	 */
+	public static final String SEND_TIME_HEADER = "x-send-time-us";
+
 	private transient Channel channel;
+	private transient PublisherConfirmTracker confirmTracker;
+	private transient TxBatcher txBatcher;
+	private transient boolean commitPerSample;
+	private transient CompiledMessage compiledMessage;
+	private transient boolean staticMessage;
+	private transient MessageTemplate messageTemplate;
+	private transient RoutingKeyGenerator routingKeys;
+	private transient PayloadCorpus.Reader corpusReader;
+	private transient PayloadGenerator payloadGenerator;
 
 	public AMQPPublisher() {
 		super();
@@ -72,40 +153,325 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
 			result.setResponseMessage(ex.toString());
 			return result;
 		}
-		String data = getMessage(); // Sampler data
+		String payloadSource = getPayloadSource();
+		boolean fromCorpus = PAYLOAD_CORPUS.equals(payloadSource);
+		boolean generated = PAYLOAD_GENERATED.equals(payloadSource);
 		result.setSampleLabel(getTitle());
 		int loop = getIterationsAsInt();
-		result.sampleStart(); // Start timing
+		RateScheduler scheduler;
+		try {
+			scheduler = getRateScheduler();
+		} catch (IllegalArgumentException ex) {
+			log.error("Invalid rate settings : ", ex);
+			result.setResponseMessage(ex.toString());
+			return result;
+		}
+		PayloadCorpus.Reader corpus;
+		PayloadGenerator generator;
+		try {
+			// the first thread maps and indexes the file outside the sample
+			corpus = fromCorpus ? getCorpusReader() : null;
+			generator = generated ? getPayloadGenerator() : null;
+		} catch (IOException | IllegalArgumentException ex) {
+			log.error("Invalid payload settings : ", ex);
+			result.setResponseMessage(ex.toString());
+			return result;
+		}
+		result.setConnectTime(takeChannelInitMillis());
+		long intendedStart = scheduler != null ? scheduler.awaitNext() : 0;
+		ConnectionBlockMonitor blockMonitor = getBlockMonitor();
+		long blockedBefore = blockMonitor != null ? blockMonitor.getBlockedNanos() : 0;
+		if (scheduler == null) {
+			result.sampleStart(); // Start timing
+		}
+		long actualStart = System.nanoTime();
+		MessageTimings timings = null;
 		try {
-			AMQP.BasicProperties messageProperties = getProperties();
-			byte[] messageBytes = getMessageBytes();
+			CompiledMessage message = getCompiledMessage();
+			AMQP.BasicProperties messageProperties = message.getProperties();
+			byte[] messageBytes = message.getBody();
+			boolean stampTimestamp = getStampTimestamp();
+			String exchange = getExchange();
+			RoutingKeyGenerator routingKeys = getRoutingKeyGenerator();
+			String shardKey = routingKeys != null ? getShardKey() : null;
+			String routingKey = getMessageRoutingKey();
+			long sentBytes = 0;
+			timings = startMessageTimings(loop);
+			if (txBatcher != null) {
+				txBatcher.startSample();
+			}
 
 			for (int idx = 0; idx < loop; idx++) {
-				channel.basicPublish(getExchange(), getMessageRoutingKey(), messageProperties, messageBytes);
-
+				if (scheduler != null && idx > 0) {
+					scheduler.awaitNext();
+				}
+				long messageStart = timings != null ? System.nanoTime() : 0;
+				String messageRoutingKey = null;
+				if (corpus != null) {
+					corpus.next(message.getProperties());
+					messageProperties = corpus.getProperties();
+					messageBytes = corpus.getBody();
+					messageRoutingKey = corpus.getRoutingKey();
+				} else if (generator != null) {
+					messageBytes = generator.next();
+				} else if (message.isTemplate() && idx > 0) {
+					messageBytes = message.getBody();
+				}
+				if (stampTimestamp) {
+					messageProperties = stampTimestamp(corpus != null ? messageProperties : message.getProperties());
+				}
+				if (confirmTracker != null) {
+					confirmTracker.register(channel.getNextPublishSeqNo());
+				}
+				if (messageRoutingKey == null) {
+					messageRoutingKey = routingKeys != null ? routingKeys.next(shardKey) : routingKey;
+				}
+				sentBytes += messageBytes.length;
+				long publishStart = System.nanoTime();
+				channel.basicPublish(exchange, messageRoutingKey, messageProperties, messageBytes);
+				long publishEnd = System.nanoTime();
+				AMQPMetrics.published(publishEnd - publishStart);
+				if (timings != null) {
+					timings.record(messageStart, publishEnd);
+				}
+				if (txBatcher != null && !commitPerSample) {
+					txBatcher.add(1);
+				}
 			}
-			if (getUseTx()) {
-				channel.txCommit();
+			if (txBatcher != null) {
+				if (commitPerSample) {
+					txBatcher.add(loop);
+					txBatcher.commit();
+				} else {
+					txBatcher.commitIfDue();
+				}
+			}
+			boolean metricsOnly = isMetricsOnly();
+			if (!metricsOnly) {
+				result.setSamplerData(getSamplerData(payloadSource));
 			}
-			result.setSamplerData(data);
-			result.setResponseData(new String(messageBytes, "UTF-8"), "UTF-8");
-			result.setDataType(SampleResult.TEXT);
+			result.setSentBytes(sentBytes);
+			AMQPMetrics.bytesPublished(sentBytes);
+			// generated and templated bodies are overwritten by the next message
+			setResponseBody(result, messageBytes, generator != null || message.isTemplate());
 			result.setResponseCodeOK();
 			result.setResponseMessage("OK");
 			result.setSuccessful(true);
+			String headers = "";
+			if (!metricsOnly) {
+				long elapsedNanos = Math.max(1, System.nanoTime() - actualStart);
+				headers = "Sent Rate (B/s): " + sentBytes * TimeUnit.SECONDS.toNanos(1) / elapsedNanos + "\n";
+			}
+			if (txBatcher != null && !metricsOnly) {
+				headers += txBatcher.format();
+			}
+			if (confirmTracker != null) {
+				PublisherConfirmTracker.Snapshot confirms = confirmTracker.snapshot();
+				if (!metricsOnly) {
+					headers += confirms.format();
+				}
+				if (confirms.getNacked() > 0 || confirms.getTimedOut() > 0) {
+					result.setResponseMessage(
+							"Nacked: " + confirms.getNacked() + ", Timed Out: " + confirms.getTimedOut());
+					result.setSuccessful(false);
+				}
+			}
+			if (!metricsOnly) {
+				result.setResponseHeaders(headers);
+			}
 		} catch (Exception ex) {
 			log.debug(ex.getMessage(), ex);
 			result.setResponseCode("000");
 			result.setResponseMessage(ex.toString());
 		} finally {
-			result.sampleEnd(); // End timimg
+			markBlocked(result, blockMonitor, blockedBefore);
+			if (scheduler == null) {
+				result.sampleEnd(); // End timimg
+			}
+		}
+		if (scheduler != null) {
+			correctForCoordinatedOmission(result, intendedStart, actualStart);
+		}
+		reportNode(result, loop);
+		reportMessageTimings(result, timings);
+		if (txBatcher != null) {
+			txBatcher.addSubResults(result);
 		}
 
 		return result;
 	}
 
-	private byte[] getMessageBytes() {
-		return getMessage().getBytes();
+	/**
+	 * In the open model the sample time is measured from the intended start of
+	 * the first publish, so time spent behind schedule is not lost; the
+	 * latency keeps the time from the actual start. Both leave out the time
+	 * the connection was blocked, like sampleEnd() does. The sample must not
+	 * have been started, setStampAndTime refuses a result with times.
+	 */
+	private void correctForCoordinatedOmission(SampleResult result, long intendedStart, long actualStart) {
+		long now = System.nanoTime();
+		long nowMillis = System.currentTimeMillis();
+		long scheduleLag = actualStart - intendedStart;
+		long sinceIntended = TimeUnit.NANOSECONDS.toMillis(now - intendedStart);
+		long idle = result.getIdleTime();
+		result.setLatency(Math.max(0, TimeUnit.NANOSECONDS.toMillis(now - actualStart) - idle));
+		// the stamp is the start or the end, as JMeter is configured to stamp samples
+		result.setStampAndTime(START_TIMESTAMP ? nowMillis - sinceIntended : nowMillis,
+				Math.max(0, sinceIntended - idle));
+		if (!isMetricsOnly()) {
+			String headers = result.getResponseHeaders() == null ? "" : result.getResponseHeaders();
+			result.setResponseHeaders(
+					headers + "Schedule Lag (us): " + TimeUnit.NANOSECONDS.toMicros(scheduleLag) + "\n");
+		}
+	}
+
+	/**
+	 * @return the scheduler shared by all threads of this sampler, null in the
+	 *         closed model
+	 */
+	RateScheduler getRateScheduler() {
+		double targetRate = getTargetRateAsDouble();
+		if (targetRate <= 0) {
+			return null;
+		}
+		return RateScheduler.get(getName(), targetRate, getRateProfile());
+	}
+
+	/**
+	 * @return the generator of the routing keys, null to publish with the
+	 *         message routing key as it is
+	 */
+	RoutingKeyGenerator getRoutingKeyGenerator() {
+		String strategy = getRoutingStrategy();
+		if (StringUtils.isEmpty(strategy) || RoutingKeyGenerator.FIXED.equals(strategy)) {
+			return null;
+		}
+		String pattern = getMessageRoutingKey();
+		int shards = getShardCountAsInt();
+		if (routingKeys == null || !routingKeys.matches(strategy, pattern, shards)) {
+			routingKeys = RoutingKeyGenerator.create(strategy, getName(), pattern, shards);
+		}
+		return routingKeys;
+	}
+
+	/**
+	 * @return the reader of this thread over the corpus file, mapping the
+	 *         file when it is the first
+	 */
+	PayloadCorpus.Reader getCorpusReader() throws IOException {
+		String file = getCorpusFile();
+		if (StringUtils.isBlank(file)) {
+			throw new IllegalArgumentException("No corpus file");
+		}
+		if (corpusReader == null || !corpusReader.getCorpus().getPath().equals(file)) {
+			JMeterContext context = getThreadContext();
+			int threads = context.getThreadGroup() != null ? context.getThreadGroup().getNumThreads() : 1;
+			corpusReader = PayloadCorpus.get(file).newReader(getCorpusCursor(), context.getThreadNum(),
+					Math.max(1, threads));
+		}
+		return corpusReader;
+	}
+
+	private String getSamplerData(String payloadSource) {
+		if (PAYLOAD_CORPUS.equals(payloadSource)) {
+			return "Corpus: " + getCorpusFile();
+		}
+		if (PAYLOAD_GENERATED.equals(payloadSource)) {
+			return "Generated: " + getPayloadSize() + " " + getPayloadContent();
+		}
+		// evaluating a compiled template again would cost what it saves
+		return messageTemplate != null ? messageTemplate.getSource() : getMessage();
+	}
+
+	/**
+	 * @return the generator of this thread for the payload size and content
+	 */
+	PayloadGenerator getPayloadGenerator() {
+		String size = getPayloadSize();
+		String content = getPayloadContent();
+		if (payloadGenerator == null || !payloadGenerator.matches(size, content)) {
+			payloadGenerator = PayloadGenerator.create(size, content);
+		}
+		return payloadGenerator;
+	}
+
+	/**
+	 * Get the encoded message, rebuilding it only when the message or one of
+	 * its properties changed. When none of them contain functions or
+	 * variables the inputs are not even resolved again, which keeps this
+	 * allocation free. A message with variables is compiled into a
+	 * {@link MessageTemplate} if it can be, and then counts as static here.
+	 */
+	CompiledMessage getCompiledMessage() {
+		if (compiledMessage != null && staticMessage) {
+			return compiledMessage;
+		}
+		if (compiledMessage == null) {
+			messageTemplate = compileTemplate();
+		}
+		String[] inputs = getMessageInputs();
+		if (compiledMessage == null || !compiledMessage.matches(inputs)) {
+			if (compiledMessage == null) {
+				staticMessage = isStaticMessage();
+			}
+			compiledMessage = messageTemplate != null
+					? new CompiledMessage(inputs, messageTemplate, buildProperties())
+					: new CompiledMessage(inputs, getMessage().getBytes(StandardCharsets.UTF_8), buildProperties());
+		}
+		return compiledMessage;
+	}
+
+	private MessageTemplate compileTemplate() {
+		JMeterProperty message = getProperty(MESSAGE);
+		if (!getCompileTemplate() || !(message instanceof FunctionProperty)) {
+			return null;
+		}
+		String source = ((CompoundVariable) message.getObjectValue()).getRawParameters();
+		MessageTemplate template = MessageTemplate.compile(source, getName());
+		if (template == null) {
+			log.debug("Message of {} evaluated for every sample, it cannot be compiled", getName());
+		}
+		return template;
+	}
+
+	private String[] getMessageInputs() {
+		Arguments headers = getHeaders();
+		int headerCount = headers == null ? 0 : headers.getArgumentCount();
+		String[] inputs = new String[MESSAGE_INPUTS.length + 2 * headerCount];
+		for (int i = 0; i < MESSAGE_INPUTS.length; i++) {
+			if (messageTemplate != null && MESSAGE.equals(MESSAGE_INPUTS[i])) {
+				inputs[i] = messageTemplate.getSource();
+			} else {
+				inputs[i] = getPropertyAsString(MESSAGE_INPUTS[i]);
+			}
+		}
+		for (int i = 0; i < headerCount; i++) {
+			Argument header = headers.getArgument(i);
+			inputs[MESSAGE_INPUTS.length + 2 * i] = header.getName();
+			inputs[MESSAGE_INPUTS.length + 2 * i + 1] = header.getValue();
+		}
+		return inputs;
+	}
+
+	private boolean isStaticMessage() {
+		for (String name : MESSAGE_INPUTS) {
+			if (messageTemplate != null && MESSAGE.equals(name)) {
+				continue;
+			}
+			if (getProperty(name) instanceof FunctionProperty) {
+				return false;
+			}
+		}
+		Arguments headers = getHeaders();
+		int headerCount = headers == null ? 0 : headers.getArgumentCount();
+		for (int i = 0; i < headerCount; i++) {
+			Argument header = headers.getArgument(i);
+			if (header.getProperty(Argument.ARG_NAME) instanceof FunctionProperty
+					|| header.getProperty(Argument.VALUE) instanceof FunctionProperty) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -119,6 +485,29 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
 		setProperty(MESSAGE_ROUTING_KEY, content);
 	}
 
+	/**
+	 * @return how the routing key of each message is chosen, see
+	 *         {@link RoutingKeyGenerator}
+	 */
+	public String getRoutingStrategy() {
+		return getPropertyAsString(ROUTING_STRATEGY, RoutingKeyGenerator.FIXED);
+	}
+
+	public void setRoutingStrategy(String strategy) {
+		setProperty(ROUTING_STRATEGY, strategy);
+	}
+
+	/**
+	 * @return the value hashed to choose the shard, usually a variable
+	 */
+	public String getShardKey() {
+		return getPropertyAsString(SHARD_KEY);
+	}
+
+	public void setShardKey(String key) {
+		setProperty(SHARD_KEY, key);
+	}
+
 	/**
 	 * @return the message for the sample
 	 */
@@ -130,6 +519,81 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
 		setProperty(MESSAGE, content);
 	}
 
+	/**
+	 * @return where the message bodies come from, {@value #PAYLOAD_MESSAGE},
+	 *         {@value #PAYLOAD_CORPUS} or {@value #PAYLOAD_GENERATED}
+	 */
+	public String getPayloadSource() {
+		return getPropertyAsString(PAYLOAD_SOURCE, PAYLOAD_MESSAGE);
+	}
+
+	public void setPayloadSource(String source) {
+		setProperty(PAYLOAD_SOURCE, source);
+	}
+
+	/**
+	 * @return the {@link PayloadCorpus} file replayed with the corpus payload
+	 *         source
+	 */
+	public String getCorpusFile() {
+		return getPropertyAsString(CORPUS_FILE);
+	}
+
+	public void setCorpusFile(String file) {
+		setProperty(CORPUS_FILE, file);
+	}
+
+	/**
+	 * @return how the threads walk the corpus,
+	 *         {@value PayloadCorpus#CURSOR_SHARED} or
+	 *         {@value PayloadCorpus#CURSOR_SHARDED}
+	 */
+	public String getCorpusCursor() {
+		return getPropertyAsString(CORPUS_CURSOR, PayloadCorpus.CURSOR_SHARED);
+	}
+
+	public void setCorpusCursor(String cursor) {
+		setProperty(CORPUS_CURSOR, cursor);
+	}
+
+	/**
+	 * @return whether a message with variables is compiled into a
+	 *         {@link MessageTemplate} and assembled for every message, instead
+	 *         of evaluated once per sample
+	 */
+	public Boolean getCompileTemplate() {
+		return getPropertyAsBoolean(COMPILE_TEMPLATE, DEFAULT_COMPILE_TEMPLATE);
+	}
+
+	public void setCompileTemplate(Boolean compile) {
+		setProperty(COMPILE_TEMPLATE, compile);
+	}
+
+	/**
+	 * @return the size distribution of generated payloads, see
+	 *         {@link PayloadGenerator}
+	 */
+	public String getPayloadSize() {
+		return getPropertyAsString(PAYLOAD_SIZE);
+	}
+
+	public void setPayloadSize(String size) {
+		setProperty(PAYLOAD_SIZE, size);
+	}
+
+	/**
+	 * @return what generated payloads are filled with,
+	 *         {@value PayloadGenerator#CONTENT_RANDOM} or
+	 *         {@value PayloadGenerator#CONTENT_COMPRESSIBLE}
+	 */
+	public String getPayloadContent() {
+		return getPropertyAsString(PAYLOAD_CONTENT, PayloadGenerator.CONTENT_RANDOM);
+	}
+
+	public void setPayloadContent(String content) {
+		setProperty(PAYLOAD_CONTENT, content);
+	}
+
 	/**
 	 * @return the message type for the sample
 	 */
@@ -206,12 +670,162 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
 		setProperty(USE_TX, tx);
 	}
 
+	/**
+	 * @return the messages per transaction, 0 to commit once per sample
+	 *         unless a batch time is set
+	 */
+	public String getTxBatchSize() {
+		return getPropertyAsString(TX_BATCH_SIZE, DEFAULT_TX_BATCH_SIZE_STRING);
+	}
+
+	public void setTxBatchSize(String size) {
+		setProperty(TX_BATCH_SIZE, size);
+	}
+
+	protected int getTxBatchSizeAsInt() {
+		return Math.max(0, getPropertyAsInt(TX_BATCH_SIZE));
+	}
+
+	/**
+	 * @return the longest in milliseconds a message waits for its commit, 0
+	 *         for no limit
+	 */
+	public String getTxBatchTime() {
+		return getPropertyAsString(TX_BATCH_TIME, DEFAULT_TX_BATCH_TIME_STRING);
+	}
+
+	public void setTxBatchTime(String millis) {
+		setProperty(TX_BATCH_TIME, millis);
+	}
+
+	protected int getTxBatchTimeAsInt() {
+		return Math.max(0, getPropertyAsInt(TX_BATCH_TIME));
+	}
+
+	/**
+	 * @return whether every message is stamped with its publish time
+	 */
+	public Boolean getStampTimestamp() {
+		return getPropertyAsBoolean(STAMP_TIMESTAMP, DEFAULT_STAMP_TIMESTAMP);
+	}
+
+	public void setStampTimestamp(Boolean stamp) {
+		setProperty(STAMP_TIMESTAMP, stamp);
+	}
+
+	/**
+	 * @return the aggregate messages per second of all threads, empty or 0
+	 *         to publish as fast as the threads can
+	 */
+	public String getTargetRate() {
+		return getPropertyAsString(TARGET_RATE);
+	}
+
+	public void setTargetRate(String rate) {
+		setProperty(TARGET_RATE, rate);
+	}
+
+	protected double getTargetRateAsDouble() {
+		return getPropertyAsDouble(TARGET_RATE);
+	}
+
+	/**
+	 * @return the rate profile, see {@link RateProfile}
+	 */
+	public String getRateProfile() {
+		return getPropertyAsString(RATE_PROFILE);
+	}
+
+	public void setRateProfile(String profile) {
+		setProperty(RATE_PROFILE, profile);
+	}
+
+	public Boolean getUseConfirms() {
+		return getPropertyAsBoolean(USE_CONFIRMS, DEFAULT_USE_CONFIRMS);
+	}
+
+	public void setUseConfirms(Boolean confirms) {
+		setProperty(USE_CONFIRMS, confirms);
+	}
+
+	/**
+	 * @return the maximum number of publishes waiting for a confirm
+	 */
+	public String getConfirmWindow() {
+		return getPropertyAsString(CONFIRM_WINDOW, DEFAULT_CONFIRM_WINDOW_STRING);
+	}
+
+	public void setConfirmWindow(String window) {
+		setProperty(CONFIRM_WINDOW, window);
+	}
+
+	protected int getConfirmWindowAsInt() {
+		if (getPropertyAsInt(CONFIRM_WINDOW) < 1) {
+			return DEFAULT_CONFIRM_WINDOW;
+		}
+		return getPropertyAsInt(CONFIRM_WINDOW);
+	}
+
+	/**
+	 * @return how long in milliseconds to wait for a confirm
+	 */
+	public String getConfirmTimeout() {
+		return getPropertyAsString(CONFIRM_TIMEOUT, DEFAULT_CONFIRM_TIMEOUT_STRING);
+	}
+
+	public void setConfirmTimeout(String timeout) {
+		setProperty(CONFIRM_TIMEOUT, timeout);
+	}
+
+	protected int getConfirmTimeoutAsInt() {
+		if (getPropertyAsInt(CONFIRM_TIMEOUT) < 1) {
+			return DEFAULT_CONFIRM_TIMEOUT;
+		}
+		return getPropertyAsInt(CONFIRM_TIMEOUT);
+	}
+
+	/**
+	 * @return the confirms of the current channel, null without confirms
+	 */
+	protected PublisherConfirmTracker getConfirmTracker() {
+		return confirmTracker;
+	}
+
+	@Override
+	public void threadFinished() {
+		commitPending();
+		if (confirmTracker != null) {
+			try {
+				confirmTracker.drain();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		super.threadFinished();
+	}
+
 	@Override
 	public boolean interrupt() {
+		commitPending();
 		cleanup();
 		return true;
 	}
 
+	/**
+	 * Commit what the last batch holds, it would be rolled back with the
+	 * channel.
+	 */
+	private void commitPending() {
+		if (txBatcher == null) {
+			return;
+		}
+		try {
+			txBatcher.commit();
+		} catch (IOException | ShutdownSignalException e) {
+			log.warn("Failed to commit the last batch", e);
+		}
+	}
+
 	@Override
 	protected Channel getChannel() {
 		return channel;
@@ -223,6 +837,11 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
 	}
 
 	protected AMQP.BasicProperties getProperties() {
+		AMQP.BasicProperties properties = getCompiledMessage().getProperties();
+		return getStampTimestamp() ? stampTimestamp(properties) : properties;
+	}
+
+	private AMQP.BasicProperties buildProperties() {
 		final AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder();
 
 		final int deliveryMode = getPersistent() ? 2 : 1;
@@ -236,17 +855,95 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
 		return builder.build();
 	}
 
+	/**
+	 * Copy the properties with the current time added, this has to allocate
+	 * for every message.
+	 */
+	private AMQP.BasicProperties stampTimestamp(AMQP.BasicProperties properties) {
+		long sendTime = AMQPClock.currentTimeMicros();
+		Map<String, Object> headers = new HashMap<>(properties.getHeaders());
+		headers.put(SEND_TIME_HEADER, sendTime);
+		return properties.builder().headers(headers).timestamp(new Date(TimeUnit.MICROSECONDS.toMillis(sendTime)))
+				.build();
+	}
+
 	@Override
 	protected boolean initChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException {
-		boolean ret = super.initChannel();
-		if (getUseTx()) {
+		if (!super.initChannel()) {
+			return false;
+		}
+		if (txBatcher != null) {
+			// the uncommitted batch was rolled back with the previous channel
+			AMQPMetrics.messagesLost(txBatcher.getPending());
+			txBatcher = null;
+		}
+		if (confirmTracker != null) {
+			// the previous channel is gone, so are its confirms
+			confirmTracker.expireAll();
+			confirmTracker = null;
+		}
+		boolean confirms = getUseConfirms();
+		if (confirms && isChannelShared()) {
+			// the threads would register and count each other's sequence numbers
+			log.warn("Publisher confirms need a channel per thread, publishing without confirms");
+			confirms = false;
+		}
+		if (confirms) {
+			if (getUseTx()) {
+				log.warn("Publisher confirms and transactions are mutually exclusive, using confirms");
+			}
+			channel.confirmSelect();
+			PublisherConfirmTracker tracker = new PublisherConfirmTracker(getConfirmWindowAsInt(),
+					getConfirmTimeoutAsInt());
+			channel.addConfirmListener(tracker);
+			// publishes not confirmed when the connection fails may be lost
+			channel.addShutdownListener(cause -> {
+				if (!cause.isInitiatedByApplication()) {
+					AMQPMetrics.messagesLost(tracker.expireAll());
+				}
+			});
+			confirmTracker = tracker;
+		} else if (getUseTx() && isChannelShared()) {
+			// a commit would cover the messages of the other threads
+			log.warn("Transactions need a channel per thread, publishing without transactions");
+		} else if (getUseTx()) {
 			channel.txSelect();
+			int batchSize = getTxBatchSizeAsInt();
+			int batchTime = getTxBatchTimeAsInt();
+			commitPerSample = batchSize == 0 && batchTime == 0;
+			txBatcher = new TxBatcher(channel, batchSize, batchTime);
 		}
-		return ret;
+		return true;
+	}
+
+	/**
+	 * @return whether the current channel publishes in transactions
+	 */
+	protected boolean isTransactional() {
+		return txBatcher != null;
+	}
+
+	@Override
+	public void testStarted() {
+		super.testStarted();
+		RateScheduler.reset();
+		RoutingKeyGenerator.reset();
+		PayloadCorpus.reset();
+		MessageTemplate.reset();
+	}
+
+	@Override
+	public void testEnded() {
+		super.testEnded();
+		RateScheduler.reset();
+		PayloadCorpus.reset();
 	}
 
 	private Map<String, Object> prepareHeaders() {
 		Map<String, Object> result = new HashMap<>();
+		if (getHeaders() == null) {
+			return result;
+		}
 		Map<String, String> source = getHeaders().getArgumentsAsMap();
 		for (Map.Entry<String, String> item : source.entrySet()) {
 			result.put(item.getKey(), item.getValue());
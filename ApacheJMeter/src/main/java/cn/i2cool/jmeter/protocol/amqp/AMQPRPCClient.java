@@ -0,0 +1,229 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Delivery;
+
+/**
+ * Publishes requests with {@value ReplyDispatcher#DIRECT_REPLY_TO} as the
+ * reply-to and waits for their replies.
+ *
+ * A sample sends {@code iterations} requests with up to {@code outstanding}
+ * of them waiting for a reply at a time. The sample time covers all of them;
+ * the round trip of every request, from the publish to the arrival of its
+ * reply, is in the headers and in the end-to-end latency log. The reply-to
+ * and correlation id of the message are always replaced.
+ */
+public class AMQPRPCClient extends AMQPPublisher {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LoggerFactory.getLogger(AMQPRPCClient.class);
+
+	// ++ These are JMX names, and must not be changed
+	private static final String REPLY_TIMEOUT = "AMQPRPCClient.ReplyTimeout";
+	private static final String OUTSTANDING = "AMQPRPCClient.Outstanding";
+
+	public static final int DEFAULT_REPLY_TIMEOUT = 5000;
+	public static final String DEFAULT_REPLY_TIMEOUT_STRING = Integer.toString(DEFAULT_REPLY_TIMEOUT);
+
+	public static final int DEFAULT_OUTSTANDING = 1;
+	public static final String DEFAULT_OUTSTANDING_STRING = Integer.toString(DEFAULT_OUTSTANDING);
+
+	private transient ArrayDeque<ReplyDispatcher.Pending> inFlight = new ArrayDeque<>();
+	private transient MessageTimings roundTrips = new MessageTimings();
+	private transient int replies;
+	private transient int timeouts;
+	private transient long replyBytes;
+	private transient Delivery lastReply;
+
+	public AMQPRPCClient() {
+		super();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public SampleResult sample(Entry e) {
+		SampleResult result = new SampleResult();
+		result.setSampleLabel(getName());
+		result.setSuccessful(false);
+		result.setResponseCode("500");
+		ReplyDispatcher dispatcher;
+		try {
+			initChannel();
+			dispatcher = ReplyDispatcher.of(getChannel());
+		} catch (Exception ex) {
+			log.error("Failed to initialize channel : ", ex);
+			result.setResponseMessage(ex.toString());
+			return result;
+		}
+		result.setSampleLabel(getTitle());
+		int loop = Math.max(1, getIterationsAsInt());
+		int window = getOutstandingAsInt();
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(getReplyTimeoutAsInt());
+		RateScheduler scheduler;
+		try {
+			scheduler = getRateScheduler();
+		} catch (IllegalArgumentException ex) {
+			log.error("Invalid rate settings : ", ex);
+			result.setResponseMessage(ex.toString());
+			return result;
+		}
+		result.setConnectTime(takeChannelInitMillis());
+		Channel channel = getChannel();
+		PublisherConfirmTracker confirmTracker = getConfirmTracker();
+		LatencyRecorder latency = LatencyRecorder.get(getName());
+		long orphanedBefore = dispatcher.getOrphaned();
+		roundTrips.reset(loop);
+		replies = 0;
+		timeouts = 0;
+		replyBytes = 0;
+		lastReply = null;
+		inFlight.clear();
+		ConnectionBlockMonitor blockMonitor = getBlockMonitor();
+		long blockedBefore = blockMonitor != null ? blockMonitor.getBlockedNanos() : 0;
+		result.sampleStart(); // Start timing
+		try {
+			CompiledMessage message = getCompiledMessage();
+			byte[] messageBytes = message.getBody();
+			String exchange = getExchange();
+			RoutingKeyGenerator routingKeys = getRoutingKeyGenerator();
+			String shardKey = routingKeys != null ? getShardKey() : null;
+			String routingKey = getMessageRoutingKey();
+			boolean useTx = isTransactional();
+
+			for (int idx = 0; idx < loop; idx++) {
+				while (inFlight.size() >= window) {
+					awaitReply(dispatcher, inFlight.poll(), timeoutNanos, latency);
+				}
+				if (scheduler != null) {
+					scheduler.awaitNext();
+				}
+				if (routingKeys != null) {
+					routingKey = routingKeys.next(shardKey);
+				}
+				if (confirmTracker != null) {
+					confirmTracker.register(channel.getNextPublishSeqNo());
+				}
+				ReplyDispatcher.Pending request = dispatcher.register();
+				AMQP.BasicProperties properties = getProperties().builder()
+						.replyTo(ReplyDispatcher.DIRECT_REPLY_TO).correlationId(request.getCorrelationId()).build();
+				channel.basicPublish(exchange, routingKey, properties, messageBytes);
+				AMQPMetrics.published(System.nanoTime() - request.getSentNanos());
+				if (useTx) {
+					// the request is not routed before the commit
+					channel.txCommit();
+				}
+				inFlight.add(request);
+			}
+			while (!inFlight.isEmpty()) {
+				awaitReply(dispatcher, inFlight.poll(), timeoutNanos, latency);
+			}
+
+			boolean metricsOnly = isMetricsOnly();
+			result.setSentBytes((long) messageBytes.length * loop);
+			result.setBodySize(replyBytes);
+			if (lastReply != null) {
+				setResponseBody(result, lastReply.getBody());
+			}
+			if (!metricsOnly) {
+				result.setSamplerData(getMessage());
+				result.setResponseHeaders("Replies: " + replies + "\nTimeouts: " + timeouts + "\nOrphaned Replies: "
+						+ (dispatcher.getOrphaned() - orphanedBefore) + "\n" + roundTrips.format());
+			}
+			if (timeouts == 0) {
+				result.setResponseCodeOK();
+				result.setResponseMessage("OK");
+				result.setSuccessful(true);
+			} else {
+				result.setResponseMessage("Timed out: " + timeouts + " of " + loop + " requests");
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			result.setResponseMessage(ex.toString());
+		} catch (Exception ex) {
+			log.debug(ex.getMessage(), ex);
+			result.setResponseCode("000");
+			result.setResponseMessage(ex.toString());
+		} finally {
+			for (ReplyDispatcher.Pending request : inFlight) {
+				dispatcher.forget(request);
+			}
+			inFlight.clear();
+			markBlocked(result, blockMonitor, blockedBefore);
+			result.sampleEnd(); // End timimg
+		}
+		reportNode(result, loop);
+		if (MESSAGE_TIMINGS_SUBRESULTS.equals(getMessageTimings())) {
+			roundTrips.addSubResults(result);
+		}
+		return result;
+	}
+
+	private void awaitReply(ReplyDispatcher dispatcher, ReplyDispatcher.Pending request, long timeoutNanos,
+			LatencyRecorder latency) throws InterruptedException {
+		Delivery reply = dispatcher.await(request, request.getSentNanos() + timeoutNanos - System.nanoTime());
+		if (reply == null) {
+			timeouts++;
+			return;
+		}
+		replies++;
+		replyBytes += reply.getBody().length;
+		lastReply = reply;
+		roundTrips.record(request.getSentNanos(), request.getReplyNanos());
+		latency.record(TimeUnit.NANOSECONDS.toMicros(request.getReplyNanos() - request.getSentNanos()));
+	}
+
+	/**
+	 * @return how long in milliseconds to wait for a reply
+	 */
+	public String getReplyTimeout() {
+		return getPropertyAsString(REPLY_TIMEOUT, DEFAULT_REPLY_TIMEOUT_STRING);
+	}
+
+	public void setReplyTimeout(String timeout) {
+		setProperty(REPLY_TIMEOUT, timeout);
+	}
+
+	protected int getReplyTimeoutAsInt() {
+		if (getPropertyAsInt(REPLY_TIMEOUT) < 1) {
+			return DEFAULT_REPLY_TIMEOUT;
+		}
+		return getPropertyAsInt(REPLY_TIMEOUT);
+	}
+
+	/**
+	 * @return the maximum number of requests of the thread waiting for a
+	 *         reply
+	 */
+	public String getOutstanding() {
+		return getPropertyAsString(OUTSTANDING, DEFAULT_OUTSTANDING_STRING);
+	}
+
+	public void setOutstanding(String outstanding) {
+		setProperty(OUTSTANDING, outstanding);
+	}
+
+	protected int getOutstandingAsInt() {
+		if (getPropertyAsInt(OUTSTANDING) < 1) {
+			return DEFAULT_OUTSTANDING;
+		}
+		return getPropertyAsInt(OUTSTANDING);
+	}
+
+	@Override
+	public void testEnded() {
+		super.testEnded();
+		LatencyRecorder.reportAndReset();
+	}
+}
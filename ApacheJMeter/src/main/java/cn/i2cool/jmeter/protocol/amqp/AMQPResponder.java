@@ -0,0 +1,354 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Answers requests on a queue for the whole test, so request-reply can be
+ * load tested without the real services.
+ *
+ * Every consumer has its own channel on one connection and its own thread,
+ * waits for a {@link ServiceTime} per request and then replies to the
+ * reply-to with the request's body and correlation id. The replies per
+ * second are logged every {@code amqp.responder.log.interval} seconds (10 by
+ * default, 0 disables), with the totals, the queueing delay and the time
+ * spent per request when the test ends. The queueing delay, from the publish
+ * to the responder, needs the send time header of the request.
+ *
+ * The queue, and the exchange and binding if an exchange is set, are declared
+ * with the same settings as the samplers' and through the same
+ * {@link TopologyDeclaration}; a queue the samplers also declare must have the
+ * same type and flags, or the broker refuses the second declaration.
+ */
+public class AMQPResponder extends AMQPConnectionConfig {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LoggerFactory.getLogger(AMQPResponder.class);
+
+	public static final int DEFAULT_CONSUMERS = 4;
+	public static final String DEFAULT_CONSUMERS_STRING = Integer.toString(DEFAULT_CONSUMERS);
+
+	public static final int DEFAULT_PREFETCH_COUNT = 10;
+	public static final String DEFAULT_PREFETCH_COUNT_STRING = Integer.toString(DEFAULT_PREFETCH_COUNT);
+
+	// ++ These are JMX names, and must not be changed
+	private static final String QUEUE = "AMQPResponder.Queue";
+	private static final String DECLARE_QUEUE = "AMQPResponder.DeclareQueue";
+	private static final String CONSUMERS = "AMQPResponder.Consumers";
+	private static final String PREFETCH_COUNT = "AMQPResponder.PrefetchCount";
+	private static final String SERVICE_TIME = "AMQPResponder.ServiceTime";
+	private static final String QUEUE_TYPE = "AMQPResponder.QueueType";
+	private static final String QUEUE_DURABLE = "AMQPResponder.QueueDurable";
+	private static final String QUEUE_AUTO_DELETE = "AMQPResponder.QueueAutoDelete";
+	private static final String EXCHANGE = "AMQPResponder.Exchange";
+	private static final String EXCHANGE_TYPE = "AMQPResponder.ExchangeType";
+	private static final String EXCHANGE_DURABLE = "AMQPResponder.ExchangeDurable";
+	private static final String EXCHANGE_AUTO_DELETE = "AMQPResponder.ExchangeAutoDelete";
+	private static final String ROUTING_KEY = "AMQPResponder.RoutingKey";
+
+	private transient Connection connection;
+	private transient ExecutorService workers;
+	private transient ScheduledExecutorService reporter;
+	private transient LongAdder replies;
+	private transient LatencyHistogram queueingDelay;
+	private transient LatencyHistogram requestTimes;
+	private transient long startNanos;
+	private transient long lastReplies;
+
+	@Override
+	public void testStarted() {
+		if (StringUtils.isBlank(getQueue())) {
+			return;
+		}
+		ServiceTime serviceTime;
+		try {
+			serviceTime = ServiceTime.parse(getServiceTime());
+		} catch (IllegalArgumentException e) {
+			log.error("Responder on " + getQueue() + " not started", e);
+			return;
+		}
+		int consumers = getConsumersAsInt();
+		replies = new LongAdder();
+		queueingDelay = new LatencyHistogram();
+		requestTimes = new LatencyHistogram();
+		lastReplies = 0;
+		startNanos = System.nanoTime();
+		workers = Executors.newFixedThreadPool(consumers, NioTransport.daemonThreads("AMQP responder"));
+		try {
+			AMQPConnectionSettings settings = getConnectionSettings();
+			ConnectionFactory factory = settings.newConnectionFactory();
+			// one thread per consumer, also in NIO mode, so a service time does
+			// not hold up the other channels
+			factory.setSharedExecutor(workers);
+			connection = settings.newConnection(factory);
+			for (int i = 0; i < consumers; i++) {
+				Channel channel = connection.createChannel();
+				if (i == 0 && getDeclareQueue()) {
+					declareTopology(channel);
+				}
+				channel.basicQos(getPrefetchCountAsInt());
+				channel.basicConsume(getQueue(), false, new Responder(channel, serviceTime));
+			}
+			log.info("Responding on {} with {} consumers, service time {}", getQueue(), consumers,
+					StringUtils.defaultIfEmpty(getServiceTime(), "0"));
+			startReporter();
+		} catch (Exception e) {
+			log.error("Failed to start responder on " + getQueue(), e);
+			stop();
+		}
+	}
+
+	private void declareTopology(Channel channel) throws IOException {
+		// the broker refuses anything else for quorum queues
+		boolean quorum = AMQPSampler.QUEUE_TYPE_QUORUM.equals(getQueueType());
+		Map<String, Object> arguments = quorum
+				? Collections.<String, Object>singletonMap("x-queue-type", AMQPSampler.QUEUE_TYPE_QUORUM)
+				: Collections.<String, Object>emptyMap();
+		TopologyDeclaration topology = new TopologyDeclaration(getVirtualHost(), getHost(), getPortAsInt(),
+				getTimeoutAsInt()).queues(new String[] { getQueue() }, new String[] { getRoutingKey() },
+						quorum || getQueueDurable(), false, !quorum && getQueueAutoDelete(), arguments);
+		if (!StringUtils.isBlank(getExchange())) {
+			topology.exchange(getExchange(), getExchangeType(), getExchangeDurable(), getExchangeAutoDelete());
+		}
+		topology.declare(channel);
+	}
+
+	@Override
+	public void testEnded() {
+		if (workers == null) {
+			return;
+		}
+		stop();
+		long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+		log.info("Responder on {}: {} replies ({}/s), queueing delay {}, request time {}", getQueue(), replies.sum(),
+				replies.sum() / seconds, queueingDelay.summary(), requestTimes.summary());
+	}
+
+	private void stop() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+		try {
+			if (connection != null && connection.isOpen()) {
+				connection.close(getTimeoutAsInt());
+			}
+		} catch (IOException e) {
+			log.error("Failed to close connection", e);
+		}
+		connection = null;
+		if (workers != null) {
+			workers.shutdownNow();
+			workers = null;
+		}
+	}
+
+	private void startReporter() {
+		int seconds = JMeterUtils.getPropDefault("amqp.responder.log.interval", 10);
+		if (seconds <= 0) {
+			return;
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor(NioTransport.daemonThreads("AMQP responder reporter"));
+		reporter.scheduleAtFixedRate(() -> {
+			long current = replies.sum();
+			log.info("Responder on {}: {} replies/s, queueing delay {}", getQueue(), (current - lastReplies) / seconds,
+					queueingDelay.summary());
+			lastReplies = current;
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	private class Responder extends DefaultConsumer {
+
+		private final ServiceTime serviceTime;
+
+		Responder(Channel channel, ServiceTime serviceTime) {
+			super(channel);
+			this.serviceTime = serviceTime;
+		}
+
+		@Override
+		public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+				byte[] body) throws IOException {
+			long start = System.nanoTime();
+			long sendTime = AMQPConsumer.sendTimeMicros(properties);
+			if (sendTime >= 0) {
+				queueingDelay.record(AMQPClock.currentTimeMicros() - sendTime);
+			}
+			long deadline = start + serviceTime.nextNanos();
+			long wait;
+			while ((wait = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+			}
+			if (properties.getReplyTo() != null) {
+				AMQP.BasicProperties reply = new AMQP.BasicProperties.Builder()
+						.correlationId(properties.getCorrelationId()).contentType(properties.getContentType())
+						.build();
+				getChannel().basicPublish("", properties.getReplyTo(), reply, body);
+			}
+			getChannel().basicAck(envelope.getDeliveryTag(), false);
+			replies.increment();
+			requestTimes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		}
+	}
+
+	public String getQueue() {
+		return getPropertyAsString(QUEUE);
+	}
+
+	public void setQueue(String queue) {
+		setProperty(QUEUE, queue);
+	}
+
+	/**
+	 * @return whether the queue, and the exchange and binding if any, are
+	 *         declared
+	 */
+	public boolean getDeclareQueue() {
+		return getPropertyAsBoolean(DECLARE_QUEUE);
+	}
+
+	public void setDeclareQueue(Boolean declare) {
+		setProperty(DECLARE_QUEUE, declare);
+	}
+
+	/**
+	 * @return {@link AMQPSampler#QUEUE_TYPE_CLASSIC} or
+	 *         {@link AMQPSampler#QUEUE_TYPE_QUORUM}
+	 */
+	public String getQueueType() {
+		return getPropertyAsString(QUEUE_TYPE, AMQPSampler.QUEUE_TYPE_CLASSIC);
+	}
+
+	public void setQueueType(String type) {
+		setProperty(QUEUE_TYPE, type);
+	}
+
+	public boolean getQueueDurable() {
+		return getPropertyAsBoolean(QUEUE_DURABLE);
+	}
+
+	public void setQueueDurable(Boolean durable) {
+		setProperty(QUEUE_DURABLE, durable);
+	}
+
+	/**
+	 * @return whether the queue goes away with the responder, the default
+	 */
+	public boolean getQueueAutoDelete() {
+		return getPropertyAsBoolean(QUEUE_AUTO_DELETE, true);
+	}
+
+	public void setQueueAutoDelete(Boolean autoDelete) {
+		setProperty(QUEUE_AUTO_DELETE, autoDelete);
+	}
+
+	/**
+	 * @return the exchange the queue is bound to, none if blank
+	 */
+	public String getExchange() {
+		return getPropertyAsString(EXCHANGE);
+	}
+
+	public void setExchange(String exchange) {
+		setProperty(EXCHANGE, exchange);
+	}
+
+	public String getExchangeType() {
+		return getPropertyAsString(EXCHANGE_TYPE, "direct");
+	}
+
+	public void setExchangeType(String type) {
+		setProperty(EXCHANGE_TYPE, type);
+	}
+
+	public boolean getExchangeDurable() {
+		return getPropertyAsBoolean(EXCHANGE_DURABLE, AMQPSampler.DEFAULT_EXCHANGE_DURABLE);
+	}
+
+	public void setExchangeDurable(Boolean durable) {
+		setProperty(EXCHANGE_DURABLE, durable);
+	}
+
+	public boolean getExchangeAutoDelete() {
+		return getPropertyAsBoolean(EXCHANGE_AUTO_DELETE, AMQPSampler.DEFAULT_EXCHANGE_AUTO_DELETE);
+	}
+
+	public void setExchangeAutoDelete(Boolean autoDelete) {
+		setProperty(EXCHANGE_AUTO_DELETE, autoDelete);
+	}
+
+	/**
+	 * @return the key the queue is bound with
+	 */
+	public String getRoutingKey() {
+		return getPropertyAsString(ROUTING_KEY);
+	}
+
+	public void setRoutingKey(String routingKey) {
+		setProperty(ROUTING_KEY, routingKey);
+	}
+
+	public String getConsumers() {
+		return getPropertyAsString(CONSUMERS, DEFAULT_CONSUMERS_STRING);
+	}
+
+	public void setConsumers(String consumers) {
+		setProperty(CONSUMERS, consumers);
+	}
+
+	protected int getConsumersAsInt() {
+		if (getPropertyAsInt(CONSUMERS) < 1) {
+			return DEFAULT_CONSUMERS;
+		}
+		return getPropertyAsInt(CONSUMERS);
+	}
+
+	public String getPrefetchCount() {
+		return getPropertyAsString(PREFETCH_COUNT, DEFAULT_PREFETCH_COUNT_STRING);
+	}
+
+	public void setPrefetchCount(String prefetchCount) {
+		setProperty(PREFETCH_COUNT, prefetchCount);
+	}
+
+	protected int getPrefetchCountAsInt() {
+		if (getPropertyAsInt(PREFETCH_COUNT) < 1) {
+			return DEFAULT_PREFETCH_COUNT;
+		}
+		return getPropertyAsInt(PREFETCH_COUNT);
+	}
+
+	/**
+	 * @return the service time distribution, see {@link ServiceTime}
+	 */
+	public String getServiceTime() {
+		return getPropertyAsString(SERVICE_TIME);
+	}
+
+	public void setServiceTime(String serviceTime) {
+		setProperty(SERVICE_TIME, serviceTime);
+	}
+}
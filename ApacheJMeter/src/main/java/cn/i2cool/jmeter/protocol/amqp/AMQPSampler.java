@@ -1,25 +1,29 @@
 package cn.i2cool.jmeter.protocol.amqp;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jmeter.samplers.AbstractSampler;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.TestStateListener;
 import org.apache.jmeter.testelement.ThreadListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.rabbitmq.client.Address;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 
-public abstract class AMQPSampler extends AbstractSampler implements ThreadListener {
+public abstract class AMQPSampler extends AbstractSampler implements ThreadListener, TestStateListener {
 
 	/**
 	 * 
@@ -36,6 +40,15 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
 	public static final int DEFAULT_TIMEOUT = 1000;
 	public static final String DEFAULT_TIMEOUT_STRING = Integer.toString(DEFAULT_TIMEOUT);
 
+	public static final int DEFAULT_HEARTBEAT = AMQPConnectionSettings.DEFAULT_HEARTBEAT;
+	public static final String DEFAULT_HEARTBEAT_STRING = Integer.toString(DEFAULT_HEARTBEAT);
+
+	public static final boolean DEFAULT_AUTOMATIC_RECOVERY = false;
+
+	public static final boolean DEFAULT_NIO = false;
+
+	public static final boolean DEFAULT_LABEL_BY_NODE = false;
+
 	public static final int DEFAULT_ITERATIONS = 1;
 	public static final String DEFAULT_ITERATIONS_STRING = Integer.toString(DEFAULT_ITERATIONS);
 
@@ -64,44 +77,201 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
 	private static final String QUEUE_REDECLARE = "AMQPSampler.Redeclare";
 	private static final String QUEUE_EXCLUSIVE = "AMQPSampler.QueueExclusive";
 	private static final String QUEUE_AUTO_DELETE = "AMQPSampler.QueueAutoDelete";
-	private static final int DEFAULT_HEARTBEAT = 1;
+	private static final String QUEUE_TYPE = "AMQPSampler.QueueType";
+	private static final String CONNECTION_POOL_SIZE = "AMQPSampler.ConnectionPoolSize";
+	private static final String CHANNELS_PER_CONNECTION = "AMQPSampler.ChannelsPerConnection";
+	private static final String SHARD_COUNT = "AMQPSampler.ShardCount";
+	private static final String HEARTBEAT = "AMQPSampler.Heartbeat";
+	private static final String AUTOMATIC_RECOVERY = "AMQPSampler.AutomaticRecovery";
+	private static final String NIO = "AMQPSampler.Nio";
+	private static final String NIO_THREADS = "AMQPSampler.NioThreads";
+	private static final String NIO_READ_BUFFER_SIZE = "AMQPSampler.NioReadBufferSize";
+	private static final String NIO_WRITE_BUFFER_SIZE = "AMQPSampler.NioWriteBufferSize";
+	private static final String BALANCING = "AMQPSampler.Balancing";
+	private static final String LABEL_BY_NODE = "AMQPSampler.LabelByNode";
+	private static final String RESULT_MODE = "AMQPSampler.ResultMode";
+	private static final String BODY_SAMPLE_BYTES = "AMQPSampler.BodySampleBytes";
+	private static final String BODY_SAMPLE_RATE = "AMQPSampler.BodySampleRate";
+	private static final String MESSAGE_TIMINGS = "AMQPSampler.MessageTimings";
+
+	/**
+	 * Keep bodies and headers in the SampleResult
+	 */
+	public static final String RESULT_MODE_FULL = "full";
+	/**
+	 * Only keep timing, byte counts and status in the SampleResult
+	 */
+	public static final String RESULT_MODE_METRICS = "metrics";
+
+	/**
+	 * Only time the sample as a whole
+	 */
+	public static final String MESSAGE_TIMINGS_NONE = "none";
+	/**
+	 * Add percentiles of the individual message times to the headers
+	 */
+	public static final String MESSAGE_TIMINGS_PERCENTILES = "percentiles";
+	/**
+	 * Add a sub-result for every message
+	 */
+	public static final String MESSAGE_TIMINGS_SUBRESULTS = "subresults";
+
+	/**
+	 * Declare the queue without x-queue-type
+	 */
+	public static final String QUEUE_TYPE_CLASSIC = "classic";
+	/**
+	 * Replicated queue, always durable and never exclusive or auto-deleted
+	 */
+	public static final String QUEUE_TYPE_QUORUM = "quorum";
+	/**
+	 * Append-only log read with basic.consume from an offset, always durable
+	 * and never exclusive or auto-deleted
+	 */
+	public static final String QUEUE_TYPE_STREAM = "stream";
+
+	public static final int DEFAULT_CONNECTION_POOL_SIZE = 0; // one connection per thread
+	public static final String DEFAULT_CONNECTION_POOL_SIZE_STRING = Integer.toString(DEFAULT_CONNECTION_POOL_SIZE);
+
+	public static final int DEFAULT_CHANNELS_PER_CONNECTION = 0; // one channel per thread
+	public static final String DEFAULT_CHANNELS_PER_CONNECTION_STRING = Integer
+			.toString(DEFAULT_CHANNELS_PER_CONNECTION);
+
+	public static final int DEFAULT_SHARD_COUNT = 0; // not sharded
+	public static final String DEFAULT_SHARD_COUNT_STRING = Integer.toString(DEFAULT_SHARD_COUNT);
 
 	private transient ConnectionFactory factory;
 	private transient Connection connection;
+	private transient AMQPConnectionPool pool;
+	private transient int channelSlot = -1;
+	private transient long channelInitNanos;
+	private transient long bodySampleCount;
+	private transient MessageTimings messageTimings;
+	private transient int reconnectAttempts;
 
 	protected AMQPSampler() {
 		factory = new ConnectionFactory();
-		factory.setRequestedHeartbeat(DEFAULT_HEARTBEAT);
 	}
 
+	/**
+	 * Make sure the sampler has an open channel and the topology is declared.
+	 *
+	 * @return true if a new channel was opened, false if the current one is
+	 *         still usable
+	 */
 	protected boolean initChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException {
 		Channel channel = getChannel();
 		if (channel != null && channel.isOpen()) {
-			return true;
+			return false;
+		}
+		if (channel != null && awaitRecovery(channel)) {
+			return false;
+		}
+		if (reconnectAttempts > 0 || (channel != null && !channel.getConnection().isOpen())) {
+			backoff();
 		}
 		log.warn("createChannel channel {}", channel);
-		channel = createChannel();
-		setChannel(channel);
-		boolean queueConfigured = (getQueue() != null && !getQueue().isEmpty());
-		if (queueConfigured) {
+		long start = System.nanoTime();
+		Channel newChannel;
+		try {
+			newChannel = createChannel();
+		} catch (IOException | RuntimeException e) {
+			reconnectAttempts++;
+			throw e;
+		}
+		reconnectAttempts = 0;
+		setChannel(newChannel);
+		declareTopology(newChannel);
+		channelInitNanos = System.nanoTime() - start;
+		return true;
+	}
+
+	/**
+	 * Declare the queue, exchange and binding once per test for every broker,
+	 * see {@link TopologyDeclaration}.
+	 */
+	private void declareTopology(Channel channel) throws IOException {
+		TopologyDeclaration topology = new TopologyDeclaration(getVirtualHost(), getHost(), getPortAsInt(),
+				getTimeoutAsInt());
+		if (getQueue() != null && !getQueue().isEmpty()) {
+			int[] shards = getShards();
+			String[] queues = new String[shards == null ? 1 : shards.length];
+			String[] bindingKeys = new String[queues.length];
+			for (int i = 0; i < queues.length; i++) {
+				queues[i] = shards == null ? getQueue() : RoutingKeyGenerator.shardName(getQueue(), shards[i]);
+				bindingKeys[i] = shards == null ? getRoutingKey()
+						: RoutingKeyGenerator.shardName(getRoutingKey(), shards[i]);
+			}
+			// the broker refuses anything else for quorum queues and streams
+			boolean replicated = isReplicatedQueue();
+			topology.queues(queues, bindingKeys, replicated || queueDurable(), !replicated && queueExclusive(),
+					!replicated && queueAutoDelete(), getQueueArguments());
 			if (getQueueRedeclare()) {
-				deleteQueue();
+				topology.queueRedeclare(this::deleteQueue);
 			}
-			channel.queueDeclare(getQueue(), queueDurable(), queueExclusive(), queueAutoDelete(), getQueueArguments());
 		}
-		if (!StringUtils.isBlank(getExchange())) { // Use a named exchange
+		if (!StringUtils.isBlank(getExchange())) {
+			topology.exchange(getExchange(), getExchangeType(), getExchangeDurable(), getExchangeAutoDelete());
 			if (getExchangeRedeclare()) {
-				deleteExchange();
+				topology.exchangeRedeclare(exchange -> deleteExchange());
 			}
-			channel.exchangeDeclare(getExchange(), getExchangeType(), getExchangeDurable(), getExchangeAutoDelete(),
-					Collections.<String, Object>emptyMap());
-			if (queueConfigured) {
-				channel.queueBind(getQueue(), getExchange(), getRoutingKey());
+		}
+		topology.declare(channel);
+	}
+
+	/**
+	 * Wait for a channel whose connection is being recovered by the client
+	 * library to come back, up to the timeout.
+	 *
+	 * @return true if the channel is open again, false if its connection is
+	 *         not recovering
+	 * @throws IOException if the connection is still recovering
+	 */
+	private boolean awaitRecovery(Channel channel) throws IOException {
+		if (!ConnectionRecoveryMonitor.isRecovering(channel.getConnection())) {
+			return false;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getTimeoutAsInt());
+		try {
+			while (!channel.isOpen()) {
+				if (deadline - System.nanoTime() <= 0) {
+					throw new IOException("Connection to " + getHost() + " is recovering");
+				}
+				TimeUnit.MILLISECONDS.sleep(10);
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for connection recovery");
 		}
 		return true;
 	}
 
+	/**
+	 * Wait before reconnecting after the connection was lost or the previous
+	 * attempt failed, so the threads do not all reconnect at once.
+	 */
+	private void backoff() throws InterruptedIOException {
+		long delay = Backoff.DEFAULT.getDelay(reconnectAttempts);
+		log.debug("Reconnecting in {} ms, attempt {}", delay, reconnectAttempts + 1);
+		try {
+			TimeUnit.MILLISECONDS.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to reconnect");
+		}
+	}
+
+	/**
+	 * @return how long it took to open the channel and declare the topology
+	 *         in the last call to {@link #initChannel()} that did so, 0 if
+	 *         that has already been reported
+	 */
+	protected long takeChannelInitMillis() {
+		long millis = TimeUnit.NANOSECONDS.toMillis(channelInitNanos);
+		channelInitNanos = 0;
+		return millis;
+	}
+
 	private Map<String, Object> getQueueArguments() {
 		Map<String, Object> arguments = new HashMap<>();
 
@@ -114,6 +284,9 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
 		if (getQueuePriority() != null && !getQueuePriority().isEmpty())
 			arguments.put("x-max-priority", getQueuePriorityAsInt());
 
+		if (isReplicatedQueue())
+			arguments.put("x-queue-type", getQueueType());
+
 		return arguments;
 	}
 
@@ -299,6 +472,106 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
 		return getPropertyAsBoolean(SSL);
 	}
 
+	/**
+	 * @return the requested heartbeat in seconds, 0 disables heartbeats
+	 */
+	public String getHeartbeat() {
+		return getPropertyAsString(HEARTBEAT, DEFAULT_HEARTBEAT_STRING);
+	}
+
+	public void setHeartbeat(String heartbeat) {
+		setProperty(HEARTBEAT, heartbeat);
+	}
+
+	protected int getHeartbeatAsInt() {
+		if (StringUtils.isBlank(getHeartbeat()) || getPropertyAsInt(HEARTBEAT) < 0) {
+			return DEFAULT_HEARTBEAT;
+		}
+		return getPropertyAsInt(HEARTBEAT);
+	}
+
+	/**
+	 * @return whether the client library recovers failed connections and
+	 *         their topology by itself
+	 */
+	public boolean getAutomaticRecovery() {
+		return getPropertyAsBoolean(AUTOMATIC_RECOVERY, DEFAULT_AUTOMATIC_RECOVERY);
+	}
+
+	public void setAutomaticRecovery(Boolean recovery) {
+		setProperty(AUTOMATIC_RECOVERY, recovery);
+	}
+
+	/**
+	 * @return whether connections use NIO on threads shared by all samplers
+	 *         instead of a reader thread each
+	 */
+	public boolean getNio() {
+		return getPropertyAsBoolean(NIO, DEFAULT_NIO);
+	}
+
+	public void setNio(Boolean nio) {
+		setProperty(NIO, nio);
+	}
+
+	/**
+	 * @return the number of NIO threads, empty or 0 for the client default
+	 */
+	public String getNioThreads() {
+		return getPropertyAsString(NIO_THREADS);
+	}
+
+	public void setNioThreads(String threads) {
+		setProperty(NIO_THREADS, threads);
+	}
+
+	/**
+	 * @return the NIO read buffer size in bytes, empty or 0 for the client
+	 *         default
+	 */
+	public String getNioReadBufferSize() {
+		return getPropertyAsString(NIO_READ_BUFFER_SIZE);
+	}
+
+	public void setNioReadBufferSize(String size) {
+		setProperty(NIO_READ_BUFFER_SIZE, size);
+	}
+
+	/**
+	 * @return the NIO write buffer size in bytes, empty or 0 for the client
+	 *         default
+	 */
+	public String getNioWriteBufferSize() {
+		return getPropertyAsString(NIO_WRITE_BUFFER_SIZE);
+	}
+
+	public void setNioWriteBufferSize(String size) {
+		setProperty(NIO_WRITE_BUFFER_SIZE, size);
+	}
+
+	/**
+	 * @return how connections are placed on the hosts of the host list, see
+	 *         {@link ClusterBalancer}
+	 */
+	public String getBalancing() {
+		return getPropertyAsString(BALANCING, ClusterBalancer.SHUFFLE);
+	}
+
+	public void setBalancing(String balancing) {
+		setProperty(BALANCING, balancing);
+	}
+
+	/**
+	 * @return whether the node a sample went to is added to its label
+	 */
+	public boolean getLabelByNode() {
+		return getPropertyAsBoolean(LABEL_BY_NODE, DEFAULT_LABEL_BY_NODE);
+	}
+
+	public void setLabelByNode(Boolean labelByNode) {
+		setProperty(LABEL_BY_NODE, labelByNode);
+	}
+
 	public String getUsername() {
 		return getPropertyAsString(USERNAME);
 	}
@@ -372,6 +645,262 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
 		return getPropertyAsBoolean(QUEUE_AUTO_DELETE);
 	}
 
+	/**
+	 * @return the queue type: classic, quorum or stream
+	 */
+	public String getQueueType() {
+		return getPropertyAsString(QUEUE_TYPE, QUEUE_TYPE_CLASSIC);
+	}
+
+	public void setQueueType(String type) {
+		setProperty(QUEUE_TYPE, type);
+	}
+
+	public boolean isStreamQueue() {
+		return QUEUE_TYPE_STREAM.equals(getQueueType());
+	}
+
+	protected boolean isReplicatedQueue() {
+		return QUEUE_TYPE_QUORUM.equals(getQueueType()) || isStreamQueue();
+	}
+
+	/**
+	 * @return the number of connections shared by all threads, 0 for one
+	 *         connection per thread
+	 */
+	public String getConnectionPoolSize() {
+		return getPropertyAsString(CONNECTION_POOL_SIZE, DEFAULT_CONNECTION_POOL_SIZE_STRING);
+	}
+
+	public void setConnectionPoolSize(String size) {
+		setProperty(CONNECTION_POOL_SIZE, size);
+	}
+
+	protected int getConnectionPoolSizeAsInt() {
+		if (getPropertyAsInt(CONNECTION_POOL_SIZE) < 1) {
+			return DEFAULT_CONNECTION_POOL_SIZE;
+		}
+		return getPropertyAsInt(CONNECTION_POOL_SIZE);
+	}
+
+	/**
+	 * @return the number of channels on every shared connection, 0 for one
+	 *         channel per thread; threads share the channels when there are
+	 *         more threads than channels
+	 */
+	public String getChannelsPerConnection() {
+		return getPropertyAsString(CHANNELS_PER_CONNECTION, DEFAULT_CHANNELS_PER_CONNECTION_STRING);
+	}
+
+	public void setChannelsPerConnection(String channels) {
+		setProperty(CHANNELS_PER_CONNECTION, channels);
+	}
+
+	protected int getChannelsPerConnectionAsInt() {
+		if (getPropertyAsInt(CHANNELS_PER_CONNECTION) < 1) {
+			return DEFAULT_CHANNELS_PER_CONNECTION;
+		}
+		return getPropertyAsInt(CHANNELS_PER_CONNECTION);
+	}
+
+	/**
+	 * @return the number of queues the load is spread over, 0 if the queue
+	 *         and routing key are not sharded; otherwise both are
+	 *         {@link String#format} patterns of the shard index
+	 */
+	public String getShardCount() {
+		return getPropertyAsString(SHARD_COUNT, DEFAULT_SHARD_COUNT_STRING);
+	}
+
+	public void setShardCount(String shards) {
+		setProperty(SHARD_COUNT, shards);
+	}
+
+	protected int getShardCountAsInt() {
+		if (getPropertyAsInt(SHARD_COUNT) < 1) {
+			return DEFAULT_SHARD_COUNT;
+		}
+		return getPropertyAsInt(SHARD_COUNT);
+	}
+
+	/**
+	 * @return the shards whose queues are declared and bound by this thread,
+	 *         null if the queue is not sharded
+	 */
+	protected int[] getShards() {
+		int shards = getShardCountAsInt();
+		return shards > 0 ? RoutingKeyGenerator.allShards(shards) : null;
+	}
+
+	public String getResultMode() {
+		return getPropertyAsString(RESULT_MODE, RESULT_MODE_FULL);
+	}
+
+	public void setResultMode(String mode) {
+		setProperty(RESULT_MODE, mode);
+	}
+
+	/**
+	 * @return true if the SampleResult should only carry timing, byte counts
+	 *         and status
+	 */
+	protected boolean isMetricsOnly() {
+		return RESULT_MODE_METRICS.equals(getResultMode());
+	}
+
+	/**
+	 * @return how many bytes of a body to keep, empty or 0 for all
+	 */
+	public String getBodySampleBytes() {
+		return getPropertyAsString(BODY_SAMPLE_BYTES);
+	}
+
+	public void setBodySampleBytes(String bytes) {
+		setProperty(BODY_SAMPLE_BYTES, bytes);
+	}
+
+	/**
+	 * @return keep the body of one in this many samples, empty or 1 for all
+	 */
+	public String getBodySampleRate() {
+		return getPropertyAsString(BODY_SAMPLE_RATE);
+	}
+
+	public void setBodySampleRate(String rate) {
+		setProperty(BODY_SAMPLE_RATE, rate);
+	}
+
+	/**
+	 * Record the size of a message body and, unless in metrics-only mode or
+	 * skipped by the body sampling policy, the body itself without decoding
+	 * or copying it more than the sampling policy requires.
+	 */
+	protected void setResponseBody(SampleResult result, byte[] body) {
+		setResponseBody(result, body, false);
+	}
+
+	/**
+	 * @param reused whether the array is overwritten later, so a copy is kept
+	 */
+	protected void setResponseBody(SampleResult result, byte[] body, boolean reused) {
+		result.setBodySize((long) body.length);
+		if (isMetricsOnly()) {
+			return;
+		}
+		int rate = getPropertyAsInt(BODY_SAMPLE_RATE);
+		if (rate > 1 && bodySampleCount++ % rate != 0) {
+			return;
+		}
+		int limit = getPropertyAsInt(BODY_SAMPLE_BYTES);
+		if (limit > 0 && body.length > limit) {
+			result.setResponseData(Arrays.copyOf(body, limit));
+		} else {
+			result.setResponseData(reused ? body.clone() : body);
+		}
+		result.setDataEncoding(StandardCharsets.UTF_8.name());
+		result.setDataType(SampleResult.TEXT);
+	}
+
+	/**
+	 * @return how the times of the individual messages of a sample are
+	 *         reported
+	 */
+	public String getMessageTimings() {
+		return getPropertyAsString(MESSAGE_TIMINGS, MESSAGE_TIMINGS_NONE);
+	}
+
+	public void setMessageTimings(String mode) {
+		setProperty(MESSAGE_TIMINGS, mode);
+	}
+
+	/**
+	 * @return the reset per-message timings of this sampler for a sample of
+	 *         {@code messages} messages, null if they are not reported
+	 */
+	protected MessageTimings startMessageTimings(int messages) {
+		if (MESSAGE_TIMINGS_NONE.equals(getMessageTimings())) {
+			return null;
+		}
+		if (messageTimings == null) {
+			messageTimings = new MessageTimings();
+		}
+		messageTimings.reset(messages);
+		return messageTimings;
+	}
+
+	/**
+	 * Report the per-message timings, must be called after sampleEnd().
+	 */
+	protected void reportMessageTimings(SampleResult result, MessageTimings timings) {
+		if (timings == null || timings.getCount() == 0) {
+			return;
+		}
+		if (MESSAGE_TIMINGS_SUBRESULTS.equals(getMessageTimings())) {
+			timings.addSubResults(result);
+		} else {
+			String headers = result.getResponseHeaders() == null ? "" : result.getResponseHeaders();
+			result.setResponseHeaders(headers + timings.format());
+		}
+	}
+
+	/**
+	 * @return the flow control monitor of the current channel's connection,
+	 *         null if there is none
+	 */
+	protected ConnectionBlockMonitor getBlockMonitor() {
+		Channel channel = getChannel();
+		return channel == null ? null : ConnectionBlockMonitor.of(channel.getConnection());
+	}
+
+	/**
+	 * Flag a sample during which the connection was blocked by the broker.
+	 * The blocked time is recorded as the sample's idle time, so it is
+	 * reported apart from the elapsed time; must be called before
+	 * sampleEnd().
+	 */
+	protected void markBlocked(SampleResult result, ConnectionBlockMonitor monitor, long blockedNanosBefore) {
+		if (monitor == null) {
+			return;
+		}
+		long blocked = monitor.getBlockedNanos() - blockedNanosBefore;
+		if (blocked <= 0) {
+			return;
+		}
+		long millis = TimeUnit.NANOSECONDS.toMillis(blocked);
+		result.setIdleTime(millis);
+		if (!isMetricsOnly()) {
+			String headers = result.getResponseHeaders() == null ? "" : result.getResponseHeaders();
+			result.setResponseHeaders(headers + "Blocked (ms): " + millis + "\n" + "Blocked Reason: "
+					+ monitor.getReason() + "\n");
+		}
+		result.setResponseMessage(result.getResponseMessage() + " (connection blocked: " + monitor.getReason() + ")");
+	}
+
+	/**
+	 * Count the sample for the node its channel is connected to and, if
+	 * enabled, add the node to the label so JMeter's reports break the
+	 * results down per node. Must be called after sampleEnd().
+	 */
+	protected void reportNode(SampleResult result, int messages) {
+		Channel channel = getChannel();
+		String node = channel == null ? null : ClusterBalancer.nodeOf(channel.getConnection());
+		if (node == null) {
+			return;
+		}
+		NodeStats.get(node).recordSample(messages, TimeUnit.MILLISECONDS.toMicros(result.getTime()),
+				result.isSuccessful());
+		if (getLabelByNode()) {
+			result.setSampleLabel(result.getSampleLabel() + " @" + node);
+		}
+	}
+
+	protected AMQPConnectionSettings getConnectionSettings() {
+		return new AMQPConnectionSettings(getHost(), getPortAsInt(), getVirtualHost(), getUsername(), getPassword(),
+				connectionSSL(), getTimeoutAsInt(), getHeartbeatAsInt(), getAutomaticRecovery(), getNio(),
+				getPropertyAsInt(NIO_THREADS), getPropertyAsInt(NIO_READ_BUFFER_SIZE),
+				getPropertyAsInt(NIO_WRITE_BUFFER_SIZE), getBalancing());
+	}
+
 	public Boolean getQueueRedeclare() {
 		return getPropertyAsBoolean(QUEUE_REDECLARE);
 	}
@@ -381,6 +910,18 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
 	}
 
 	protected void cleanup() {
+		if (pool != null) {
+			if (channelSlot < 0) {
+				pool.closeChannel(getChannel());
+			} else {
+				// the slot's channel may be shared, the pool closes it
+				setChannel(null);
+				channelSlot = -1;
+			}
+			pool.release();
+			pool = null;
+			return;
+		}
 		try {
 			if (connection != null && connection.isOpen())
 				connection.close();
@@ -400,57 +941,138 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
 		log.info("AMQPSampler.threadFinished started");
 	}
 
+	@Override
+	public void testStarted() {
+		TopologyRegistry.reset();
+		AMQPMetrics.start();
+	}
+
+	@Override
+	public void testStarted(String host) {
+		testStarted();
+	}
+
+	@Override
+	public void testEnded() {
+		TopologyRegistry.reset();
+		AMQPConnectionSettings.reset();
+		AMQPMetrics.stop();
+	}
+
+	@Override
+	public void testEnded(String host) {
+		testEnded();
+	}
+
+	/**
+	 * @return true if the current channel is a pool slot that other threads
+	 *         may use too
+	 */
+	protected boolean isChannelShared() {
+		return channelSlot >= 0;
+	}
+
+	/**
+	 * Get the channel the sampler works on: a channel of its own, or the
+	 * channel of the pool slot the sampler is assigned to.
+	 */
 	protected Channel createChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException {
 		log.info("Creating channel {} - {}", getVirtualHost(), getPortAsInt());
-		if (connection == null || !connection.isOpen()) {
-			factory.setConnectionTimeout(getTimeoutAsInt());
-			factory.setVirtualHost(getVirtualHost());
-			factory.setUsername(getUsername());
-			factory.setPassword(getPassword());
-			if (connectionSSL()) {
-				factory.useSslProtocol("TLS");
+		if (acquirePool()) {
+			if (!pool.hasChannelSlots()) {
+				return pool.openChannel();
 			}
-			String[] hosts = getHost().split(",");
-			Address[] addresses = new Address[hosts.length];
-			for (int i = 0; i < hosts.length; i++) {
-				addresses[i] = new Address(hosts[i], getPortAsInt());
+			if (channelSlot < 0) {
+				channelSlot = pool.assignChannel();
 			}
-			try {
-				connection = factory.newConnection(addresses);
-			} catch (TimeoutException e) {
-				log.error("factory.newConnection TimeoutException", e);
+			return pool.getChannel(channelSlot);
+		}
+		return createTemporaryChannel();
+	}
+
+	/**
+	 * Open a channel of its own for a one-off operation, to be closed with
+	 * {@link #closeChannel(Channel)}.
+	 */
+	protected Channel createTemporaryChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException {
+		if (acquirePool()) {
+			return pool.openChannel();
+		}
+		if (ConnectionRecoveryMonitor.isRecovering(connection)) {
+			throw new IOException("Connection to " + getHost() + " is recovering");
+		}
+		if (connection == null || !connection.isOpen()) {
+			AMQPConnectionSettings settings = getConnectionSettings();
+			if (settings.isNio()) {
+				// the connections only share I/O threads through one factory
+				connection = settings.newConnection(settings.getSharedConnectionFactory());
+			} else {
+				settings.configure(factory);
+				connection = settings.newConnection(factory);
 			}
+			AMQPMetrics.connectionOpened(connection);
 		}
+		long start = System.nanoTime();
 		Channel channel = connection.createChannel();
+		AMQPMetrics.channelOpened(channel, System.nanoTime() - start);
 		if (!channel.isOpen()) {
 			log.error("Failed to open channel: {}", channel.getCloseReason().getLocalizedMessage());
 		}
 		return channel;
 	}
 
+	/**
+	 * @return true if the sampler uses the shared connection pool
+	 */
+	private boolean acquirePool() throws NoSuchAlgorithmException, KeyManagementException {
+		int poolSize = getConnectionPoolSizeAsInt();
+		if (poolSize < 1) {
+			return false;
+		}
+		if (pool == null) {
+			pool = AMQPConnectionPool.acquire(getConnectionSettings(), poolSize, getChannelsPerConnectionAsInt());
+		}
+		return true;
+	}
+
+	/**
+	 * Close a channel obtained from {@link #createTemporaryChannel()}.
+	 */
+	protected void closeChannel(Channel channel) {
+		if (pool != null) {
+			pool.closeChannel(channel);
+			return;
+		}
+		if (channel.isOpen()) {
+			try {
+				channel.close();
+			} catch (IOException | TimeoutException e) {
+				log.error("channel.close failed", e);
+			}
+		}
+	}
+
 	protected void deleteQueue() throws IOException, NoSuchAlgorithmException, KeyManagementException {
+		deleteQueue(getQueue());
+	}
+
+	protected void deleteQueue(String queue) throws IOException, NoSuchAlgorithmException, KeyManagementException {
 		// use a different channel since channel closes on exception.
-		Channel channel = createChannel();
+		Channel channel = createTemporaryChannel();
 		try {
-			log.info("Deleting queue {}", getQueue());
-			channel.queueDelete(getQueue());
+			log.info("Deleting queue {}", queue);
+			channel.queueDelete(queue);
 		} catch (Exception ex) {
 			log.debug(ex.toString(), ex);
 			// ignore it.
 		} finally {
-			if (channel.isOpen()) {
-				try {
-					channel.close();
-				} catch (TimeoutException e) {
-					log.error("channel.close TimeoutException");
-				}
-			}
+			closeChannel(channel);
 		}
 	}
 
 	protected void deleteExchange() throws IOException, NoSuchAlgorithmException, KeyManagementException {
 		// use a different channel since channel closes on exception.
-		Channel channel = createChannel();
+		Channel channel = createTemporaryChannel();
 		try {
 			log.info("Deleting exchange {}", getExchange());
 			channel.exchangeDelete(getExchange());
@@ -458,13 +1080,7 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
 			log.debug(ex.toString(), ex);
 			// ignore it.
 		} finally {
-			if (channel.isOpen()) {
-				try {
-					channel.close();
-				} catch (TimeoutException e) {
-					log.error("channel.close TimeoutException");
-				}
-			}
+			closeChannel(channel);
 		}
 	}
 }
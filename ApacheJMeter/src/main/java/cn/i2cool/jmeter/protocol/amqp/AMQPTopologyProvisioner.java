@@ -0,0 +1,254 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * Declares a templated topology before the thread groups start and deletes
+ * it again when the test ends.
+ *
+ * Queue names and binding keys are {@link String#format} patterns applied to
+ * the queue index, e.g. {@code queue-%04d} bound with {@code key.%04d.#}.
+ * The work is spread over a number of channels on one connection, and the
+ * achieved declarations per second are logged, so this doubles as a
+ * benchmark of the broker's metadata store.
+ */
+public class AMQPTopologyProvisioner extends AMQPConnectionConfig {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LoggerFactory.getLogger(AMQPTopologyProvisioner.class);
+
+	public static final String DEFAULT_QUEUE_PATTERN = "queue-%04d";
+	public static final int DEFAULT_PARALLELISM = 8;
+	public static final String DEFAULT_PARALLELISM_STRING = Integer.toString(DEFAULT_PARALLELISM);
+
+	// ++ These are JMX names, and must not be changed
+	private static final String EXCHANGE = "AMQPTopologyProvisioner.Exchange";
+	private static final String EXCHANGE_TYPE = "AMQPTopologyProvisioner.ExchangeType";
+	private static final String QUEUE_PATTERN = "AMQPTopologyProvisioner.QueuePattern";
+	private static final String QUEUE_COUNT = "AMQPTopologyProvisioner.QueueCount";
+	private static final String QUEUE_START = "AMQPTopologyProvisioner.QueueStart";
+	private static final String BINDING_PATTERN = "AMQPTopologyProvisioner.BindingPattern";
+	private static final String DURABLE = "AMQPTopologyProvisioner.Durable";
+	private static final String PARALLELISM = "AMQPTopologyProvisioner.Parallelism";
+	private static final String TEARDOWN = "AMQPTopologyProvisioner.Teardown";
+
+	private interface Operation {
+		void apply(Channel channel, int index) throws IOException;
+	}
+
+	@Override
+	public void testStarted() {
+		if (getQueueCountAsInt() < 1 && StringUtils.isBlank(getExchange())) {
+			return;
+		}
+		log.info("Provisioning {} queues on {}", getQueueCountAsInt(), getConnectionSettings());
+		run("Provisioning", true);
+	}
+
+	@Override
+	public void testEnded() {
+		if (!getTeardown() || (getQueueCountAsInt() < 1 && StringUtils.isBlank(getExchange()))) {
+			return;
+		}
+		run("Teardown", false);
+	}
+
+	private void run(String phase, boolean declare) {
+		Connection connection = null;
+		try {
+			AMQPConnectionSettings settings = getConnectionSettings();
+			connection = settings.newConnection(settings.newConnectionFactory());
+			String exchange = getExchange();
+			boolean bind = !StringUtils.isBlank(exchange) && !StringUtils.isBlank(getBindingPattern());
+			if (declare) {
+				if (!StringUtils.isBlank(exchange)) {
+					Channel channel = connection.createChannel();
+					channel.exchangeDeclare(exchange, getExchangeType(), getDurable(), false,
+							Collections.<String, Object>emptyMap());
+					channel.close();
+				}
+				runParallel(phase, connection, (channel, index) -> {
+					String queue = queueName(index);
+					channel.queueDeclare(queue, getDurable(), false, false, null);
+					if (bind) {
+						channel.queueBind(queue, exchange, bindingKey(index));
+					}
+				});
+			} else {
+				runParallel(phase, connection, (channel, index) -> channel.queueDelete(queueName(index)));
+				if (!StringUtils.isBlank(exchange)) {
+					Channel channel = connection.createChannel();
+					channel.exchangeDelete(exchange);
+					channel.close();
+				}
+			}
+		} catch (Exception e) {
+			log.error(phase + " failed", e);
+		} finally {
+			try {
+				if (connection != null && connection.isOpen()) {
+					connection.close();
+				}
+			} catch (IOException e) {
+				log.error("Failed to close connection", e);
+			}
+		}
+	}
+
+	private void runParallel(String phase, Connection connection, Operation operation)
+			throws InterruptedException, ExecutionException {
+		int count = getQueueCountAsInt();
+		int start = getQueueStartAsInt();
+		int parallelism = Math.max(1, Math.min(getParallelismAsInt(), count));
+		AtomicInteger next = new AtomicInteger();
+		LongAdder failures = new LongAdder();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		long startNanos = System.nanoTime();
+		try {
+			List<Future<?>> workers = new ArrayList<>();
+			for (int i = 0; i < parallelism; i++) {
+				workers.add(executor.submit(() -> {
+					Channel channel = null;
+					int index;
+					while ((index = next.getAndIncrement()) < count) {
+						try {
+							if (channel == null || !channel.isOpen()) {
+								channel = connection.createChannel();
+							}
+							operation.apply(channel, start + index);
+						} catch (IOException e) {
+							// the channel is closed by the broker on errors
+							failures.increment();
+							log.warn("{} of {} failed: {}", phase, queueName(start + index), e.toString());
+						}
+					}
+					if (channel != null && channel.isOpen()) {
+						channel.close();
+					}
+					return null;
+				}));
+			}
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+		log.info("{} of {} queues with {} channels took {} ms ({} queues/s, {} failures)", phase, count, parallelism,
+				elapsed, count * 1000L / elapsed, failures.sum());
+	}
+
+	private String queueName(int index) {
+		return String.format(getQueuePattern(), index);
+	}
+
+	private String bindingKey(int index) {
+		return String.format(getBindingPattern(), index);
+	}
+
+	public String getExchange() {
+		return getPropertyAsString(EXCHANGE);
+	}
+
+	public void setExchange(String exchange) {
+		setProperty(EXCHANGE, exchange);
+	}
+
+	public String getExchangeType() {
+		return getPropertyAsString(EXCHANGE_TYPE, "topic");
+	}
+
+	public void setExchangeType(String type) {
+		setProperty(EXCHANGE_TYPE, type);
+	}
+
+	public String getQueuePattern() {
+		return getPropertyAsString(QUEUE_PATTERN, DEFAULT_QUEUE_PATTERN);
+	}
+
+	public void setQueuePattern(String pattern) {
+		setProperty(QUEUE_PATTERN, pattern);
+	}
+
+	public String getQueueCount() {
+		return getPropertyAsString(QUEUE_COUNT);
+	}
+
+	public void setQueueCount(String count) {
+		setProperty(QUEUE_COUNT, count);
+	}
+
+	protected int getQueueCountAsInt() {
+		return Math.max(0, getPropertyAsInt(QUEUE_COUNT));
+	}
+
+	public String getQueueStart() {
+		return getPropertyAsString(QUEUE_START);
+	}
+
+	public void setQueueStart(String start) {
+		setProperty(QUEUE_START, start);
+	}
+
+	protected int getQueueStartAsInt() {
+		return Math.max(0, getPropertyAsInt(QUEUE_START));
+	}
+
+	public String getBindingPattern() {
+		return getPropertyAsString(BINDING_PATTERN);
+	}
+
+	public void setBindingPattern(String pattern) {
+		setProperty(BINDING_PATTERN, pattern);
+	}
+
+	public boolean getDurable() {
+		return getPropertyAsBoolean(DURABLE);
+	}
+
+	public void setDurable(Boolean durable) {
+		setProperty(DURABLE, durable);
+	}
+
+	public String getParallelism() {
+		return getPropertyAsString(PARALLELISM, DEFAULT_PARALLELISM_STRING);
+	}
+
+	public void setParallelism(String parallelism) {
+		setProperty(PARALLELISM, parallelism);
+	}
+
+	protected int getParallelismAsInt() {
+		if (getPropertyAsInt(PARALLELISM) < 1) {
+			return DEFAULT_PARALLELISM;
+		}
+		return getPropertyAsInt(PARALLELISM);
+	}
+
+	public boolean getTeardown() {
+		return getPropertyAsBoolean(TEARDOWN);
+	}
+
+	public void setTeardown(Boolean teardown) {
+		setProperty(TEARDOWN, teardown);
+	}
+}
@@ -0,0 +1,100 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Acknowledges the deliveries of a channel in batches: one basic.ack with
+ * multiple=true for every {@code size} deliveries or when the oldest
+ * unacknowledged delivery is {@code maxDelay} old, whichever comes first,
+ * optionally committing the transaction with every batch.
+ *
+ * The time limit is only checked when a delivery is added or
+ * {@link #flushIfDue()} is called. The methods are synchronized so the
+ * thread interrupting a sampler can flush while the sampler thread is
+ * blocked in a receive.
+ */
+public class AckBatcher {
+
+	private final Channel channel;
+	private final int size;
+	private final long maxDelayNanos;
+	private final boolean commit;
+
+	private long lastTag;
+	private int pending;
+	private long firstPendingNanos;
+
+	// since the last takeSampleStats()
+	private int batches;
+	private long ackNanos;
+
+	/**
+	 * @param size           deliveries per batch
+	 * @param maxDelayMillis the longest a delivery waits for its ack, 0 for
+	 *                       no limit
+	 * @param commit         whether to commit the transaction with every
+	 *                       batch
+	 */
+	public AckBatcher(Channel channel, int size, long maxDelayMillis, boolean commit) {
+		this.channel = channel;
+		this.size = Math.max(1, size);
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+		this.commit = commit;
+	}
+
+	public synchronized void add(long deliveryTag) throws IOException {
+		lastTag = deliveryTag;
+		if (pending++ == 0) {
+			firstPendingNanos = System.nanoTime();
+		}
+		if (pending >= size) {
+			flush();
+		} else {
+			flushIfDue();
+		}
+	}
+
+	/**
+	 * Acknowledge the pending deliveries if the oldest has waited long
+	 * enough.
+	 */
+	public synchronized void flushIfDue() throws IOException {
+		if (pending > 0 && maxDelayNanos > 0 && System.nanoTime() - firstPendingNanos >= maxDelayNanos) {
+			flush();
+		}
+	}
+
+	/**
+	 * Acknowledge the pending deliveries now.
+	 */
+	public synchronized void flush() throws IOException {
+		if (pending == 0 || !channel.isOpen()) {
+			return;
+		}
+		long start = System.nanoTime();
+		channel.basicAck(lastTag, pending > 1);
+		if (commit) {
+			channel.txCommit();
+		}
+		long nanos = System.nanoTime() - start;
+		AMQPMetrics.acked(pending, nanos);
+		pending = 0;
+		batches++;
+		ackNanos += nanos;
+	}
+
+	/**
+	 * @return the ack batches and the time spent acknowledging since the
+	 *         previous call, for the SampleResult headers
+	 */
+	public synchronized String takeSampleStats() {
+		String stats = "Ack Batches: " + batches + "\nAck Time (us): " + TimeUnit.NANOSECONDS.toMicros(ackNanos)
+				+ "\n";
+		batches = 0;
+		ackNanos = 0;
+		return stats;
+	}
+}
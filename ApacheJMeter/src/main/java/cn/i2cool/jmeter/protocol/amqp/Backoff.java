@@ -0,0 +1,39 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.rabbitmq.client.RecoveryDelayHandler;
+
+/**
+ * Exponential backoff with jitter for reconnects.
+ *
+ * The delay doubles with every attempt up to a maximum, and a random half of
+ * it is dropped so that threads which lost their connections at the same
+ * moment do not all come back at the same moment.
+ */
+public class Backoff implements RecoveryDelayHandler {
+
+	public static final long DEFAULT_INITIAL_DELAY = 250;
+	public static final long DEFAULT_MAX_DELAY = 30000;
+
+	public static final Backoff DEFAULT = new Backoff(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+
+	private final long initialDelay;
+	private final long maxDelay;
+
+	public Backoff(long initialDelay, long maxDelay) {
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @param recoveryAttempts the number of attempts that failed so far
+	 * @return the delay in milliseconds before the next attempt
+	 */
+	@Override
+	public long getDelay(int recoveryAttempts) {
+		long delay = Math.min(maxDelay, initialDelay << Math.min(Math.max(recoveryAttempts, 0), 20));
+		long half = delay / 2;
+		return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+	}
+}
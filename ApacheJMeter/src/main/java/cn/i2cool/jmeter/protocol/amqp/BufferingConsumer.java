@@ -0,0 +1,125 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Push consumer that hands deliveries over to the sampler thread through a
+ * bounded queue.
+ *
+ * The capacity should be at least the channel prefetch count. When the queue
+ * is full the dispatch thread of a channel of its own waits for room, which
+ * pushes back on the broker. On a shared channel the dispatch thread serves
+ * the consumers of other threads too, so it gives up after a short wait: the
+ * delivery is rejected and requeued, or with automatic acks dropped and
+ * counted as lost.
+ */
+public class BufferingConsumer extends DefaultConsumer {
+
+	private static final Logger log = LoggerFactory.getLogger(BufferingConsumer.class);
+
+	// how long the dispatch thread waits for room in the queue
+	private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+	private final BlockingQueue<Delivery> deliveries;
+	private final boolean autoAck;
+	private final boolean shared;
+	private boolean overflowed;
+
+	/**
+	 * @param autoAck whether the deliveries are acknowledged by the broker
+	 *                already, so they cannot be requeued
+	 * @param shared  whether other threads consume on the channel too
+	 */
+	public BufferingConsumer(Channel channel, int capacity, boolean autoAck, boolean shared) {
+		super(channel);
+		this.deliveries = new ArrayBlockingQueue<>(capacity);
+		this.autoAck = autoAck;
+		this.shared = shared;
+	}
+
+	@Override
+	public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
+			throws IOException {
+		Delivery delivery = new Delivery(envelope, properties, body);
+		try {
+			while (!deliveries.offer(delivery, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (shared) {
+					overflow(consumerTag, envelope);
+					return;
+				}
+				if (!getChannel().isOpen()) {
+					// the channel is gone, the broker redelivers what was not acknowledged
+					return;
+				}
+			}
+			AMQPMetrics.consumerBuffered(1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			overflow(consumerTag, envelope);
+		}
+	}
+
+	private void overflow(String consumerTag, Envelope envelope) throws IOException {
+		if (!overflowed) {
+			log.warn("Consumer {} buffer full, {} deliveries", consumerTag, autoAck ? "dropping" : "requeueing");
+			overflowed = true;
+		}
+		if (autoAck) {
+			AMQPMetrics.messagesLost(1);
+		} else {
+			getChannel().basicReject(envelope.getDeliveryTag(), true);
+		}
+	}
+
+	@Override
+	public void handleCancel(String consumerTag) {
+		log.warn("Consumer {} cancelled by the broker", consumerTag);
+	}
+
+	@Override
+	public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+		log.debug("Consumer {} shut down: {}", consumerTag, sig.getMessage());
+	}
+
+	/**
+	 * Take the next delivery, waiting up to {@code timeoutMillis}.
+	 *
+	 * @return the delivery, or null if none arrived in time
+	 */
+	public Delivery next(long timeoutMillis) throws InterruptedException {
+		Delivery delivery = deliveries.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		if (delivery != null) {
+			AMQPMetrics.consumerBuffered(-1);
+		}
+		return delivery;
+	}
+
+	/**
+	 * Drop the buffered deliveries once the consumer is no longer used, the
+	 * broker redelivers them when their channel closes.
+	 */
+	public void discard() {
+		int dropped = 0;
+		while (deliveries.poll() != null) {
+			dropped++;
+		}
+		AMQPMetrics.consumerBuffered(-dropped);
+	}
+
+	public int getBuffered() {
+		return deliveries.size();
+	}
+}
@@ -0,0 +1,131 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+
+/**
+ * Decides which node of a cluster host list a new connection goes to, and
+ * remembers where every connection ended up for {@link NodeStats}.
+ *
+ * The connection is made to the first address of the ordered list, the
+ * others are only tried when it fails or, with automatic recovery, when the
+ * connection recovers.
+ */
+public final class ClusterBalancer {
+
+	/**
+	 * Every connection tries the nodes in its own random order
+	 */
+	public static final String SHUFFLE = "shuffle";
+	/**
+	 * Connections start at the next node after the one the previous
+	 * connection started at
+	 */
+	public static final String ROUND_ROBIN = "round-robin";
+	/**
+	 * Connections start at the node with the fewest open connections
+	 */
+	public static final String LEAST_CONNECTIONS = "least-connections";
+
+	private static final Map<String, AtomicInteger> NEXT_NODE = new ConcurrentHashMap<>();
+	private static final Map<Connection, String> NODE_OF = new ConcurrentHashMap<>();
+
+	private ClusterBalancer() {
+	}
+
+	/**
+	 * @return the addresses in the order the next connection should try them
+	 */
+	public static List<Address> order(String strategy, Address[] addresses) {
+		List<Address> ordered = new ArrayList<>(Arrays.asList(addresses));
+		if (ROUND_ROBIN.equals(strategy)) {
+			AtomicInteger next = NEXT_NODE.computeIfAbsent(Arrays.toString(addresses), k -> new AtomicInteger());
+			Collections.rotate(ordered, -((next.getAndIncrement() & Integer.MAX_VALUE) % ordered.size()));
+		} else {
+			Collections.shuffle(ordered);
+			if (LEAST_CONNECTIONS.equals(strategy)) {
+				// stable, so nodes with equal counts stay shuffled
+				ordered.sort(Comparator
+						.comparingLong(address -> NodeStats.get(address.toString()).getOpenConnections()));
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * Start tracking which of the {@code addresses} a new connection is
+	 * connected to, until it is closed.
+	 */
+	public static void connected(Connection connection, List<Address> addresses) {
+		String node = identify(connection, addresses);
+		NODE_OF.put(connection, node);
+		NodeStats.get(node).connectionOpened();
+		connection.addShutdownListener(cause -> {
+			String current = NODE_OF.get(connection);
+			if (current != null && !ConnectionRecoveryMonitor.willRecover(connection, cause)) {
+				NODE_OF.remove(connection);
+				NodeStats.get(current).connectionClosed();
+			}
+		});
+		if (connection instanceof Recoverable) {
+			((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+				@Override
+				public void handleRecovery(Recoverable recoverable) {
+					// the connection may have moved to another node
+					String moved = identify(connection, addresses);
+					String previous = NODE_OF.put(connection, moved);
+					if (!moved.equals(previous)) {
+						if (previous != null) {
+							NodeStats.get(previous).connectionClosed();
+						}
+						NodeStats.get(moved).connectionOpened();
+					}
+				}
+
+				@Override
+				public void handleRecoveryStarted(Recoverable recoverable) {
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the node the connection is connected to, null if unknown
+	 */
+	public static String nodeOf(Connection connection) {
+		return connection == null ? null : NODE_OF.get(connection);
+	}
+
+	private static String identify(Connection connection, List<Address> addresses) {
+		InetAddress connected = connection.getAddress();
+		for (Address address : addresses) {
+			int port = address.getPort() > 0 ? address.getPort() : connection.getPort();
+			if (port != connection.getPort()) {
+				continue;
+			}
+			try {
+				for (InetAddress candidate : InetAddress.getAllByName(address.getHost())) {
+					if (candidate.equals(connected)) {
+						return address.toString();
+					}
+				}
+			} catch (UnknownHostException e) {
+				// not this one
+			}
+		}
+		return connected.getHostAddress() + ":" + connection.getPort();
+	}
+}
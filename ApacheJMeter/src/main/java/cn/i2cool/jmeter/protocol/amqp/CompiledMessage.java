@@ -0,0 +1,58 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.Arrays;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * The encoded body and properties of a publisher's message, together with
+ * the resolved property values they were built from.
+ *
+ * The publisher keeps one per thread and only rebuilds it when one of the
+ * inputs changed, so a static message is encoded exactly once. A message
+ * compiled into a {@link MessageTemplate} is assembled again for every
+ * body taken.
+ */
+final class CompiledMessage {
+
+	private final String[] inputs;
+	private final byte[] body;
+	private final MessageTemplate template;
+	private final AMQP.BasicProperties properties;
+
+	CompiledMessage(String[] inputs, byte[] body, AMQP.BasicProperties properties) {
+		this(inputs, body, null, properties);
+	}
+
+	CompiledMessage(String[] inputs, MessageTemplate template, AMQP.BasicProperties properties) {
+		this(inputs, null, template, properties);
+	}
+
+	private CompiledMessage(String[] inputs, byte[] body, MessageTemplate template,
+			AMQP.BasicProperties properties) {
+		this.inputs = inputs;
+		this.body = body;
+		this.template = template;
+		this.properties = properties;
+	}
+
+	boolean matches(String[] otherInputs) {
+		return Arrays.equals(inputs, otherInputs);
+	}
+
+	/**
+	 * @return the body, for a template the next one assembled into an array
+	 *         that is reused
+	 */
+	byte[] getBody() {
+		return template != null ? template.render() : body;
+	}
+
+	boolean isTemplate() {
+		return template != null;
+	}
+
+	AMQP.BasicProperties getProperties() {
+		return properties;
+	}
+}
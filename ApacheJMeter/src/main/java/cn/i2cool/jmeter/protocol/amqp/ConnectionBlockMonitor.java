@@ -0,0 +1,109 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Connection;
+
+/**
+ * Tracks how long a connection has been blocked by the broker's flow control,
+ * e.g. because of a memory or disk alarm. While blocked, basicPublish stalls
+ * without an error.
+ *
+ * The callbacks run on the connection thread; samplers look the monitor of
+ * their channel's connection up with {@link #of(Connection)}.
+ */
+public class ConnectionBlockMonitor implements BlockedListener {
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionBlockMonitor.class);
+
+	private static final Map<Connection, ConnectionBlockMonitor> MONITORS = new ConcurrentHashMap<>();
+
+	private final String name;
+	private final AtomicLong blockedNanos = new AtomicLong();
+	private final AtomicLong blocks = new AtomicLong();
+	private volatile long blockedSince;
+	private volatile String reason;
+
+	private ConnectionBlockMonitor(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Start tracking a newly opened connection until it shuts down.
+	 */
+	public static ConnectionBlockMonitor register(Connection connection) {
+		ConnectionBlockMonitor monitor = new ConnectionBlockMonitor(String.valueOf(connection));
+		connection.addBlockedListener(monitor);
+		connection.addShutdownListener(cause -> {
+			monitor.handleUnblocked();
+			if (!ConnectionRecoveryMonitor.willRecover(connection, cause)) {
+				MONITORS.remove(connection);
+			}
+		});
+		MONITORS.put(connection, monitor);
+		return monitor;
+	}
+
+	/**
+	 * @return the monitor of the connection, null if it is not tracked
+	 */
+	public static ConnectionBlockMonitor of(Connection connection) {
+		return connection == null ? null : MONITORS.get(connection);
+	}
+
+	@Override
+	public void handleBlocked(String reason) {
+		this.reason = reason;
+		if (blockedSince == 0) {
+			blockedSince = Math.max(System.nanoTime(), 1);
+			blocks.incrementAndGet();
+			AMQPMetrics.connectionBlocked();
+			log.warn("Connection {} blocked by the broker: {}", name, reason);
+		}
+	}
+
+	@Override
+	public void handleUnblocked() {
+		long since = blockedSince;
+		if (since == 0) {
+			return;
+		}
+		blockedSince = 0;
+		long duration = System.nanoTime() - since;
+		blockedNanos.addAndGet(duration);
+		AMQPMetrics.connectionUnblocked(duration);
+		log.info("Connection {} unblocked after {} ms", name, TimeUnit.NANOSECONDS.toMillis(duration));
+	}
+
+	public boolean isBlocked() {
+		return blockedSince != 0;
+	}
+
+	/**
+	 * @return the reason given by the broker for the last block
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	public long getBlocks() {
+		return blocks.get();
+	}
+
+	/**
+	 * @return the total time the connection has been blocked, including a
+	 *         block that is still going on
+	 */
+	public long getBlockedNanos() {
+		long since = blockedSince;
+		long total = blockedNanos.get();
+		return since == 0 ? total : total + System.nanoTime() - since;
+	}
+}
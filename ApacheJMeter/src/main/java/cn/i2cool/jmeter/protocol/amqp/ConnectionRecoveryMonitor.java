@@ -0,0 +1,101 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Measures how long an automatically recovering connection is down, from
+ * the failure to the end of its recovery.
+ *
+ * Samplers use {@link #isRecovering(Connection)} to wait for the recovery
+ * instead of opening a new connection, which is what causes reconnect
+ * storms when a broker node restarts.
+ */
+public class ConnectionRecoveryMonitor implements RecoveryListener, ShutdownListener {
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionRecoveryMonitor.class);
+
+	private static final Map<Connection, ConnectionRecoveryMonitor> MONITORS = new ConcurrentHashMap<>();
+
+	private final Connection connection;
+	private volatile long failedSince;
+
+	private ConnectionRecoveryMonitor(Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Start tracking a newly opened connection, does nothing unless automatic
+	 * recovery is enabled for it.
+	 */
+	public static void register(Connection connection) {
+		if (!(connection instanceof Recoverable)) {
+			return;
+		}
+		ConnectionRecoveryMonitor monitor = new ConnectionRecoveryMonitor(connection);
+		((Recoverable) connection).addRecoveryListener(monitor);
+		connection.addShutdownListener(monitor);
+		MONITORS.put(connection, monitor);
+	}
+
+	/**
+	 * @return true if the connection failed and the client library is still
+	 *         trying to recover it
+	 */
+	public static boolean isRecovering(Connection connection) {
+		ConnectionRecoveryMonitor monitor = connection == null ? null : MONITORS.get(connection);
+		return monitor != null && monitor.failedSince != 0;
+	}
+
+	/**
+	 * @return true if a connection or channel that shut down because of
+	 *         {@code cause} is going to be recovered by the client library
+	 */
+	public static boolean willRecover(Object shutdownNotifier, ShutdownSignalException cause) {
+		return shutdownNotifier instanceof Recoverable && cause.isHardError() && !cause.isInitiatedByApplication();
+	}
+
+	@Override
+	public void shutdownCompleted(ShutdownSignalException cause) {
+		if (!willRecover(connection, cause)) {
+			MONITORS.remove(connection);
+			if (failedSince != 0) {
+				failedSince = 0;
+				AMQPMetrics.recoveryAbandoned();
+			}
+			return;
+		}
+		if (failedSince == 0) {
+			failedSince = Math.max(System.nanoTime(), 1);
+			AMQPMetrics.connectionFailed();
+			log.warn("Connection {} failed, recovering: {}", connection, cause.getMessage());
+		}
+	}
+
+	@Override
+	public void handleRecoveryStarted(Recoverable recoverable) {
+		log.info("Connection {} recovery started", connection);
+	}
+
+	@Override
+	public void handleRecovery(Recoverable recoverable) {
+		long since = failedSince;
+		if (since == 0) {
+			return;
+		}
+		failedSince = 0;
+		long duration = System.nanoTime() - since;
+		AMQPMetrics.connectionRecovered(duration);
+		log.info("Connection {} recovered after {} ms", connection, TimeUnit.NANOSECONDS.toMillis(duration));
+	}
+}
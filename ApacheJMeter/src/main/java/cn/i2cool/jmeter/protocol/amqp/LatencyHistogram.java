@@ -0,0 +1,98 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size, log-linear histogram of microsecond values that can be
+ * recorded into from many threads without locking.
+ *
+ * Like HdrHistogram every power of two is split into 64 linear sub-buckets,
+ * so reported values are within 1.6% of the recorded ones. Values above one
+ * hour are clamped.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+
+	public static final long MAX_VALUE = 3600L * 1000 * 1000;
+
+	private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+	private final LongAdder totalCount = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Long::max, 0L);
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		int subBucket = (int) (value >>> magnitude);
+		return magnitude * SUB_BUCKET_HALF_COUNT + subBucket;
+	}
+
+	/**
+	 * @return the highest value that is recorded into the same bucket
+	 */
+	static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int magnitude = index / SUB_BUCKET_HALF_COUNT - 1;
+		long subBucket = index - magnitude * SUB_BUCKET_HALF_COUNT;
+		return ((subBucket + 1) << magnitude) - 1;
+	}
+
+	public void record(long value) {
+		long clamped = Math.min(Math.max(value, 0), MAX_VALUE);
+		counts.incrementAndGet(indexOf(clamped));
+		totalCount.increment();
+		sum.add(clamped);
+		max.accumulate(clamped);
+	}
+
+	public long getTotalCount() {
+		return totalCount.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long count = totalCount.sum();
+		return count == 0 ? 0 : sum.sum() / count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the value below which {@code percentile} percent of the
+	 *         recorded values fall
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = totalCount.sum();
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestEquivalentValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * @return count, mean, p50, p99, p99.9 and max on one line
+	 */
+	public String summary() {
+		return "count=" + getTotalCount() + " mean=" + getMean() + "us p50=" + getValueAtPercentile(50) + "us p99="
+				+ getValueAtPercentile(99) + "us p99.9=" + getValueAtPercentile(99.9) + "us max=" + getMax() + "us";
+	}
+}
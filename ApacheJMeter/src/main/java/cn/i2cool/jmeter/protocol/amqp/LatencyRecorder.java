@@ -0,0 +1,100 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Named end-to-end latency recorders shared by all threads of a test.
+ *
+ * Every recorder keeps a histogram for the whole test and one for the current
+ * reporting interval. The intervals are logged every
+ * {@code amqp.latency.report.interval} seconds (10 by default, 0 disables),
+ * the totals when the test ends.
+ */
+public class LatencyRecorder {
+
+	private static final Logger log = LoggerFactory.getLogger(LatencyRecorder.class);
+
+	private static final Map<String, LatencyRecorder> RECORDERS = new ConcurrentHashMap<>();
+	private static ScheduledExecutorService reporter;
+
+	private final String name;
+	private final LatencyHistogram total = new LatencyHistogram();
+	private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+
+	private LatencyRecorder(String name) {
+		this.name = name;
+	}
+
+	public static LatencyRecorder get(String name) {
+		LatencyRecorder recorder = RECORDERS.get(name);
+		if (recorder == null) {
+			recorder = RECORDERS.computeIfAbsent(name, LatencyRecorder::new);
+			startReporter();
+		}
+		return recorder;
+	}
+
+	public void record(long micros) {
+		total.record(micros);
+		interval.get().record(micros);
+	}
+
+	public LatencyHistogram getTotal() {
+		return total;
+	}
+
+	/**
+	 * Start a new interval. Values recorded concurrently with the swap may
+	 * miss the interval they belong to, they are always in the total.
+	 *
+	 * @return the interval that just ended
+	 */
+	public LatencyHistogram nextInterval() {
+		return interval.getAndSet(new LatencyHistogram());
+	}
+
+	private static synchronized void startReporter() {
+		int seconds = JMeterUtils.getPropDefault("amqp.latency.report.interval", 10);
+		if (reporter != null || seconds <= 0) {
+			return;
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "AMQP latency reporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reporter.scheduleAtFixedRate(LatencyRecorder::reportIntervals, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	private static void reportIntervals() {
+		for (LatencyRecorder recorder : RECORDERS.values()) {
+			LatencyHistogram histogram = recorder.nextInterval();
+			if (histogram.getTotalCount() > 0) {
+				log.info("End-to-end latency {} interval: {}", recorder.name, histogram.summary());
+			}
+		}
+	}
+
+	/**
+	 * Log the totals of every recorder and forget them, called at test end.
+	 */
+	public static synchronized void reportAndReset() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+		for (LatencyRecorder recorder : RECORDERS.values()) {
+			log.info("End-to-end latency {} total: {}", recorder.name, recorder.total.summary());
+		}
+		RECORDERS.clear();
+	}
+}
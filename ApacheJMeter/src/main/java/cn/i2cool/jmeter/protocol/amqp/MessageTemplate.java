@@ -0,0 +1,291 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jmeter.threads.JMeterContext;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
+
+/**
+ * A message body with {@code ${...}} references, compiled once into encoded
+ * text segments and slots, so a message is assembled from bytes instead of
+ * evaluating and encoding the whole string every time.
+ *
+ * The slots understood are {@code ${name}} variables, {@code ${__threadNum}},
+ * {@code ${__UUID}}, {@code ${__time}} (milliseconds) and
+ * {@code ${__counter(TRUE)}} or {@code ${__counter(FALSE)}}, with or without
+ * empty parentheses and trailing empty arguments. A template with anything
+ * else, including nested references and escapes, is not compiled and the
+ * message is evaluated by JMeter as before.
+ *
+ * Global counters are shared by all threads of a sampler and start at 1
+ * like those of JMeter; every message takes the next value. They are told
+ * apart by the sampler name and the template, as every thread has a clone of
+ * the sampler. A template
+ * belongs to one thread, the assembled body is reused while its length does
+ * not change.
+ */
+public final class MessageTemplate {
+
+	private static final Map<String, AtomicLong> GLOBAL_COUNTERS = new ConcurrentHashMap<>();
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private enum Kind {
+		TEXT, VARIABLE, THREAD_NUM, UUID, TIME, COUNTER, GLOBAL_COUNTER
+	}
+
+	private static final class Slot {
+		final Kind kind;
+		final byte[] text;
+		final String variable;
+		final String unresolved;
+		final AtomicLong globalCounter;
+
+		Slot(Kind kind, byte[] text, String variable, String unresolved, AtomicLong globalCounter) {
+			this.kind = kind;
+			this.text = text;
+			this.variable = variable;
+			this.unresolved = unresolved;
+			this.globalCounter = globalCounter;
+		}
+	}
+
+	private final String source;
+	private final Slot[] slots;
+	private long counter;
+	private byte[] buffer = new byte[256];
+	private int length;
+	private byte[] body;
+
+	private MessageTemplate(String source, Slot[] slots) {
+		this.source = source;
+		this.slots = slots;
+	}
+
+	/**
+	 * @param source the message as written, before evaluation
+	 * @param name   the sampler, global counters are shared per sampler name
+	 *               and source
+	 * @return the compiled template, null if the message cannot be compiled
+	 */
+	public static MessageTemplate compile(String source, String name) {
+		List<Slot> slots = new ArrayList<>();
+		if (source.indexOf('\\') >= 0) {
+			return null;
+		}
+		String counterPrefix = name + "#" + source + "#";
+		int position = 0;
+		while (position < source.length()) {
+			int start = source.indexOf("${", position);
+			if (start < 0) {
+				slots.add(text(source.substring(position)));
+				break;
+			}
+			if (start > position) {
+				slots.add(text(source.substring(position, start)));
+			}
+			int end = source.indexOf('}', start);
+			if (end < 0) {
+				return null;
+			}
+			String reference = source.substring(start + 2, end);
+			if (reference.contains("${")) {
+				return null;
+			}
+			Slot slot = slot(reference, source.substring(start, end + 1), counterPrefix + slots.size());
+			if (slot == null) {
+				return null;
+			}
+			slots.add(slot);
+			position = end + 1;
+		}
+		return new MessageTemplate(source, slots.toArray(new Slot[0]));
+	}
+
+	private static Slot text(String text) {
+		return new Slot(Kind.TEXT, text.getBytes(StandardCharsets.UTF_8), null, null, null);
+	}
+
+	private static Slot slot(String reference, String unresolved, String counterKey) {
+		String function = reference.trim();
+		String arguments = "";
+		int open = function.indexOf('(');
+		if (open >= 0) {
+			if (!function.endsWith(")")) {
+				return null;
+			}
+			arguments = function.substring(open + 1, function.length() - 1).trim();
+			function = function.substring(0, open).trim();
+		}
+		if (!function.startsWith("__")) {
+			if (open >= 0 || function.isEmpty() || function.indexOf('$') >= 0) {
+				return null;
+			}
+			return new Slot(Kind.VARIABLE, null, function, unresolved, null);
+		}
+		String[] parts = arguments.split("\\s*,\\s*", -1);
+		for (int i = 1; i < parts.length; i++) {
+			if (!parts[i].isEmpty()) {
+				// e.g. a variable to store the result in
+				return null;
+			}
+		}
+		switch (function) {
+		case "__threadNum":
+			return parts[0].isEmpty() ? new Slot(Kind.THREAD_NUM, null, null, null, null) : null;
+		case "__UUID":
+			return parts[0].isEmpty() ? new Slot(Kind.UUID, null, null, null, null) : null;
+		case "__time":
+			return parts[0].isEmpty() ? new Slot(Kind.TIME, null, null, null, null) : null;
+		case "__counter":
+			if ("TRUE".equalsIgnoreCase(parts[0])) {
+				return new Slot(Kind.COUNTER, null, null, null, null);
+			}
+			if (parts[0].isEmpty() || "FALSE".equalsIgnoreCase(parts[0])) {
+				return new Slot(Kind.GLOBAL_COUNTER, null, null, null,
+						GLOBAL_COUNTERS.computeIfAbsent(counterKey, k -> new AtomicLong()));
+			}
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Forget the global counters of the previous test.
+	 */
+	public static void reset() {
+		GLOBAL_COUNTERS.clear();
+	}
+
+	/**
+	 * @return the message as written
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Assemble the next message with the variables of the current thread.
+	 *
+	 * @return the body, the same array as before if the length did not
+	 *         change, so it must not be kept beyond the publish
+	 */
+	public byte[] render() {
+		JMeterContext context = JMeterContextService.getContext();
+		JMeterVariables variables = context.getVariables();
+		length = 0;
+		for (Slot slot : slots) {
+			switch (slot.kind) {
+			case TEXT:
+				write(slot.text);
+				break;
+			case VARIABLE:
+				String value = variables != null ? variables.get(slot.variable) : null;
+				write(value != null ? value : slot.unresolved);
+				break;
+			case THREAD_NUM:
+				write(context.getThreadNum() + 1);
+				break;
+			case UUID:
+				writeUuid();
+				break;
+			case TIME:
+				write(System.currentTimeMillis());
+				break;
+			case COUNTER:
+				write(++counter);
+				break;
+			case GLOBAL_COUNTER:
+				write(slot.globalCounter.incrementAndGet());
+				break;
+			}
+		}
+		if (body == null || body.length != length) {
+			body = new byte[length];
+		}
+		System.arraycopy(buffer, 0, body, 0, length);
+		return body;
+	}
+
+	private void ensure(int more) {
+		if (length + more > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + more));
+		}
+	}
+
+	private void write(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void write(String value) {
+		int chars = value.length();
+		ensure(chars);
+		for (int i = 0; i < chars; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x80) {
+				// not ASCII, let the encoder do it
+				write(value.getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			buffer[length + i] = (byte) c;
+		}
+		length += chars;
+	}
+
+	private void write(long value) {
+		if (value < 0) {
+			ensure(1);
+			buffer[length++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		ensure(digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		length += digits;
+	}
+
+	/**
+	 * Write a random (version 4) UUID, from the thread's random numbers
+	 * rather than the secure random of {@link java.util.UUID#randomUUID()}.
+	 */
+	private void writeUuid() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long high = (random.nextLong() & 0xffffffffffff0fffL) | 0x0000000000004000L;
+		long low = (random.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+		ensure(36);
+		writeHex(high >>> 32, 8);
+		buffer[length++] = '-';
+		writeHex(high >>> 16, 4);
+		buffer[length++] = '-';
+		writeHex(high, 4);
+		buffer[length++] = '-';
+		writeHex(low >>> 48, 4);
+		buffer[length++] = '-';
+		writeHex(low, 12);
+	}
+
+	private void writeHex(long value, int digits) {
+		for (int i = digits - 1; i >= 0; i--) {
+			buffer[length + i] = HEX[(int) (value & 0xf)];
+			value >>>= 4;
+		}
+		length += digits;
+	}
+}
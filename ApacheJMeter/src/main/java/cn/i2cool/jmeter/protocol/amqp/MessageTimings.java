@@ -0,0 +1,99 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+/**
+ * Start and end times of the individual messages of one sample, so a slow
+ * message is not hidden when many are aggregated into one SampleResult.
+ *
+ * The arrays are allocated once per sampler and reused for every sample;
+ * they only grow when a sample has more messages than any before. Owned by
+ * the sampler thread.
+ */
+public class MessageTimings {
+
+	private long[] startNanos = new long[0];
+	private long[] endNanos = new long[0];
+	private long[] sorted = new long[0];
+	private int count;
+
+	/**
+	 * Start a new sample of up to {@code expected} messages.
+	 */
+	public void reset(int expected) {
+		if (startNanos.length < expected) {
+			startNanos = new long[expected];
+			endNanos = new long[expected];
+			sorted = new long[expected];
+		}
+		count = 0;
+	}
+
+	public void record(long start, long end) {
+		if (count == startNanos.length) {
+			int size = Math.max(16, count * 2);
+			startNanos = Arrays.copyOf(startNanos, size);
+			endNanos = Arrays.copyOf(endNanos, size);
+			sorted = new long[size];
+		}
+		startNanos[count] = start;
+		endNanos[count] = end;
+		count++;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Format the distribution of the message times for the SampleResult
+	 * headers.
+	 */
+	public String format() {
+		if (count == 0) {
+			return "Messages: 0\n";
+		}
+		long total = 0;
+		for (int i = 0; i < count; i++) {
+			sorted[i] = endNanos[i] - startNanos[i];
+			total += sorted[i];
+		}
+		Arrays.sort(sorted, 0, count);
+		return "Messages: " + count + "\n" + "Message Time Min (us): " + micros(sorted[0]) + "\n"
+				+ "Message Time Mean (us): " + micros(total / count) + "\n" + "Message Time p50 (us): "
+				+ micros(percentile(50)) + "\n" + "Message Time p90 (us): " + micros(percentile(90)) + "\n"
+				+ "Message Time p99 (us): " + micros(percentile(99)) + "\n" + "Message Time p99.9 (us): "
+				+ micros(percentile(99.9)) + "\n" + "Message Time Max (us): " + micros(sorted[count - 1]) + "\n";
+	}
+
+	/**
+	 * Add one sub-result per message to {@code parent}, labelled with the
+	 * parent label and the message index. The parent's own time and byte
+	 * counts are left alone, they already cover all messages.
+	 */
+	public void addSubResults(SampleResult parent) {
+		long nowMillis = System.currentTimeMillis();
+		long nowNanos = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			SampleResult message = new SampleResult();
+			message.setSampleLabel(parent.getSampleLabel() + "-" + (i + 1));
+			message.setStampAndTime(nowMillis - TimeUnit.NANOSECONDS.toMillis(nowNanos - startNanos[i]),
+					TimeUnit.NANOSECONDS.toMillis(endNanos[i] - startNanos[i]));
+			message.setSuccessful(true);
+			message.setResponseCodeOK();
+			parent.addRawSubResult(message);
+		}
+	}
+
+	private long percentile(double percentile) {
+		int rank = (int) Math.ceil(percentile / 100.0 * count);
+		return sorted[Math.min(Math.max(rank, 1), count) - 1];
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
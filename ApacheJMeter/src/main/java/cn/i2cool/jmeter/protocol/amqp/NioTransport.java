@@ -0,0 +1,71 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jmeter.util.JMeterUtils;
+
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.impl.nio.NioParams;
+
+/**
+ * Threads shared by all connections in NIO mode.
+ *
+ * With blocking I/O every connection has its own reader thread and its own
+ * consumer dispatch pool. In NIO mode the connections of a
+ * {@link ConnectionFactory} share its {@code nbIoThreads} I/O loops, each on
+ * a daemon thread that ends once the loop has no connections left, and all
+ * connections dispatch deliveries on one pool of
+ * {@code amqp.nio.dispatch.threads} threads (twice the number of processors
+ * by default).
+ */
+final class NioTransport {
+
+	private static final ExecutorService DISPATCH_EXECUTOR = Executors.newFixedThreadPool(
+			JMeterUtils.getPropDefault("amqp.nio.dispatch.threads", 2 * Runtime.getRuntime().availableProcessors()),
+			daemonThreads("AMQP dispatch"));
+
+	private NioTransport() {
+	}
+
+	/**
+	 * Switch the factory to NIO on the shared threads.
+	 *
+	 * @param ioThreads       I/O loops of the factory, 0 for the default
+	 * @param readBufferSize  bytes, 0 for the default
+	 * @param writeBufferSize bytes, 0 for the default
+	 */
+	static void configure(ConnectionFactory factory, int ioThreads, int readBufferSize, int writeBufferSize) {
+		NioParams params = new NioParams();
+		// a loop per thread, so a factory never has more I/O threads than
+		// loops; a fixed pool shared by the factories could leave loops queued
+		params.setThreadFactory(daemonThreads("AMQP NIO"));
+		if (ioThreads > 0) {
+			params.setNbIoThreads(ioThreads);
+		}
+		if (readBufferSize > 0) {
+			params.setReadByteBufferSize(readBufferSize);
+		}
+		if (writeBufferSize > 0) {
+			params.setWriteByteBufferSize(writeBufferSize);
+		}
+		factory.useNio();
+		factory.setNioParams(params);
+		factory.setSharedExecutor(DISPATCH_EXECUTOR);
+	}
+
+	/**
+	 * @return a factory of daemon threads named after {@code name} and a
+	 *         counter, so they do not keep JMeter from exiting
+	 */
+	static ThreadFactory daemonThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -0,0 +1,94 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connections, messages and sample times of one broker node, shared by all
+ * threads. Nodes are named by the {@code host:port} of the host list.
+ */
+public class NodeStats {
+
+	private static final Logger log = LoggerFactory.getLogger(NodeStats.class);
+
+	private static final Map<String, NodeStats> NODES = new ConcurrentHashMap<>();
+
+	private final String name;
+	private final LongAdder openConnections = new LongAdder();
+	private final LongAdder connectionsOpened = new LongAdder();
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder failedSamples = new LongAdder();
+	private final LatencyHistogram sampleTimes = new LatencyHistogram();
+	private final long createdNanos = System.nanoTime();
+
+	private NodeStats(String name) {
+		this.name = name;
+	}
+
+	public static NodeStats get(String name) {
+		NodeStats node = NODES.get(name);
+		return node != null ? node : NODES.computeIfAbsent(name, NodeStats::new);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getOpenConnections() {
+		return openConnections.sum();
+	}
+
+	void connectionOpened() {
+		openConnections.increment();
+		connectionsOpened.increment();
+	}
+
+	void connectionClosed() {
+		openConnections.decrement();
+	}
+
+	/**
+	 * @param messages     the messages published or received by the sample
+	 * @param sampleMicros the sample time
+	 */
+	public void recordSample(int messages, long sampleMicros, boolean successful) {
+		this.messages.add(messages);
+		sampleTimes.record(sampleMicros);
+		if (!successful) {
+			failedSamples.increment();
+		}
+	}
+
+	public String summary() {
+		long seconds = Math.max(1, (System.nanoTime() - createdNanos) / 1000000000L);
+		return "connections open=" + getOpenConnections() + " opened=" + connectionsOpened.sum() + ", messages="
+				+ messages.sum() + " (" + messages.sum() / seconds + "/s), failed samples=" + failedSamples.sum()
+				+ ", sample time " + sampleTimes.summary();
+	}
+
+	/**
+	 * Log every node, called at test end.
+	 */
+	public static void logAll() {
+		for (NodeStats node : NODES.values()) {
+			log.info("Node {}: {}", node.name, node.summary());
+		}
+	}
+
+	/**
+	 * Forget the message and sample counts of the previous test, keeping the
+	 * nodes that still have connections.
+	 */
+	public static void reset() {
+		NODES.values().removeIf(node -> node.getOpenConnections() <= 0);
+		for (Map.Entry<String, NodeStats> entry : NODES.entrySet()) {
+			NodeStats fresh = new NodeStats(entry.getKey());
+			fresh.openConnections.add(entry.getValue().getOpenConnections());
+			NODES.put(entry.getKey(), fresh);
+		}
+	}
+}
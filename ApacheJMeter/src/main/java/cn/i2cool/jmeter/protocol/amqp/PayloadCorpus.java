@@ -0,0 +1,356 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * A file of captured messages, memory-mapped read-only and shared by all
+ * threads replaying it, so the messages are not held on the heap.
+ *
+ * The file starts with the magic {@code AMQPCRP1}, followed by the records:
+ * a big-endian int with the length of the properties, the properties, a
+ * big-endian int with the length of the body and the body. The properties
+ * are UTF-8 {@code name=value} lines: {@code routing-key},
+ * {@code content-type}, {@code correlation-id}, {@code message-id},
+ * {@code type} and {@code reply-to} set the property of the same name, any
+ * other name a header. Use {@link Writer} to create a corpus.
+ *
+ * The file is mapped in segments of up to 2 GB that end on a record
+ * boundary; only the start of every record, 8 bytes each, is kept on the
+ * heap. Every thread reads through a {@link Reader} of its own, either
+ * taking the next record of the {@code shared} cursor, one atomic increment
+ * per message, or cycling through a {@code sharded} slice of its own.
+ */
+public final class PayloadCorpus {
+
+	private static final Logger log = LoggerFactory.getLogger(PayloadCorpus.class);
+
+	public static final String CURSOR_SHARED = "shared";
+	public static final String CURSOR_SHARDED = "sharded";
+
+	static final byte[] MAGIC = "AMQPCRP1".getBytes(StandardCharsets.US_ASCII);
+
+	private static final Map<String, PayloadCorpus> CORPORA = new ConcurrentHashMap<>();
+
+	private final String path;
+	private final MappedByteBuffer[] segments;
+	private final long[] segmentStarts;
+	private final long[] offsets;
+	private final AtomicLong cursor = new AtomicLong();
+
+	PayloadCorpus(String path, int maxSegmentSize) throws IOException {
+		this.path = path;
+		try (FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			long size = file.size();
+			MappedByteBuffer[] mapped = new MappedByteBuffer[4];
+			long[] starts = new long[4];
+			long[] records = new long[1024];
+			int segmentCount = 0;
+			int count = 0;
+			long offset = MAGIC.length;
+			checkMagic(file);
+			while (offset < size) {
+				long segmentStart = offset;
+				MappedByteBuffer segment = file.map(FileChannel.MapMode.READ_ONLY, segmentStart,
+						Math.min(maxSegmentSize, size - segmentStart));
+				int position = 0;
+				while (offset < size) {
+					int length = recordLength(segment, position);
+					if (length < 0) {
+						break;
+					}
+					if (count == records.length) {
+						records = Arrays.copyOf(records, count * 2);
+					}
+					records[count++] = offset;
+					position += length;
+					offset += length;
+				}
+				if (position == 0) {
+					throw new IOException("Corrupt or too large record at " + offset + " in " + path);
+				}
+				if (segmentCount == mapped.length) {
+					mapped = Arrays.copyOf(mapped, segmentCount * 2);
+					starts = Arrays.copyOf(starts, segmentCount * 2);
+				}
+				mapped[segmentCount] = segment;
+				starts[segmentCount] = segmentStart;
+				segmentCount++;
+			}
+			if (count == 0) {
+				throw new IOException("No messages in " + path);
+			}
+			segments = Arrays.copyOf(mapped, segmentCount);
+			segmentStarts = Arrays.copyOf(starts, segmentCount);
+			offsets = Arrays.copyOf(records, count);
+		}
+		log.info("Mapped {} messages from {} in {} segments", offsets.length, path, segments.length);
+	}
+
+	private static void checkMagic(FileChannel file) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+		while (magic.hasRemaining() && file.read(magic, magic.position()) > 0) {
+			// read the whole magic
+		}
+		if (!Arrays.equals(magic.array(), MAGIC)) {
+			throw new IOException("Not a payload corpus, the magic is missing");
+		}
+	}
+
+	/**
+	 * @return the length of the record at {@code position}, -1 if it does not
+	 *         end in the segment
+	 */
+	private static int recordLength(ByteBuffer segment, int position) {
+		int limit = segment.limit();
+		if (limit - position < 4) {
+			return -1;
+		}
+		int propertiesLength = segment.getInt(position);
+		long bodyAt = (long) position + 4 + propertiesLength;
+		if (propertiesLength < 0 || bodyAt + 4 > limit) {
+			return -1;
+		}
+		int bodyLength = segment.getInt((int) bodyAt);
+		long end = bodyAt + 4 + bodyLength;
+		if (bodyLength < 0 || end > limit) {
+			return -1;
+		}
+		return (int) (end - position);
+	}
+
+	/**
+	 * Get the corpus shared by all threads, mapping the file the first time.
+	 */
+	public static PayloadCorpus get(String path) throws IOException {
+		PayloadCorpus corpus = CORPORA.get(path);
+		if (corpus != null) {
+			return corpus;
+		}
+		synchronized (CORPORA) {
+			corpus = CORPORA.get(path);
+			if (corpus == null) {
+				corpus = new PayloadCorpus(path, Integer.MAX_VALUE);
+				CORPORA.put(path, corpus);
+			}
+		}
+		return corpus;
+	}
+
+	/**
+	 * Drop the corpora of the previous test; the mappings go away once the
+	 * readers are garbage collected.
+	 */
+	public static void reset() {
+		CORPORA.clear();
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public int size() {
+		return offsets.length;
+	}
+
+	/**
+	 * @param mode    {@value #CURSOR_SHARED} or {@value #CURSOR_SHARDED}
+	 * @param thread  the number of the thread in its group
+	 * @param threads the threads in the group
+	 */
+	public Reader newReader(String mode, int thread, int threads) {
+		if (CURSOR_SHARDED.equals(mode)) {
+			int from = (int) ((long) size() * thread / threads);
+			int to = (int) ((long) size() * (thread + 1) / threads);
+			if (from == to) {
+				// more threads than messages
+				from = thread % size();
+				to = from + 1;
+			}
+			return new Reader(from, to);
+		}
+		if (!CURSOR_SHARED.equals(mode)) {
+			throw new IllegalArgumentException("Unknown corpus cursor: " + mode);
+		}
+		return new Reader(-1, -1);
+	}
+
+	/**
+	 * Reads the records of the corpus for one thread, through views of the
+	 * segments of its own so the shared buffers are never repositioned.
+	 */
+	public final class Reader {
+
+		private final ByteBuffer[] views = new ByteBuffer[segments.length];
+		private final int from;
+		private final int to;
+		private int next;
+
+		private ByteBuffer record;
+		private int bodyLength;
+		private AMQP.BasicProperties properties;
+		private String routingKey;
+
+		private Reader(int from, int to) {
+			this.from = from;
+			this.to = to;
+			this.next = from;
+			for (int i = 0; i < segments.length; i++) {
+				views[i] = segments[i].duplicate();
+			}
+		}
+
+		public PayloadCorpus getCorpus() {
+			return PayloadCorpus.this;
+		}
+
+		/**
+		 * Move to the next record.
+		 *
+		 * @param base the properties the record's properties are added to
+		 */
+		public void next(AMQP.BasicProperties base) {
+			int index;
+			if (from < 0) {
+				index = (int) (cursor.getAndIncrement() % offsets.length);
+			} else {
+				index = next++;
+				if (next == to) {
+					next = from;
+				}
+			}
+			long offset = offsets[index];
+			int segment = Arrays.binarySearch(segmentStarts, offset);
+			if (segment < 0) {
+				segment = -segment - 2;
+			}
+			record = views[segment];
+			int position = (int) (offset - segmentStarts[segment]);
+			int propertiesLength = record.getInt(position);
+			record.position(position + 4);
+			parseProperties(base, propertiesLength);
+			bodyLength = record.getInt();
+		}
+
+		private void parseProperties(AMQP.BasicProperties base, int length) {
+			routingKey = null;
+			if (length == 0) {
+				properties = base;
+				return;
+			}
+			byte[] text = new byte[length];
+			record.get(text);
+			AMQP.BasicProperties.Builder builder = base.builder();
+			Map<String, Object> headers = base.getHeaders() == null ? new HashMap<>()
+					: new HashMap<>(base.getHeaders());
+			for (String line : new String(text, StandardCharsets.UTF_8).split("\n")) {
+				int equals = line.indexOf('=');
+				if (equals < 1) {
+					continue;
+				}
+				String name = line.substring(0, equals).trim();
+				String value = line.substring(equals + 1).trim();
+				switch (name) {
+				case "routing-key":
+					routingKey = value;
+					break;
+				case "content-type":
+					builder.contentType(value);
+					break;
+				case "correlation-id":
+					builder.correlationId(value);
+					break;
+				case "message-id":
+					builder.messageId(value);
+					break;
+				case "type":
+					builder.type(value);
+					break;
+				case "reply-to":
+					builder.replyTo(value);
+					break;
+				default:
+					headers.put(name, value);
+				}
+			}
+			properties = builder.headers(headers).build();
+		}
+
+		/**
+		 * @return a copy of the body of the current record, the only
+		 *         allocation for records without properties
+		 */
+		public byte[] getBody() {
+			byte[] body = new byte[bodyLength];
+			record.get(body);
+			return body;
+		}
+
+		public AMQP.BasicProperties getProperties() {
+			return properties;
+		}
+
+		/**
+		 * @return the routing key of the current record, null if it has none
+		 */
+		public String getRoutingKey() {
+			return routingKey;
+		}
+	}
+
+	/**
+	 * Writes a corpus, for tools capturing or converting messages.
+	 */
+	public static final class Writer implements Closeable {
+
+		private final DataOutputStream out;
+
+		public Writer(Path file) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+			out.write(MAGIC);
+		}
+
+		/**
+		 * @param properties the properties and headers of the message, see
+		 *                   the class comment, may be null
+		 */
+		public void add(Map<String, String> properties, byte[] body) throws IOException {
+			StringBuilder text = new StringBuilder();
+			if (properties != null) {
+				for (Map.Entry<String, String> property : properties.entrySet()) {
+					text.append(property.getKey()).append('=').append(property.getValue()).append('\n');
+				}
+			}
+			byte[] encoded = text.toString().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(encoded.length);
+			out.write(encoded);
+			out.writeInt(body.length);
+			out.write(body);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Synthetic message bodies of a chosen size distribution, in bytes with an
+ * optional {@code KB} or {@code MB} suffix (1024 based).
+ *
+ * Distributions are written as
+ * <ul>
+ * <li>{@code <size>} or {@code fixed:<size>}</li>
+ * <li>{@code uniform:<min>:<max>}, rounded to {@value #UNIFORM_STEPS} sizes
+ * across the range</li>
+ * <li>{@code <percent>% <size>, ...}, e.g. {@code 80% 1KB, 15% 64KB, 5% 2MB};
+ * the percentages are relative to their sum</li>
+ * </ul>
+ *
+ * Bodies have to be arrays of the exact size to be published, so the
+ * generator keeps one array per size, filled once with random bytes or with
+ * compressible text; only the first 8 bytes, a message counter, change from
+ * one message to the next. Every thread needs its own generator.
+ */
+public final class PayloadGenerator {
+
+	public static final String CONTENT_RANDOM = "random";
+	public static final String CONTENT_COMPRESSIBLE = "compressible";
+
+	static final int UNIFORM_STEPS = 64;
+
+	private static final byte[] WORDS = "lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod "
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private final String spec;
+	private final String content;
+	private final int[] sizes;
+	private final double[] cumulative;
+	private final byte[][] buffers;
+	private long counter;
+
+	private PayloadGenerator(String spec, String content, int[] sizes, double[] cumulative) {
+		this.spec = spec;
+		this.content = content;
+		this.sizes = sizes;
+		this.cumulative = cumulative;
+		this.buffers = new byte[sizes.length][];
+	}
+
+	/**
+	 * @param spec    the size distribution, see the class comment
+	 * @param content {@value #CONTENT_RANDOM} or {@value #CONTENT_COMPRESSIBLE}
+	 */
+	public static PayloadGenerator create(String spec, String content) {
+		if (!CONTENT_RANDOM.equals(content) && !CONTENT_COMPRESSIBLE.equals(content)) {
+			throw new IllegalArgumentException("Unknown payload content: " + content);
+		}
+		String trimmed = spec == null ? "" : spec.trim();
+		try {
+			if (trimmed.indexOf('%') >= 0) {
+				return empirical(spec, content, trimmed.split("\\s*,\\s*"));
+			}
+			String[] parts = trimmed.split("\\s*:\\s*");
+			switch (parts[0]) {
+			case "fixed":
+				return fixed(spec, content, parseSize(parts[1]));
+			case "uniform":
+				int min = parseSize(parts[1]);
+				int max = parseSize(parts[2]);
+				if (max < min) {
+					throw new IllegalArgumentException("Invalid uniform range: " + spec);
+				}
+				int steps = Math.min(UNIFORM_STEPS, max - min + 1);
+				int[] sizes = new int[steps];
+				double[] cumulative = new double[steps];
+				for (int i = 0; i < steps; i++) {
+					sizes[i] = steps == 1 ? min : (int) (min + (long) (max - min) * i / (steps - 1));
+					cumulative[i] = (i + 1) / (double) steps;
+				}
+				return new PayloadGenerator(spec, content, sizes, cumulative);
+			default:
+				return fixed(spec, content, parseSize(parts[0]));
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Invalid payload size: " + spec, e);
+		}
+	}
+
+	private static PayloadGenerator fixed(String spec, String content, int size) {
+		return new PayloadGenerator(spec, content, new int[] { size }, new double[] { 1 });
+	}
+
+	private static PayloadGenerator empirical(String spec, String content, String[] buckets) {
+		int[] sizes = new int[buckets.length];
+		double[] cumulative = new double[buckets.length];
+		double total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			int percent = buckets[i].indexOf('%');
+			if (percent < 1) {
+				throw new IllegalArgumentException("Invalid payload size bucket: " + buckets[i]);
+			}
+			double weight = Double.parseDouble(buckets[i].substring(0, percent).trim());
+			if (weight < 0) {
+				throw new IllegalArgumentException("Invalid payload size bucket: " + buckets[i]);
+			}
+			total += weight;
+			sizes[i] = parseSize(buckets[i].substring(percent + 1));
+			cumulative[i] = total;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("Invalid payload size: " + spec);
+		}
+		for (int i = 0; i < cumulative.length; i++) {
+			cumulative[i] /= total;
+		}
+		return new PayloadGenerator(spec, content, sizes, cumulative);
+	}
+
+	/**
+	 * @return the size in bytes, e.g. of {@code 512}, {@code 1KB} or
+	 *         {@code 2 MB}
+	 */
+	static int parseSize(String size) {
+		String value = size.trim().toUpperCase(Locale.ROOT);
+		long unit = 1;
+		if (value.endsWith("KB")) {
+			unit = 1024;
+		} else if (value.endsWith("MB")) {
+			unit = 1024 * 1024;
+		}
+		if (unit > 1) {
+			value = value.substring(0, value.length() - 2).trim();
+		} else if (value.endsWith("B")) {
+			value = value.substring(0, value.length() - 1).trim();
+		}
+		long bytes = (long) (Double.parseDouble(value) * unit);
+		if (bytes < 0 || bytes > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Invalid payload size: " + size);
+		}
+		return (int) bytes;
+	}
+
+	/**
+	 * @return whether the generator was created from these settings
+	 */
+	public boolean matches(String spec, String content) {
+		return this.spec.equals(spec) && this.content.equals(content);
+	}
+
+	/**
+	 * @return the body of the next message; the array is reused for later
+	 *         messages of the same size
+	 */
+	public byte[] next() {
+		int bucket = 0;
+		if (sizes.length > 1) {
+			int i = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+			bucket = Math.min(i < 0 ? -i - 1 : i, sizes.length - 1);
+		}
+		byte[] body = buffers[bucket];
+		if (body == null) {
+			body = fill(new byte[sizes[bucket]]);
+			buffers[bucket] = body;
+		}
+		// tell the messages apart
+		long sequence = counter++;
+		for (int i = 0; i < Math.min(8, body.length); i++) {
+			body[i] = (byte) (sequence >>> (56 - 8 * i));
+		}
+		return body;
+	}
+
+	private byte[] fill(byte[] body) {
+		if (CONTENT_RANDOM.equals(content)) {
+			ThreadLocalRandom.current().nextBytes(body);
+		} else {
+			for (int i = 0; i < body.length; i += WORDS.length) {
+				System.arraycopy(WORDS, 0, body, i, Math.min(WORDS.length, body.length - i));
+			}
+		}
+		return body;
+	}
+}
@@ -0,0 +1,210 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.rabbitmq.client.ConfirmListener;
+
+/**
+ * Keeps track of the publishes of one channel in confirm mode.
+ *
+ * Publishes are registered by sequence number with their publish time in a
+ * lock-free skip list, the {@link ConfirmListener} callbacks run on the
+ * connection thread and remove them again. A semaphore bounds the number of
+ * outstanding confirms so the publisher pipelines up to {@code window}
+ * messages before it has to wait.
+ */
+public class PublisherConfirmTracker implements ConfirmListener {
+
+	private final ConcurrentSkipListMap<Long, Long> outstanding = new ConcurrentSkipListMap<>();
+	private final Semaphore window;
+	private final long timeoutNanos;
+
+	private final LongAdder acked = new LongAdder();
+	private final LongAdder nacked = new LongAdder();
+	private final LongAdder timedOut = new LongAdder();
+	private final LongAdder latencyNanos = new LongAdder();
+	private final LongAccumulator maxLatencyNanos = new LongAccumulator(Long::max, 0L);
+
+	// only touched by the sampler thread, see snapshot()
+	private long lastAcked;
+	private long lastNacked;
+	private long lastTimedOut;
+	private long lastLatencyNanos;
+	private long lastSnapshotNanos = System.nanoTime();
+
+	public PublisherConfirmTracker(int window, long timeoutMillis) {
+		this.window = new Semaphore(window);
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * Register a publish before it is sent. Blocks while the window is full, up
+	 * to the confirm timeout; publishes that have waited longer than the
+	 * timeout are then expired to make room.
+	 *
+	 * @param seqNo the channel's next publish sequence number
+	 * @throws TimeoutException if the window is still full afterwards
+	 */
+	public void register(long seqNo) throws InterruptedException, TimeoutException {
+		if (!window.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+			expire(System.nanoTime() - timeoutNanos);
+			if (!window.tryAcquire()) {
+				throw new TimeoutException("Publisher confirm window full, " + outstanding.size() + " outstanding");
+			}
+		}
+		outstanding.put(seqNo, System.nanoTime());
+		AMQPMetrics.confirmsInFlight(1);
+	}
+
+	@Override
+	public void handleAck(long deliveryTag, boolean multiple) {
+		confirm(deliveryTag, multiple, acked);
+	}
+
+	@Override
+	public void handleNack(long deliveryTag, boolean multiple) {
+		confirm(deliveryTag, multiple, nacked);
+	}
+
+	private void confirm(long deliveryTag, boolean multiple, LongAdder counter) {
+		long now = System.nanoTime();
+		if (!multiple) {
+			Long published = outstanding.remove(deliveryTag);
+			if (published != null) {
+				confirmed(now - published, counter);
+			}
+			return;
+		}
+		ConcurrentNavigableMap<Long, Long> confirmed = outstanding.headMap(deliveryTag, true);
+		for (Map.Entry<Long, Long> entry : confirmed.entrySet()) {
+			if (outstanding.remove(entry.getKey(), entry.getValue())) {
+				confirmed(now - entry.getValue(), counter);
+			}
+		}
+	}
+
+	private void confirmed(long latency, LongAdder counter) {
+		counter.increment();
+		latencyNanos.add(latency);
+		maxLatencyNanos.accumulate(latency);
+		window.release();
+		AMQPMetrics.confirmsInFlight(-1);
+	}
+
+	/**
+	 * Give up on every publish sent before {@code deadlineNanos}.
+	 */
+	public void expire(long deadlineNanos) {
+		for (Map.Entry<Long, Long> entry : outstanding.entrySet()) {
+			if (entry.getValue() - deadlineNanos > 0) {
+				break;
+			}
+			if (outstanding.remove(entry.getKey(), entry.getValue())) {
+				timedOut.increment();
+				window.release();
+				AMQPMetrics.confirmsInFlight(-1);
+			}
+		}
+	}
+
+	/**
+	 * Wait until all outstanding publishes are confirmed or have timed out.
+	 */
+	public void drain() throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		while (!outstanding.isEmpty() && deadline - System.nanoTime() > 0) {
+			TimeUnit.MILLISECONDS.sleep(1);
+		}
+		expireAll();
+	}
+
+	/**
+	 * Give up on every outstanding publish, e.g. when the channel is gone.
+	 *
+	 * @return the number of publishes given up on
+	 */
+	public int expireAll() {
+		int expired = 0;
+		for (Map.Entry<Long, Long> entry : outstanding.entrySet()) {
+			if (outstanding.remove(entry.getKey(), entry.getValue())) {
+				timedOut.increment();
+				window.release();
+				AMQPMetrics.confirmsInFlight(-1);
+				expired++;
+			}
+		}
+		return expired;
+	}
+
+	public int getOutstanding() {
+		return outstanding.size();
+	}
+
+	/**
+	 * Format what happened since the previous call for the SampleResult
+	 * headers. Must only be called by the sampler thread.
+	 */
+	public Snapshot snapshot() {
+		expire(System.nanoTime() - timeoutNanos);
+		long now = System.nanoTime();
+		long currentAcked = acked.sum();
+		long currentNacked = nacked.sum();
+		long currentTimedOut = timedOut.sum();
+		long currentLatency = latencyNanos.sum();
+		Snapshot snapshot = new Snapshot(currentAcked - lastAcked, currentNacked - lastNacked,
+				currentTimedOut - lastTimedOut, currentLatency - lastLatencyNanos, now - lastSnapshotNanos,
+				outstanding.size(), maxLatencyNanos.getThenReset());
+		lastAcked = currentAcked;
+		lastNacked = currentNacked;
+		lastTimedOut = currentTimedOut;
+		lastLatencyNanos = currentLatency;
+		lastSnapshotNanos = now;
+		return snapshot;
+	}
+
+	public static final class Snapshot {
+		private final long acked;
+		private final long nacked;
+		private final long timedOut;
+		private final long latencyNanos;
+		private final long intervalNanos;
+		private final int outstanding;
+		private final long maxLatencyNanos;
+
+		Snapshot(long acked, long nacked, long timedOut, long latencyNanos, long intervalNanos, int outstanding,
+				long maxLatencyNanos) {
+			this.acked = acked;
+			this.nacked = nacked;
+			this.timedOut = timedOut;
+			this.latencyNanos = latencyNanos;
+			this.intervalNanos = intervalNanos;
+			this.outstanding = outstanding;
+			this.maxLatencyNanos = maxLatencyNanos;
+		}
+
+		public long getNacked() {
+			return nacked;
+		}
+
+		public long getTimedOut() {
+			return timedOut;
+		}
+
+		public String format() {
+			long confirmed = acked + nacked;
+			long meanMicros = confirmed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(latencyNanos / confirmed);
+			long rate = intervalNanos <= 0 ? 0 : confirmed * TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+			return "Confirmed: " + acked + "\n" + "Nacked: " + nacked + "\n" + "Timed Out: " + timedOut + "\n"
+					+ "Outstanding: " + outstanding + "\n" + "Confirm Rate (/s): " + rate + "\n"
+					+ "Confirm Latency Mean (us): " + meanMicros + "\n" + "Confirm Latency Max (us): "
+					+ TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos) + "\n";
+		}
+	}
+}
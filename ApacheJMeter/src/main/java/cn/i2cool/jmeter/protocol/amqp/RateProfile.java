@@ -0,0 +1,133 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The offered load of an open workload, as a sequence of segments during
+ * which the rate changes linearly.
+ *
+ * Profiles are written as
+ * <ul>
+ * <li>{@code constant} (or empty): the target rate from the start</li>
+ * <li>{@code ramp:<seconds>}: from 0 to the target rate in the given
+ * time</li>
+ * <li>{@code step:<rate>:<seconds>}: start at {@code rate} and add
+ * {@code rate} every {@code seconds} up to the target rate</li>
+ * <li>{@code spike:<rate>:<at>:<seconds>}: the target rate, except for
+ * {@code seconds} at {@code rate} starting {@code at} seconds into the
+ * test</li>
+ * </ul>
+ */
+public final class RateProfile {
+
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final double[] durations; // seconds, the last segment never ends
+	private final double[] startRates;
+	private final double[] endRates;
+	private final double[] startCounts; // messages sent before each segment
+	private final double[] startTimes; // seconds
+
+	private RateProfile(List<double[]> segments) {
+		int size = segments.size();
+		durations = new double[size];
+		startRates = new double[size];
+		endRates = new double[size];
+		startCounts = new double[size];
+		startTimes = new double[size];
+		double count = 0;
+		double time = 0;
+		for (int i = 0; i < size; i++) {
+			double[] segment = segments.get(i);
+			durations[i] = segment[0];
+			startRates[i] = segment[1];
+			endRates[i] = segment[2];
+			startCounts[i] = count;
+			startTimes[i] = time;
+			count += (startRates[i] + endRates[i]) / 2 * durations[i];
+			time += durations[i];
+		}
+	}
+
+	/**
+	 * @param targetRate the aggregate messages per second
+	 * @param spec       the profile, see the class comment
+	 */
+	public static RateProfile parse(double targetRate, String spec) {
+		if (targetRate <= 0) {
+			throw new IllegalArgumentException("Target rate must be positive: " + targetRate);
+		}
+		String[] parts = spec == null ? new String[] { "" } : spec.trim().split("\\s*:\\s*");
+		List<double[]> segments = new ArrayList<>();
+		try {
+			switch (parts[0]) {
+			case "":
+			case "constant":
+				break;
+			case "ramp":
+				segments.add(new double[] { nonNegative(parts[1], spec), 0, targetRate });
+				break;
+			case "step":
+				double step = Double.parseDouble(parts[1]);
+				double seconds = nonNegative(parts[2], spec);
+				if (step <= 0) {
+					throw new IllegalArgumentException("Step rate must be positive: " + spec);
+				}
+				for (double rate = step; rate < targetRate; rate += step) {
+					segments.add(new double[] { seconds, rate, rate });
+				}
+				break;
+			case "spike":
+				double spikeRate = nonNegative(parts[1], spec);
+				segments.add(new double[] { nonNegative(parts[2], spec), targetRate, targetRate });
+				segments.add(new double[] { nonNegative(parts[3], spec), spikeRate, spikeRate });
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown rate profile: " + spec);
+			}
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid rate profile: " + spec, e);
+		}
+		segments.add(new double[] { Double.POSITIVE_INFINITY, targetRate, targetRate });
+		return new RateProfile(segments);
+	}
+
+	private static double nonNegative(String value, String spec) {
+		double parsed = Double.parseDouble(value);
+		if (!(parsed >= 0)) {
+			throw new IllegalArgumentException("Negative value in rate profile: " + spec);
+		}
+		return parsed;
+	}
+
+	/**
+	 * @param message zero based index of a message in the whole test
+	 * @return when the message should be sent, in nanoseconds since the start
+	 */
+	public long offsetNanos(long message) {
+		// the last segment starting at or before the message, skipping those
+		// without messages
+		int segment = Arrays.binarySearch(startCounts, message);
+		if (segment < 0) {
+			segment = -segment - 2;
+		}
+		while (segment < startCounts.length - 1 && startCounts[segment + 1] <= message) {
+			segment++;
+		}
+		double n = message - startCounts[segment];
+		double r0 = startRates[segment];
+		double r1 = endRates[segment];
+		double t;
+		if (r0 == r1) {
+			t = n / r0;
+		} else {
+			// solve r0 * t + (r1 - r0) / (2 * d) * t^2 = n
+			double a = (r1 - r0) / (2 * durations[segment]);
+			t = (-r0 + Math.sqrt(r0 * r0 + 4 * a * n)) / (2 * a);
+		}
+		return (long) ((startTimes[segment] + t) * NANOS_PER_SECOND);
+	}
+}
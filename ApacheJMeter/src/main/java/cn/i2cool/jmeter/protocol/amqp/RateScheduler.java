@@ -0,0 +1,91 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out send slots of an open workload to every thread publishing with
+ * the same sampler.
+ *
+ * A slot is claimed with a single atomic increment; its intended start time
+ * follows from the {@link RateProfile} alone, so a slow broker makes the
+ * threads fall behind schedule instead of lowering the offered load.
+ */
+public final class RateScheduler {
+
+	private static final Logger log = LoggerFactory.getLogger(RateScheduler.class);
+
+	private static final Map<String, RateScheduler> SCHEDULERS = new ConcurrentHashMap<>();
+
+	private final String name;
+	private final RateProfile profile;
+	private final AtomicLong next = new AtomicLong();
+	private final AtomicLong startNanos = new AtomicLong();
+
+	private RateScheduler(String name, RateProfile profile) {
+		this.name = name;
+		this.profile = profile;
+	}
+
+	/**
+	 * Get the scheduler shared by all threads for the given key, the profile
+	 * is only parsed when it is created.
+	 */
+	public static RateScheduler get(String name, double targetRate, String profile) {
+		String key = name + "|" + targetRate + "|" + profile;
+		RateScheduler scheduler = SCHEDULERS.get(key);
+		if (scheduler == null) {
+			scheduler = SCHEDULERS.computeIfAbsent(key,
+					k -> new RateScheduler(name, RateProfile.parse(targetRate, profile)));
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Claim the next slot and wait until it is due.
+	 *
+	 * @return the intended start of the slot, in System.nanoTime() terms
+	 */
+	public long awaitNext() {
+		long start = startNanos.get();
+		if (start == 0) {
+			startNanos.compareAndSet(0, System.nanoTime());
+			start = startNanos.get();
+		}
+		long intended = start + profile.offsetNanos(next.getAndIncrement());
+		long wait;
+		while ((wait = intended - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(wait);
+		}
+		return intended;
+	}
+
+	/**
+	 * @return how far the next slot is behind schedule, in milliseconds
+	 */
+	public long getLagMillis() {
+		long start = startNanos.get();
+		if (start == 0) {
+			return 0;
+		}
+		long intended = start + profile.offsetNanos(next.get());
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - intended));
+	}
+
+	/**
+	 * Log and forget every scheduler, called when a test starts or ends.
+	 */
+	public static void reset() {
+		for (RateScheduler scheduler : SCHEDULERS.values()) {
+			log.info("Rate scheduler {}: {} messages, {} ms behind schedule", scheduler.name, scheduler.next.get(),
+					scheduler.getLagMillis());
+		}
+		SCHEDULERS.clear();
+	}
+}
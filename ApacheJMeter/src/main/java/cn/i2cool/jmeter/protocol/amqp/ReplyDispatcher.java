@@ -0,0 +1,177 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * The direct reply-to consumer of a channel, shared by every thread
+ * publishing requests on it.
+ *
+ * Direct reply-to needs the consumer on the channel the requests are
+ * published on, so there is one dispatcher per channel and it is registered
+ * before the first request. Replies are matched to their request by
+ * correlation id through a concurrent map; a reply nobody waits for any more,
+ * because its request timed out, is counted as orphaned.
+ */
+public class ReplyDispatcher extends DefaultConsumer {
+
+	private static final Logger log = LoggerFactory.getLogger(ReplyDispatcher.class);
+
+	/**
+	 * Pseudo-queue replies are sent to without declaring a queue
+	 */
+	public static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
+	private static final Map<Channel, ReplyDispatcher> DISPATCHERS = new ConcurrentHashMap<>();
+
+	private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+	private final String prefix = Long.toHexString(ThreadLocalRandom.current().nextLong()) + "-";
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong orphaned = new AtomicLong();
+
+	private ReplyDispatcher(Channel channel) {
+		super(channel);
+	}
+
+	/**
+	 * @return the dispatcher of the channel, consuming from
+	 *         {@value #DIRECT_REPLY_TO} the first time
+	 */
+	public static ReplyDispatcher of(Channel channel) throws IOException {
+		ReplyDispatcher dispatcher = DISPATCHERS.get(channel);
+		if (dispatcher != null) {
+			return dispatcher;
+		}
+		synchronized (channel) {
+			dispatcher = DISPATCHERS.get(channel);
+			if (dispatcher == null) {
+				dispatcher = new ReplyDispatcher(channel);
+				// direct reply-to only works with automatic acks
+				channel.basicConsume(DIRECT_REPLY_TO, true, dispatcher);
+				DISPATCHERS.put(channel, dispatcher);
+			}
+		}
+		return dispatcher;
+	}
+
+	/**
+	 * Register a request about to be published.
+	 */
+	public Pending register() {
+		Pending request = new Pending(prefix + Long.toString(sequence.incrementAndGet(), 36));
+		pending.put(request.correlationId, request);
+		return request;
+	}
+
+	/**
+	 * Wait for the reply to a request, giving up on it after the timeout.
+	 *
+	 * @return the reply, null if it timed out or the channel was closed
+	 */
+	public Delivery await(Pending request, long timeoutNanos) throws InterruptedException {
+		try {
+			return request.reply.get(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			forget(request);
+			AMQPMetrics.rpcTimedOut();
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stop waiting for the reply to a request, it is orphaned if it arrives.
+	 */
+	public void forget(Pending request) {
+		pending.remove(request.correlationId);
+	}
+
+	/**
+	 * @return the replies received after their request was given up on
+	 */
+	public long getOrphaned() {
+		return orphaned.get();
+	}
+
+	@Override
+	public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+		long now = System.nanoTime();
+		AMQPMetrics.consumed();
+		String correlationId = properties.getCorrelationId();
+		Pending request = correlationId != null ? pending.remove(correlationId) : null;
+		if (request == null) {
+			orphaned.incrementAndGet();
+			AMQPMetrics.rpcOrphaned();
+			return;
+		}
+		request.replyNanos = now;
+		request.reply.complete(new Delivery(envelope, properties, body));
+	}
+
+	@Override
+	public void handleCancel(String consumerTag) {
+		log.warn("Reply consumer {} cancelled by the broker", consumerTag);
+		close(new IOException("Reply consumer cancelled"));
+	}
+
+	@Override
+	public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+		log.debug("Reply consumer {} shut down: {}", consumerTag, sig.getMessage());
+		close(sig);
+	}
+
+	private void close(Exception cause) {
+		DISPATCHERS.remove(getChannel(), this);
+		for (Pending request : pending.values()) {
+			request.reply.completeExceptionally(cause);
+		}
+		pending.clear();
+	}
+
+	/**
+	 * A request waiting for its reply.
+	 */
+	public static final class Pending {
+		private final String correlationId;
+		private final CompletableFuture<Delivery> reply = new CompletableFuture<>();
+		private final long sentNanos = System.nanoTime();
+		private volatile long replyNanos;
+
+		private Pending(String correlationId) {
+			this.correlationId = correlationId;
+		}
+
+		public String getCorrelationId() {
+			return correlationId;
+		}
+
+		public long getSentNanos() {
+			return sentNanos;
+		}
+
+		/**
+		 * @return when the reply arrived, in System.nanoTime() terms
+		 */
+		public long getReplyNanos() {
+			return replyNanos;
+		}
+	}
+}
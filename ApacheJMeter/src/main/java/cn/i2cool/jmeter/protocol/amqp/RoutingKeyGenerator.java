@@ -0,0 +1,155 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses the routing key of every message published to a sharded topology.
+ *
+ * The routing key is a {@link String#format} pattern applied to the shard
+ * index, e.g. {@code orders.%d}, and queue {@code N} is bound with the key of
+ * shard {@code N}. The keys of all shards are formatted once, so choosing one
+ * does not allocate.
+ *
+ * A consistent hash exchange hashes the routing key itself and is bound with
+ * weights instead of keys, so {@link #CONSISTENT_HASH} only has to make the
+ * keys vary: it publishes with the hash key when there is one, else with one
+ * of many keys formatted from the pattern.
+ */
+public final class RoutingKeyGenerator {
+
+	/**
+	 * Publish with the routing key as it is
+	 */
+	public static final String FIXED = "fixed";
+	/**
+	 * Go through the shards in turn, shared by all threads of the sampler
+	 */
+	public static final String SEQUENTIAL = "sequential";
+	/**
+	 * Pick a shard at random for every message
+	 */
+	public static final String RANDOM = "random";
+	/**
+	 * Pick the shard from the hash of the hash key, e.g. a JMeter variable,
+	 * so equal keys always go to the same shard
+	 */
+	public static final String HASH = "hash";
+	/**
+	 * Vary the routing key for an {@code x-consistent-hash} exchange
+	 */
+	public static final String CONSISTENT_HASH = "consistent-hash";
+
+	// keys per shard, so the exchange has enough distinct keys to spread
+	private static final int CONSISTENT_HASH_KEYS_PER_SHARD = 64;
+
+	private static final Map<String, AtomicLong> SEQUENCES = new ConcurrentHashMap<>();
+
+	private final String strategy;
+	private final String pattern;
+	private final int shards;
+	private final String[] keys;
+	private final AtomicLong sequence;
+
+	private RoutingKeyGenerator(String strategy, String pattern, int shards, AtomicLong sequence) {
+		this.strategy = strategy;
+		this.pattern = pattern;
+		this.shards = shards;
+		this.sequence = sequence;
+		int count = CONSISTENT_HASH.equals(strategy) ? shards * CONSISTENT_HASH_KEYS_PER_SHARD : shards;
+		keys = new String[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = shardName(pattern, i);
+		}
+	}
+
+	/**
+	 * @param strategy one of the strategies above, anything else is
+	 *                 {@link #FIXED}
+	 * @param name     the sampler, whose threads share the sequence
+	 * @param shards   the number of shards, at least one
+	 */
+	public static RoutingKeyGenerator create(String strategy, String name, String pattern, int shards) {
+		String key = name + "|" + pattern + "|" + shards;
+		AtomicLong sequence = SEQUENCES.get(key);
+		if (sequence == null) {
+			sequence = SEQUENCES.computeIfAbsent(key, k -> new AtomicLong());
+		}
+		return new RoutingKeyGenerator(strategy, pattern, Math.max(1, shards), sequence);
+	}
+
+	/**
+	 * @return the routing key of the next message
+	 */
+	public String next(String hashKey) {
+		switch (strategy) {
+		case SEQUENTIAL:
+			return keys[(int) ((sequence.getAndIncrement() & Long.MAX_VALUE) % keys.length)];
+		case RANDOM:
+			return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+		case HASH:
+			return keys[Math.floorMod(spread(hashKey == null ? 0 : hashKey.hashCode()), keys.length)];
+		case CONSISTENT_HASH:
+			if (hashKey != null && !hashKey.isEmpty()) {
+				return hashKey;
+			}
+			return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+		default:
+			return pattern;
+		}
+	}
+
+	public boolean matches(String strategy, String pattern, int shards) {
+		return this.strategy.equals(strategy) && this.pattern.equals(pattern) && this.shards == Math.max(1, shards);
+	}
+
+	/**
+	 * @return the queue name or routing key of a shard
+	 */
+	public static String shardName(String pattern, int shard) {
+		return String.format(pattern, shard);
+	}
+
+	/**
+	 * @return the shards a thread consumes from: every shard {@code s} with
+	 *         {@code s % threads == thread}, or shard {@code thread % shards}
+	 *         when there are more threads than shards
+	 */
+	public static int[] shardsOf(int thread, int threads, int shards) {
+		if (shards <= threads) {
+			return new int[] { thread % shards };
+		}
+		int[] owned = new int[(shards - thread + threads - 1) / threads];
+		for (int i = 0; i < owned.length; i++) {
+			owned[i] = thread + i * threads;
+		}
+		return owned;
+	}
+
+	/**
+	 * @return all shards
+	 */
+	public static int[] allShards(int shards) {
+		int[] all = new int[shards];
+		Arrays.setAll(all, i -> i);
+		return all;
+	}
+
+	/**
+	 * Forget the sequences of the previous test.
+	 */
+	public static void reset() {
+		SEQUENCES.clear();
+	}
+
+	// String.hashCode clusters in the low bits for similar keys
+	private static int spread(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+}
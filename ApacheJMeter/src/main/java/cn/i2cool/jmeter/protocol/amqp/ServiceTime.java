@@ -0,0 +1,105 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a responder works on a request, in milliseconds.
+ *
+ * Distributions are written as
+ * <ul>
+ * <li>empty or {@code 0}: reply at once</li>
+ * <li>{@code <ms>} or {@code constant:<ms>}</li>
+ * <li>{@code uniform:<min>:<max>}</li>
+ * <li>{@code exponential:<mean>}</li>
+ * <li>{@code normal:<mean>:<stddev>}, never below 0</li>
+ * </ul>
+ */
+public final class ServiceTime {
+
+	private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private enum Kind {
+		NONE, CONSTANT, UNIFORM, EXPONENTIAL, NORMAL
+	}
+
+	private final Kind kind;
+	private final double a;
+	private final double b;
+
+	private ServiceTime(Kind kind, double a, double b) {
+		this.kind = kind;
+		this.a = a;
+		this.b = b;
+	}
+
+	/**
+	 * @param spec the distribution, see the class comment
+	 */
+	public static ServiceTime parse(String spec) {
+		String[] parts = spec == null ? new String[] { "" } : spec.trim().split("\\s*:\\s*");
+		try {
+			switch (parts[0]) {
+			case "":
+				return new ServiceTime(Kind.NONE, 0, 0);
+			case "constant":
+				return constant(Double.parseDouble(parts[1]));
+			case "uniform":
+				double min = Double.parseDouble(parts[1]);
+				double max = Double.parseDouble(parts[2]);
+				if (min < 0 || max < min) {
+					throw new IllegalArgumentException("Invalid uniform range: " + spec);
+				}
+				return new ServiceTime(Kind.UNIFORM, min, max);
+			case "exponential":
+				double mean = Double.parseDouble(parts[1]);
+				if (mean < 0) {
+					throw new IllegalArgumentException("Invalid exponential mean: " + spec);
+				}
+				return new ServiceTime(Kind.EXPONENTIAL, mean, 0);
+			case "normal":
+				double stddev = Double.parseDouble(parts[2]);
+				if (stddev < 0) {
+					throw new IllegalArgumentException("Invalid normal standard deviation: " + spec);
+				}
+				return new ServiceTime(Kind.NORMAL, Double.parseDouble(parts[1]), stddev);
+			default:
+				return constant(Double.parseDouble(parts[0]));
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Invalid service time: " + spec, e);
+		}
+	}
+
+	private static ServiceTime constant(double millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Service time must not be negative: " + millis);
+		}
+		return new ServiceTime(millis == 0 ? Kind.NONE : Kind.CONSTANT, millis, 0);
+	}
+
+	/**
+	 * @return the service time of the next request, in nanoseconds
+	 */
+	public long nextNanos() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double millis;
+		switch (kind) {
+		case CONSTANT:
+			millis = a;
+			break;
+		case UNIFORM:
+			millis = a + random.nextDouble() * (b - a);
+			break;
+		case EXPONENTIAL:
+			millis = -a * Math.log(1 - random.nextDouble());
+			break;
+		case NORMAL:
+			millis = Math.max(0, a + random.nextGaussian() * b);
+			break;
+		default:
+			return 0;
+		}
+		return (long) (millis * NANOS_PER_MILLI);
+	}
+}
@@ -0,0 +1,118 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Delivery;
+
+/**
+ * How fast one thread reads a stream queue and how fast it catches up with
+ * the publishers.
+ *
+ * The catch-up rate is the change of the lag behind the publishers per
+ * second of wall time: 0 when the consumer keeps pace, positive while it
+ * works off a backlog, negative while it falls behind. The lag needs the
+ * send time header of the messages.
+ *
+ * The messages read by all threads of a sampler are logged when the test
+ * ends.
+ */
+public class StreamProgress {
+
+	private static final Logger log = LoggerFactory.getLogger(StreamProgress.class);
+
+	/**
+	 * Header the broker puts the offset of a stream message in
+	 */
+	public static final String OFFSET_HEADER = "x-stream-offset";
+
+	private static final Map<String, Totals> TOTALS = new ConcurrentHashMap<>();
+
+	private final Totals totals;
+	private long firstOffset;
+	private long lastOffset;
+	private int messages;
+	private long lastSendMicros;
+	private long lagMillis = -1;
+	private long lagNanos;
+
+	public StreamProgress(String name) {
+		Totals existing = TOTALS.get(name);
+		totals = existing != null ? existing : TOTALS.computeIfAbsent(name, k -> new Totals());
+		startSample();
+	}
+
+	public void startSample() {
+		firstOffset = -1;
+		lastOffset = -1;
+		messages = 0;
+		lastSendMicros = -1;
+	}
+
+	/**
+	 * @param sendTimeMicros the send time of the message, -1 if unknown
+	 */
+	public void record(Delivery delivery, long sendTimeMicros) {
+		Map<String, Object> headers = delivery.getProperties().getHeaders();
+		Object offset = headers != null ? headers.get(OFFSET_HEADER) : null;
+		if (offset instanceof Number) {
+			lastOffset = ((Number) offset).longValue();
+			if (firstOffset < 0) {
+				firstOffset = lastOffset;
+			}
+		}
+		messages++;
+		if (sendTimeMicros >= 0) {
+			lastSendMicros = sendTimeMicros;
+		}
+	}
+
+	/**
+	 * @return the response headers describing the sample
+	 */
+	public String finishSample(long sampleMillis) {
+		totals.messages.add(messages);
+		StringBuilder sb = new StringBuilder();
+		if (firstOffset >= 0) {
+			sb.append("Stream Offsets: ").append(firstOffset).append('-').append(lastOffset).append('\n');
+		}
+		sb.append("Read Rate (msg/s): ").append(messages * 1000L / Math.max(1, sampleMillis)).append('\n');
+		if (lastSendMicros >= 0) {
+			long now = System.nanoTime();
+			long lag = Math.max(0, TimeUnit.MICROSECONDS.toMillis(AMQPClock.currentTimeMicros() - lastSendMicros));
+			sb.append("Stream Lag (ms): ").append(lag).append('\n');
+			if (lagMillis >= 0 && now > lagNanos) {
+				double rate = (lagMillis - lag) * 1e6 / (now - lagNanos);
+				sb.append("Catch-up Rate: ").append(String.format("%.3f", rate)).append('\n');
+			}
+			lagMillis = lag;
+			lagNanos = now;
+			totals.lagMillis = lag;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Log the totals of every sampler and forget them, called at test end.
+	 */
+	public static void reportAndReset() {
+		for (Map.Entry<String, Totals> entry : TOTALS.entrySet()) {
+			Totals totals = entry.getValue();
+			long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - totals.startNanos));
+			log.info("Stream consumer {}: {} messages ({}/s), last lag {} ms", entry.getKey(),
+					totals.messages.sum(), totals.messages.sum() / seconds, totals.lagMillis);
+		}
+		TOTALS.clear();
+	}
+
+	private static final class Totals {
+		private final long startNanos = System.nanoTime();
+		private final LongAdder messages = new LongAdder();
+		private volatile long lagMillis = -1;
+	}
+}
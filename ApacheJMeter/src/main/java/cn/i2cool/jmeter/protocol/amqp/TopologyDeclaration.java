@@ -0,0 +1,125 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * The queues, exchange and bindings an element needs, declared once per test
+ * for every broker through the {@link TopologyRegistry}.
+ *
+ * Exclusive and auto-delete queues, their bindings and an auto-delete
+ * exchange bound to them are declared again once the connection that
+ * declared them is gone. Used by the samplers and the
+ * {@link AMQPResponder}, so both declare a queue they share alike.
+ */
+final class TopologyDeclaration {
+
+	/**
+	 * Deletes a queue or exchange before it is first declared in a test.
+	 */
+	interface Deletion {
+		void delete(String name) throws Exception;
+	}
+
+	private final String scope;
+	private final int timeout;
+
+	private String[] queues = new String[0];
+	private String[] bindingKeys = new String[0];
+	private boolean queueDurable;
+	private boolean queueExclusive;
+	private boolean queueAutoDelete;
+	private Map<String, Object> queueArguments = Collections.emptyMap();
+	private Deletion queueDeletion;
+
+	private String exchange;
+	private String exchangeType;
+	private boolean exchangeDurable;
+	private boolean exchangeAutoDelete;
+	private Deletion exchangeDeletion;
+
+	/**
+	 * @param timeout how long to wait in milliseconds for another thread
+	 *                declaring the same entity
+	 */
+	TopologyDeclaration(String virtualHost, String host, int port, int timeout) {
+		this.scope = virtualHost + "@" + host + ":" + port;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param bindingKeys the key each queue is bound to the exchange with
+	 */
+	TopologyDeclaration queues(String[] queues, String[] bindingKeys, boolean durable, boolean exclusive,
+			boolean autoDelete, Map<String, Object> arguments) {
+		this.queues = queues;
+		this.bindingKeys = bindingKeys;
+		this.queueDurable = durable;
+		this.queueExclusive = exclusive;
+		this.queueAutoDelete = autoDelete;
+		this.queueArguments = arguments;
+		return this;
+	}
+
+	/**
+	 * Delete every queue once per test before it is first declared.
+	 */
+	TopologyDeclaration queueRedeclare(Deletion deletion) {
+		this.queueDeletion = deletion;
+		return this;
+	}
+
+	TopologyDeclaration exchange(String exchange, String type, boolean durable, boolean autoDelete) {
+		this.exchange = exchange;
+		this.exchangeType = type;
+		this.exchangeDurable = durable;
+		this.exchangeAutoDelete = autoDelete;
+		return this;
+	}
+
+	/**
+	 * Delete the exchange once per test before it is first declared.
+	 */
+	TopologyDeclaration exchangeRedeclare(Deletion deletion) {
+		this.exchangeDeletion = deletion;
+		return this;
+	}
+
+	void declare(Channel channel) throws IOException {
+		Connection owner = channel.getConnection();
+		boolean queueTransient = queues.length > 0 && (queueExclusive || queueAutoDelete);
+		// an auto-delete exchange goes away with the last of its bindings
+		boolean exchangeTransient = exchangeAutoDelete && queueTransient;
+		for (String queue : queues) {
+			String key = scope + "/queue/" + queue;
+			TopologyRegistry.declareOnce(key, queueTransient ? owner : null, timeout, () -> {
+				if (queueDeletion != null && TopologyRegistry.claimOnce(key)) {
+					queueDeletion.delete(queue);
+				}
+				channel.queueDeclare(queue, queueDurable, queueExclusive, queueAutoDelete, queueArguments);
+			});
+		}
+		if (exchange == null) {
+			return;
+		}
+		String exchangeKey = scope + "/exchange/" + exchange;
+		TopologyRegistry.declareOnce(exchangeKey, exchangeTransient ? owner : null, timeout, () -> {
+			if (exchangeDeletion != null && TopologyRegistry.claimOnce(exchangeKey)) {
+				exchangeDeletion.delete(exchange);
+			}
+			channel.exchangeDeclare(exchange, exchangeType, exchangeDurable, exchangeAutoDelete,
+					Collections.<String, Object>emptyMap());
+		});
+		for (int i = 0; i < queues.length; i++) {
+			String queue = queues[i];
+			String bindingKey = bindingKeys[i];
+			String key = scope + "/binding/" + exchange + "/" + queue + "/" + bindingKey;
+			TopologyRegistry.declareOnce(key, queueTransient ? owner : null, timeout,
+					() -> channel.queueBind(queue, exchange, bindingKey));
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Connection;
+
+/**
+ * Makes sure every queue, exchange and binding is declared once per test run,
+ * however many threads need it.
+ *
+ * The first thread to ask for a key runs the declaration, the others wait for
+ * its outcome. A failed declaration is forgotten so that a later thread can
+ * try again. So is the declaration of an exclusive or auto-delete entity once
+ * the connection that declared it shuts down, as the broker deletes the
+ * entity with it; the threads still using it declare it again. Durable
+ * entities are kept until the test ends.
+ */
+public final class TopologyRegistry {
+
+	private static final Logger log = LoggerFactory.getLogger(TopologyRegistry.class);
+
+	private static final ConcurrentMap<String, CompletableFuture<Void>> DECLARED = new ConcurrentHashMap<>();
+	private static final Set<String> CLAIMED = ConcurrentHashMap.newKeySet();
+
+	private static final LongAdder declarations = new LongAdder();
+	private static final LongAdder waits = new LongAdder();
+	private static final LongAdder declareNanos = new LongAdder();
+	private static final LongAccumulator maxDeclareNanos = new LongAccumulator(Long::max, 0L);
+
+	private TopologyRegistry() {
+	}
+
+	public interface Declaration {
+		void declare() throws Exception;
+	}
+
+	/**
+	 * Run {@code declaration} unless it already ran for {@code key} in this
+	 * test, waiting up to {@code timeoutMillis} if another thread is running
+	 * it right now.
+	 *
+	 * @param owner the connection the entity goes away with, null if it
+	 *              outlives its connection
+	 */
+	public static void declareOnce(String key, Connection owner, long timeoutMillis, Declaration declaration)
+			throws IOException {
+		CompletableFuture<Void> declared = new CompletableFuture<>();
+		CompletableFuture<Void> existing = DECLARED.putIfAbsent(key, declared);
+		if (existing == null) {
+			long start = System.nanoTime();
+			try {
+				declaration.declare();
+			} catch (Exception e) {
+				DECLARED.remove(key, declared);
+				declared.completeExceptionally(e);
+				if (e instanceof IOException) {
+					throw (IOException) e;
+				}
+				throw new IOException("Failed to declare " + key, e);
+			}
+			long elapsed = System.nanoTime() - start;
+			declarations.increment();
+			declareNanos.add(elapsed);
+			maxDeclareNanos.accumulate(elapsed);
+			if (owner != null) {
+				// runs right away if the connection is already closed
+				owner.addShutdownListener(cause -> DECLARED.remove(key, declared));
+			}
+			declared.complete(null);
+			return;
+		}
+		waits.increment();
+		try {
+			existing.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			throw new IOException("Declaration of " + key + " failed in another thread", e.getCause());
+		} catch (TimeoutException e) {
+			throw new IOException("Timed out waiting for the declaration of " + key, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the declaration of " + key, e);
+		}
+	}
+
+	/**
+	 * @return true only the first time {@code key} is claimed in this test,
+	 *         e.g. to delete an entity once before it is first declared
+	 */
+	public static boolean claimOnce(String key) {
+		return CLAIMED.add(key);
+	}
+
+	/**
+	 * Log the statistics and forget every declaration, called when a test
+	 * starts or ends.
+	 */
+	public static void reset() {
+		long count = declarations.sum();
+		if (count > 0 || waits.sum() > 0) {
+			log.info("Topology: {} declarations, {} waits, mean {} ms, max {} ms", count, waits.sum(),
+					count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(declareNanos.sum() / count),
+					TimeUnit.NANOSECONDS.toMillis(maxDeclareNanos.get()));
+		}
+		DECLARED.clear();
+		CLAIMED.clear();
+		declarations.reset();
+		waits.reset();
+		declareNanos.reset();
+		maxDeclareNanos.reset();
+	}
+}
@@ -0,0 +1,141 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Commits the transaction of a publishing channel every {@code size}
+ * messages or when the oldest uncommitted message is {@code maxDelay} old,
+ * whichever comes first, independent of how many messages a sample
+ * publishes.
+ *
+ * The time limit is only checked when a message is added or
+ * {@link #commitIfDue()} is called. The commits of the current sample are
+ * kept so they can be reported apart from the publishes; the arrays are
+ * reused like those of {@link MessageTimings}. The methods are synchronized
+ * so the thread interrupting a sampler can commit the rest.
+ */
+public class TxBatcher {
+
+	private final Channel channel;
+	private final int size;
+	private final long maxDelayNanos;
+
+	private int pending;
+	private long firstPendingNanos;
+
+	// commits since the last startSample()
+	private long[] startNanos = new long[16];
+	private long[] endNanos = new long[16];
+	private int[] messages = new int[16];
+	private int count;
+
+	/**
+	 * @param size           messages per transaction, 0 for no limit
+	 * @param maxDelayMillis the longest a message waits for its commit, 0 for
+	 *                       no limit
+	 */
+	public TxBatcher(Channel channel, int size, long maxDelayMillis) {
+		this.channel = channel;
+		this.size = Math.max(0, size);
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+	}
+
+	public synchronized void startSample() {
+		count = 0;
+	}
+
+	/**
+	 * Count published messages, committing if the batch is full or due.
+	 */
+	public synchronized void add(int published) throws IOException {
+		if (pending == 0) {
+			firstPendingNanos = System.nanoTime();
+		}
+		pending += published;
+		if (size > 0 && pending >= size) {
+			commit();
+		} else {
+			commitIfDue();
+		}
+	}
+
+	/**
+	 * Commit the pending messages if the oldest has waited long enough.
+	 */
+	public synchronized void commitIfDue() throws IOException {
+		if (pending > 0 && maxDelayNanos > 0 && System.nanoTime() - firstPendingNanos >= maxDelayNanos) {
+			commit();
+		}
+	}
+
+	/**
+	 * Commit the pending messages now.
+	 */
+	public synchronized void commit() throws IOException {
+		if (pending == 0 || !channel.isOpen()) {
+			return;
+		}
+		long start = System.nanoTime();
+		channel.txCommit();
+		long end = System.nanoTime();
+		AMQPMetrics.committed(end - start);
+		if (count == startNanos.length) {
+			startNanos = Arrays.copyOf(startNanos, count * 2);
+			endNanos = Arrays.copyOf(endNanos, count * 2);
+			messages = Arrays.copyOf(messages, count * 2);
+		}
+		startNanos[count] = start;
+		endNanos[count] = end;
+		messages[count] = pending;
+		count++;
+		pending = 0;
+	}
+
+	/**
+	 * @return the messages published but not committed yet
+	 */
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Format the commits of the sample for the SampleResult headers.
+	 */
+	public synchronized String format() {
+		long total = 0;
+		long max = 0;
+		for (int i = 0; i < count; i++) {
+			total += endNanos[i] - startNanos[i];
+			max = Math.max(max, endNanos[i] - startNanos[i]);
+		}
+		return "Commits: " + count + "\nCommit Time (us): " + TimeUnit.NANOSECONDS.toMicros(total)
+				+ "\nCommit Time Max (us): " + TimeUnit.NANOSECONDS.toMicros(max) + "\nUncommitted: " + pending
+				+ "\n";
+	}
+
+	/**
+	 * Add one sub-result per commit of the sample to {@code parent}, all
+	 * labelled with the parent label and " commit" so listeners aggregate the
+	 * commit latency on its own.
+	 */
+	public synchronized void addSubResults(SampleResult parent) {
+		long nowMillis = System.currentTimeMillis();
+		long nowNanos = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			SampleResult commit = new SampleResult();
+			commit.setSampleLabel(parent.getSampleLabel() + " commit");
+			commit.setStampAndTime(nowMillis - TimeUnit.NANOSECONDS.toMillis(nowNanos - startNanos[i]),
+					TimeUnit.NANOSECONDS.toMillis(endNanos[i] - startNanos[i]));
+			commit.setResponseMessage(messages[i] + " messages");
+			commit.setSuccessful(true);
+			commit.setResponseCodeOK();
+			parent.addRawSubResult(commit);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package cn.i2cool.jmeter.protocol.amqp.gui;
+
+import java.awt.BorderLayout;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+
+import javax.swing.BorderFactory;
+import javax.swing.JCheckBox;
+import javax.swing.JPanel;
+
+import org.apache.jmeter.config.gui.AbstractConfigGui;
+import org.apache.jmeter.gui.util.VerticalPanel;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import cn.i2cool.jmeter.protocol.amqp.AMQPConnectionConfig;
+import cn.i2cool.jmeter.protocol.amqp.AMQPSampler;
+import cn.i2cool.jmeter.protocol.amqp.ClusterBalancer;
+
+/**
+ * Common GUI of the config elements extending {@link AMQPConnectionConfig}.
+ */
+public abstract class AMQPConnectionConfigGui extends AbstractConfigGui {
+
+	private static final long serialVersionUID = 1L;
+
+	private final JLabeledTextField virtualHost = new JLabeledTextField("Virtual Host");
+	private final JLabeledTextField host = new JLabeledTextField("Host");
+	private final JLabeledTextField port = new JLabeledTextField("Port");
+	private final JLabeledTextField username = new JLabeledTextField("Username");
+	private final JLabeledTextField password = new JLabeledTextField("Password");
+	private final JLabeledTextField timeout = new JLabeledTextField("Timeout");
+	private final JCheckBox ssl = new JCheckBox("SSL?", false);
+	private final JLabeledTextField heartbeat = new JLabeledTextField("Heartbeat (s)");
+	private final JCheckBox automaticRecovery = new JCheckBox("Automatic Recovery?",
+			AMQPSampler.DEFAULT_AUTOMATIC_RECOVERY);
+	private final JCheckBox nio = new JCheckBox("NIO?", AMQPSampler.DEFAULT_NIO);
+	private final JLabeledTextField nioThreads = new JLabeledTextField("NIO Threads");
+	private final JLabeledTextField nioReadBufferSize = new JLabeledTextField("NIO Read Buffer");
+	private final JLabeledTextField nioWriteBufferSize = new JLabeledTextField("NIO Write Buffer");
+	private final JLabeledChoice balancing = new JLabeledChoice("Balancing", new String[] { ClusterBalancer.SHUFFLE,
+			ClusterBalancer.ROUND_ROBIN, ClusterBalancer.LEAST_CONNECTIONS });
+
+	protected abstract void setMainPanel(JPanel panel);
+
+	@Override
+	public String getLabelResource() {
+		return this.getClass().getSimpleName();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void configure(TestElement element) {
+		super.configure(element);
+		if (!(element instanceof AMQPConnectionConfig))
+			return;
+		AMQPConnectionConfig config = (AMQPConnectionConfig) element;
+
+		virtualHost.setText(config.getVirtualHost());
+		host.setText(config.getHost());
+		port.setText(config.getPort());
+		username.setText(config.getUsername());
+		password.setText(config.getPassword());
+		timeout.setText(config.getTimeout());
+		ssl.setSelected(config.connectionSSL());
+		heartbeat.setText(config.getHeartbeat());
+		automaticRecovery.setSelected(config.getAutomaticRecovery());
+		nio.setSelected(config.getNio());
+		nioThreads.setText(config.getNioThreads());
+		nioReadBufferSize.setText(config.getNioReadBufferSize());
+		nioWriteBufferSize.setText(config.getNioWriteBufferSize());
+		balancing.setText(config.getBalancing());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clearGui() {
+		super.clearGui();
+		virtualHost.setText("/");
+		host.setText("localhost");
+		port.setText(AMQPSampler.DEFAULT_PORT_STRING);
+		username.setText("guest");
+		password.setText("guest");
+		timeout.setText(AMQPSampler.DEFAULT_TIMEOUT_STRING);
+		ssl.setSelected(false);
+		heartbeat.setText(AMQPSampler.DEFAULT_HEARTBEAT_STRING);
+		automaticRecovery.setSelected(AMQPSampler.DEFAULT_AUTOMATIC_RECOVERY);
+		nio.setSelected(AMQPSampler.DEFAULT_NIO);
+		nioThreads.setText("");
+		nioReadBufferSize.setText("");
+		nioWriteBufferSize.setText("");
+		balancing.setText(ClusterBalancer.SHUFFLE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void modifyTestElement(TestElement element) {
+		AMQPConnectionConfig config = (AMQPConnectionConfig) element;
+		config.clear();
+		configureTestElement(config);
+
+		config.setVirtualHost(virtualHost.getText());
+		config.setHost(host.getText());
+		config.setPort(port.getText());
+		config.setUsername(username.getText());
+		config.setPassword(password.getText());
+		config.setTimeout(timeout.getText());
+		config.setConnectionSSL(ssl.isSelected());
+		config.setHeartbeat(heartbeat.getText());
+		config.setAutomaticRecovery(automaticRecovery.isSelected());
+		config.setNio(nio.isSelected());
+		config.setNioThreads(nioThreads.getText());
+		config.setNioReadBufferSize(nioReadBufferSize.getText());
+		config.setNioWriteBufferSize(nioWriteBufferSize.getText());
+		config.setBalancing(balancing.getText());
+	}
+
+	protected void init() {
+		setLayout(new BorderLayout(0, 5));
+		setBorder(makeBorder());
+		add(makeTitlePanel(), BorderLayout.NORTH);
+
+		JPanel mainPanel = new VerticalPanel();
+		mainPanel.add(makeConnectionPanel());
+		add(mainPanel);
+
+		setMainPanel(mainPanel);
+	}
+
+	private JPanel makeConnectionPanel() {
+		GridBagConstraints gridBagConstraints = new GridBagConstraints();
+		gridBagConstraints.insets = new java.awt.Insets(2, 2, 2, 2);
+		gridBagConstraints.fill = GridBagConstraints.NONE;
+		gridBagConstraints.anchor = GridBagConstraints.WEST;
+		gridBagConstraints.weightx = 0.5;
+
+		JPanel serverSettings = new JPanel(new GridBagLayout());
+		serverSettings.setBorder(BorderFactory.createTitledBorder(BorderFactory.createEtchedBorder(), "Connection"));
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 0;
+		serverSettings.add(virtualHost, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 1;
+		serverSettings.add(host, gridBagConstraints);
+
+		gridBagConstraints.gridx = 1;
+		gridBagConstraints.gridy = 1;
+		serverSettings.add(balancing, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 2;
+		serverSettings.add(port, gridBagConstraints);
+
+		gridBagConstraints.gridx = 1;
+		gridBagConstraints.gridy = 2;
+		serverSettings.add(ssl, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 3;
+		serverSettings.add(username, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 4;
+		serverSettings.add(password, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 5;
+		serverSettings.add(timeout, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 6;
+		serverSettings.add(heartbeat, gridBagConstraints);
+
+		gridBagConstraints.gridx = 1;
+		gridBagConstraints.gridy = 6;
+		serverSettings.add(automaticRecovery, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 7;
+		serverSettings.add(nioThreads, gridBagConstraints);
+
+		gridBagConstraints.gridx = 1;
+		gridBagConstraints.gridy = 7;
+		serverSettings.add(nio, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 8;
+		serverSettings.add(nioReadBufferSize, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 9;
+		serverSettings.add(nioWriteBufferSize, gridBagConstraints);
+
+		return serverSettings;
+	}
+}
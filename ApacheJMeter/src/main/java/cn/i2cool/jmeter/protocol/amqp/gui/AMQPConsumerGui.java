@@ -16,11 +16,18 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
 
 	protected JLabeledTextField receiveTimeout = new JLabeledTextField("Receive Timeout");
 	protected JLabeledTextField prefetchCount = new JLabeledTextField("Prefetch Count");
+	private final JLabeledTextField streamOffset = new JLabeledTextField("Stream Offset");
+	private final JLabeledTextField ackBatchSize = new JLabeledTextField("Ack Batch Size");
+	private final JLabeledTextField ackBatchTime = new JLabeledTextField("Ack Batch Time (ms)");
 
 	private final JCheckBox purgeQueue = new JCheckBox("Purge Queue", false);
 	private final JCheckBox autoAck = new JCheckBox("Auto ACK", true);
 	private final JCheckBox readResponse = new JCheckBox("Read Response", AMQPConsumer.DEFAULT_READ_RESPONSE);
 	private final JCheckBox useTx = new JCheckBox("Use Transactions?", AMQPConsumer.DEFAULT_USE_TX);
+	private final JCheckBox useBasicConsume = new JCheckBox("Push Delivery (basic.consume)?",
+			AMQPConsumer.DEFAULT_USE_BASIC_CONSUME);
+	private final JCheckBox measureLatency = new JCheckBox("Measure End-to-End Latency?",
+			AMQPConsumer.DEFAULT_MEASURE_LATENCY);
 
 	private JPanel mainPanel;
 
@@ -35,14 +42,22 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
 	protected void init() {
 		super.init();
 		prefetchCount.setPreferredSize(new Dimension(100, 25));
+		streamOffset.setPreferredSize(new Dimension(100, 25));
+		ackBatchSize.setPreferredSize(new Dimension(100, 25));
+		ackBatchTime.setPreferredSize(new Dimension(100, 25));
 		useTx.setPreferredSize(new Dimension(100, 25));
 
 		mainPanel.add(receiveTimeout);
 		mainPanel.add(prefetchCount);
+		mainPanel.add(streamOffset);
 		mainPanel.add(purgeQueue);
 		mainPanel.add(autoAck);
+		mainPanel.add(ackBatchSize);
+		mainPanel.add(ackBatchTime);
 		mainPanel.add(readResponse);
 		mainPanel.add(useTx);
+		mainPanel.add(useBasicConsume);
+		mainPanel.add(measureLatency);
 	}
 
 	@Override
@@ -62,10 +77,15 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
 
 		readResponse.setSelected(sampler.getReadResponseAsBoolean());
 		prefetchCount.setText(sampler.getPrefetchCount());
+		streamOffset.setText(sampler.getStreamOffset());
 		receiveTimeout.setText(sampler.getReceiveTimeout());
 		purgeQueue.setSelected(sampler.purgeQueue());
 		autoAck.setSelected(sampler.autoAck());
+		ackBatchSize.setText(sampler.getAckBatchSize());
+		ackBatchTime.setText(sampler.getAckBatchTime());
 		useTx.setSelected(sampler.getUseTx());
+		useBasicConsume.setSelected(sampler.getUseBasicConsume());
+		measureLatency.setSelected(sampler.getMeasureLatency());
 	}
 
 	/**
@@ -76,10 +96,15 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
 		super.clearGui();
 		readResponse.setSelected(AMQPConsumer.DEFAULT_READ_RESPONSE);
 		prefetchCount.setText(AMQPConsumer.DEFAULT_PREFETCH_COUNT_STRING);
+		streamOffset.setText(AMQPConsumer.DEFAULT_STREAM_OFFSET);
 		receiveTimeout.setText("");
 		purgeQueue.setSelected(false);
 		autoAck.setSelected(true);
+		ackBatchSize.setText(AMQPConsumer.DEFAULT_ACK_BATCH_SIZE_STRING);
+		ackBatchTime.setText(AMQPConsumer.DEFAULT_ACK_BATCH_TIME_STRING);
 		useTx.setSelected(AMQPConsumer.DEFAULT_USE_TX);
+		useBasicConsume.setSelected(AMQPConsumer.DEFAULT_USE_BASIC_CONSUME);
+		measureLatency.setSelected(AMQPConsumer.DEFAULT_MEASURE_LATENCY);
 	}
 
 	/**
@@ -103,11 +128,16 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
 		super.modifyTestElement(sampler);
 		sampler.setReadResponse(readResponse.isSelected());
 		sampler.setPrefetchCount(prefetchCount.getText());
+		sampler.setStreamOffset(streamOffset.getText());
 
 		sampler.setReceiveTimeout(receiveTimeout.getText());
 		sampler.setPurgeQueue(purgeQueue.isSelected());
 		sampler.setAutoAck(autoAck.isSelected());
+		sampler.setAckBatchSize(ackBatchSize.getText());
+		sampler.setAckBatchTime(ackBatchTime.getText());
 		sampler.setUseTx(useTx.isSelected());
+		sampler.setUseBasicConsume(useBasicConsume.isSelected());
+		sampler.setMeasureLatency(measureLatency.isSelected());
 	}
 
 	/**
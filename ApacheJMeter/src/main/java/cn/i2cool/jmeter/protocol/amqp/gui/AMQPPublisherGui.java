@@ -8,10 +8,14 @@ import javax.swing.JPanel;
 import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.config.gui.ArgumentsPanel;
 import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
 import org.apache.jorphan.gui.JLabeledTextArea;
 import org.apache.jorphan.gui.JLabeledTextField;
 
 import cn.i2cool.jmeter.protocol.amqp.AMQPPublisher;
+import cn.i2cool.jmeter.protocol.amqp.PayloadCorpus;
+import cn.i2cool.jmeter.protocol.amqp.PayloadGenerator;
+import cn.i2cool.jmeter.protocol.amqp.RoutingKeyGenerator;
 
 /**
  * AMQP Sampler
@@ -29,7 +33,22 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
 	private JPanel mainPanel;
 	private JLabeledTextArea message = new JLabeledTextArea("Message Content");
+	private JLabeledChoice payloadSource = new JLabeledChoice("Payload Source",
+			new String[] { AMQPPublisher.PAYLOAD_MESSAGE, AMQPPublisher.PAYLOAD_CORPUS,
+					AMQPPublisher.PAYLOAD_GENERATED });
+	private JLabeledTextField corpusFile = new JLabeledTextField("Corpus File");
+	private JLabeledChoice corpusCursor = new JLabeledChoice("Corpus Cursor",
+			new String[] { PayloadCorpus.CURSOR_SHARED, PayloadCorpus.CURSOR_SHARDED });
+	private JCheckBox compileTemplate = new JCheckBox("Compile Message Template?",
+			AMQPPublisher.DEFAULT_COMPILE_TEMPLATE);
+	private JLabeledTextField payloadSize = new JLabeledTextField("Payload Size");
+	private JLabeledChoice payloadContent = new JLabeledChoice("Payload Content",
+			new String[] { PayloadGenerator.CONTENT_RANDOM, PayloadGenerator.CONTENT_COMPRESSIBLE });
 	private JLabeledTextField messageRoutingKey = new JLabeledTextField("Routing Key");
+	private JLabeledChoice routingStrategy = new JLabeledChoice("Routing Strategy",
+			new String[] { RoutingKeyGenerator.FIXED, RoutingKeyGenerator.SEQUENTIAL, RoutingKeyGenerator.RANDOM,
+					RoutingKeyGenerator.HASH, RoutingKeyGenerator.CONSISTENT_HASH });
+	private JLabeledTextField shardKey = new JLabeledTextField("Shard Key");
 	private JLabeledTextField messageType = new JLabeledTextField("Message Type");
 	private JLabeledTextField replyToQueue = new JLabeledTextField("Reply-To Queue");
 	private JLabeledTextField correlationId = new JLabeledTextField("Correlation Id");
@@ -38,6 +57,14 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
 	private JCheckBox persistent = new JCheckBox("Persistent?", AMQPPublisher.DEFAULT_PERSISTENT);
 	private JCheckBox useTx = new JCheckBox("Use Transactions?", AMQPPublisher.DEFAULT_USE_TX);
+	private JLabeledTextField txBatchSize = new JLabeledTextField("Tx Batch Size");
+	private JLabeledTextField txBatchTime = new JLabeledTextField("Tx Batch Time (ms)");
+	private JCheckBox useConfirms = new JCheckBox("Use Publisher Confirms?", AMQPPublisher.DEFAULT_USE_CONFIRMS);
+	private JLabeledTextField confirmWindow = new JLabeledTextField("Outstanding Confirms");
+	private JLabeledTextField confirmTimeout = new JLabeledTextField("Confirm Timeout");
+	private JCheckBox stampTimestamp = new JCheckBox("Stamp Send Time?", AMQPPublisher.DEFAULT_STAMP_TIMESTAMP);
+	private JLabeledTextField targetRate = new JLabeledTextField("Target Rate (msg/s, all threads)");
+	private JLabeledTextField rateProfile = new JLabeledTextField("Rate Profile");
 
 	private ArgumentsPanel headers = new ArgumentsPanel("Headers");
 
@@ -70,14 +97,30 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
 		persistent.setSelected(sampler.getPersistent());
 		useTx.setSelected(sampler.getUseTx());
+		txBatchSize.setText(sampler.getTxBatchSize());
+		txBatchTime.setText(sampler.getTxBatchTime());
+		useConfirms.setSelected(sampler.getUseConfirms());
+		confirmWindow.setText(sampler.getConfirmWindow());
+		confirmTimeout.setText(sampler.getConfirmTimeout());
+		stampTimestamp.setSelected(sampler.getStampTimestamp());
+		targetRate.setText(sampler.getTargetRate());
+		rateProfile.setText(sampler.getRateProfile());
 
 		messageRoutingKey.setText(sampler.getMessageRoutingKey());
+		routingStrategy.setText(sampler.getRoutingStrategy());
+		shardKey.setText(sampler.getShardKey());
 		messageType.setText(sampler.getMessageType());
 		replyToQueue.setText(sampler.getReplyToQueue());
 		contentType.setText(sampler.getContentType());
 		correlationId.setText(sampler.getCorrelationId());
 		messageId.setText(sampler.getMessageId());
 		message.setText(sampler.getMessage());
+		payloadSource.setText(sampler.getPayloadSource());
+		corpusFile.setText(sampler.getCorpusFile());
+		corpusCursor.setText(sampler.getCorpusCursor());
+		compileTemplate.setSelected(sampler.getCompileTemplate());
+		payloadSize.setText(sampler.getPayloadSize());
+		payloadContent.setText(sampler.getPayloadContent());
 		configureHeaders(sampler);
 	}
 
@@ -104,9 +147,25 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
 		sampler.setPersistent(persistent.isSelected());
 		sampler.setUseTx(useTx.isSelected());
+		sampler.setTxBatchSize(txBatchSize.getText());
+		sampler.setTxBatchTime(txBatchTime.getText());
+		sampler.setUseConfirms(useConfirms.isSelected());
+		sampler.setConfirmWindow(confirmWindow.getText());
+		sampler.setConfirmTimeout(confirmTimeout.getText());
+		sampler.setStampTimestamp(stampTimestamp.isSelected());
+		sampler.setTargetRate(targetRate.getText());
+		sampler.setRateProfile(rateProfile.getText());
 
 		sampler.setMessageRoutingKey(messageRoutingKey.getText());
+		sampler.setRoutingStrategy(routingStrategy.getText());
+		sampler.setShardKey(shardKey.getText());
 		sampler.setMessage(message.getText());
+		sampler.setPayloadSource(payloadSource.getText());
+		sampler.setCorpusFile(corpusFile.getText());
+		sampler.setCorpusCursor(corpusCursor.getText());
+		sampler.setCompileTemplate(compileTemplate.isSelected());
+		sampler.setPayloadSize(payloadSize.getText());
+		sampler.setPayloadContent(payloadContent.getText());
 		sampler.setMessageType(messageType.getText());
 		sampler.setReplyToQueue(replyToQueue.getText());
 		sampler.setCorrelationId(correlationId.getText());
@@ -128,23 +187,51 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 		super.init();
 		persistent.setPreferredSize(new Dimension(100, 25));
 		useTx.setPreferredSize(new Dimension(100, 25));
+		txBatchSize.setPreferredSize(new Dimension(100, 25));
+		txBatchTime.setPreferredSize(new Dimension(100, 25));
+		useConfirms.setPreferredSize(new Dimension(100, 25));
+		confirmWindow.setPreferredSize(new Dimension(100, 25));
+		confirmTimeout.setPreferredSize(new Dimension(100, 25));
+		stampTimestamp.setPreferredSize(new Dimension(100, 25));
+		targetRate.setPreferredSize(new Dimension(100, 25));
+		rateProfile.setPreferredSize(new Dimension(100, 25));
 		messageRoutingKey.setPreferredSize(new Dimension(100, 25));
+		shardKey.setPreferredSize(new Dimension(100, 25));
 		messageType.setPreferredSize(new Dimension(100, 25));
 		replyToQueue.setPreferredSize(new Dimension(100, 25));
 		correlationId.setPreferredSize(new Dimension(100, 25));
 		contentType.setPreferredSize(new Dimension(100, 25));
 		messageId.setPreferredSize(new Dimension(100, 25));
 		message.setPreferredSize(new Dimension(400, 150));
+		corpusFile.setPreferredSize(new Dimension(100, 25));
+		compileTemplate.setPreferredSize(new Dimension(100, 25));
+		payloadSize.setPreferredSize(new Dimension(100, 25));
 
 		mainPanel.add(persistent);
 		mainPanel.add(useTx);
+		mainPanel.add(txBatchSize);
+		mainPanel.add(txBatchTime);
+		mainPanel.add(useConfirms);
+		mainPanel.add(confirmWindow);
+		mainPanel.add(confirmTimeout);
+		mainPanel.add(stampTimestamp);
+		mainPanel.add(targetRate);
+		mainPanel.add(rateProfile);
 		mainPanel.add(messageRoutingKey);
+		mainPanel.add(routingStrategy);
+		mainPanel.add(shardKey);
 		mainPanel.add(messageType);
 		mainPanel.add(replyToQueue);
 		mainPanel.add(correlationId);
 		mainPanel.add(contentType);
 		mainPanel.add(messageId);
 		mainPanel.add(headers);
+		mainPanel.add(payloadSource);
+		mainPanel.add(corpusFile);
+		mainPanel.add(corpusCursor);
+		mainPanel.add(compileTemplate);
+		mainPanel.add(payloadSize);
+		mainPanel.add(payloadContent);
 		mainPanel.add(message);
 	}
 
@@ -156,13 +243,29 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 		super.clearGui();
 		persistent.setSelected(AMQPPublisher.DEFAULT_PERSISTENT);
 		useTx.setSelected(AMQPPublisher.DEFAULT_USE_TX);
+		txBatchSize.setText(AMQPPublisher.DEFAULT_TX_BATCH_SIZE_STRING);
+		txBatchTime.setText(AMQPPublisher.DEFAULT_TX_BATCH_TIME_STRING);
+		useConfirms.setSelected(AMQPPublisher.DEFAULT_USE_CONFIRMS);
+		confirmWindow.setText(AMQPPublisher.DEFAULT_CONFIRM_WINDOW_STRING);
+		confirmTimeout.setText(AMQPPublisher.DEFAULT_CONFIRM_TIMEOUT_STRING);
+		stampTimestamp.setSelected(AMQPPublisher.DEFAULT_STAMP_TIMESTAMP);
+		targetRate.setText("");
+		rateProfile.setText("");
 		messageRoutingKey.setText("");
+		routingStrategy.setText(RoutingKeyGenerator.FIXED);
+		shardKey.setText("");
 		messageType.setText("");
 		replyToQueue.setText("");
 		correlationId.setText("");
 		contentType.setText("");
 		messageId.setText("");
 		headers.clearGui();
+		payloadSource.setText(AMQPPublisher.PAYLOAD_MESSAGE);
+		corpusFile.setText("");
+		corpusCursor.setText(PayloadCorpus.CURSOR_SHARED);
+		compileTemplate.setSelected(AMQPPublisher.DEFAULT_COMPILE_TEMPLATE);
+		payloadSize.setText("");
+		payloadContent.setText(PayloadGenerator.CONTENT_RANDOM);
 		message.setText("");
 	}
 
@@ -0,0 +1,97 @@
+package cn.i2cool.jmeter.protocol.amqp.gui;
+
+import java.awt.Dimension;
+
+import javax.swing.JPanel;
+
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import cn.i2cool.jmeter.protocol.amqp.AMQPRPCClient;
+
+/**
+ * GUI of {@link AMQPRPCClient}, the publisher settings plus the reply
+ * settings. The reply-to queue and correlation id of the publisher are
+ * replaced for every request.
+ */
+public class AMQPRPCClientGui extends AMQPPublisherGui {
+
+	private static final long serialVersionUID = 1L;
+
+	// assigned while the super constructor builds the panel
+	private JPanel mainPanel;
+	private JLabeledTextField replyTimeout;
+	private JLabeledTextField outstanding;
+
+	public AMQPRPCClientGui() {
+		super();
+		replyTimeout = new JLabeledTextField("Reply Timeout");
+		outstanding = new JLabeledTextField("Outstanding Requests");
+		replyTimeout.setPreferredSize(new Dimension(100, 25));
+		outstanding.setPreferredSize(new Dimension(100, 25));
+		mainPanel.add(replyTimeout);
+		mainPanel.add(outstanding);
+	}
+
+	@Override
+	public String getStaticLabel() {
+		return "AMQP RPC Client";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void configure(TestElement element) {
+		super.configure(element);
+		if (!(element instanceof AMQPRPCClient))
+			return;
+		AMQPRPCClient sampler = (AMQPRPCClient) element;
+
+		replyTimeout.setText(sampler.getReplyTimeout());
+		outstanding.setText(sampler.getOutstanding());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TestElement createTestElement() {
+		AMQPRPCClient sampler = new AMQPRPCClient();
+		modifyTestElement(sampler);
+		return sampler;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void modifyTestElement(TestElement te) {
+		super.modifyTestElement(te);
+		if (!(te instanceof AMQPRPCClient))
+			return;
+		AMQPRPCClient sampler = (AMQPRPCClient) te;
+
+		sampler.setReplyTimeout(replyTimeout.getText());
+		sampler.setOutstanding(outstanding.getText());
+	}
+
+	@Override
+	protected void setMainPanel(JPanel panel) {
+		super.setMainPanel(panel);
+		mainPanel = panel;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clearGui() {
+		super.clearGui();
+		// the fields do not exist yet while the super constructor runs
+		if (replyTimeout != null) {
+			replyTimeout.setText(AMQPRPCClient.DEFAULT_REPLY_TIMEOUT_STRING);
+			outstanding.setText(AMQPRPCClient.DEFAULT_OUTSTANDING_STRING);
+		}
+	}
+}
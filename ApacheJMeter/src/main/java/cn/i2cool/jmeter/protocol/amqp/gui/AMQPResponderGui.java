@@ -0,0 +1,156 @@
+package cn.i2cool.jmeter.protocol.amqp.gui;
+
+import java.awt.Dimension;
+
+import javax.swing.JCheckBox;
+import javax.swing.JPanel;
+
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import cn.i2cool.jmeter.protocol.amqp.AMQPResponder;
+import cn.i2cool.jmeter.protocol.amqp.AMQPSampler;
+
+public class AMQPResponderGui extends AMQPConnectionConfigGui {
+
+	private static final long serialVersionUID = 1L;
+
+	private final JLabeledTextField queue = new JLabeledTextField("Queue");
+	private final JLabeledTextField consumers = new JLabeledTextField("Consumers");
+	private final JLabeledTextField prefetchCount = new JLabeledTextField("Prefetch Count");
+	private final JLabeledTextField serviceTime = new JLabeledTextField("Service Time (ms)");
+	private final JCheckBox declareQueue = new JCheckBox("Declare Queue?", true);
+	private final JLabeledChoice queueType = new JLabeledChoice("Queue Type",
+			new String[] { AMQPSampler.QUEUE_TYPE_CLASSIC, AMQPSampler.QUEUE_TYPE_QUORUM });
+	private final JCheckBox queueDurable = new JCheckBox("Durable?", false);
+	private final JCheckBox queueAutoDelete = new JCheckBox("Auto Delete?", true);
+	private final JLabeledTextField exchange = new JLabeledTextField("Exchange");
+	private final JLabeledChoice exchangeType = new JLabeledChoice("Exchange Type",
+			new String[] { "direct", "topic", "headers", "fanout" });
+	private final JCheckBox exchangeDurable = new JCheckBox("Exchange Durable?",
+			AMQPSampler.DEFAULT_EXCHANGE_DURABLE);
+	private final JCheckBox exchangeAutoDelete = new JCheckBox("Exchange Auto Delete?",
+			AMQPSampler.DEFAULT_EXCHANGE_AUTO_DELETE);
+	private final JLabeledTextField routingKey = new JLabeledTextField("Routing Key");
+
+	private JPanel mainPanel;
+
+	public AMQPResponderGui() {
+		init();
+	}
+
+	@Override
+	public String getStaticLabel() {
+		return "AMQP Responder";
+	}
+
+	@Override
+	protected void init() {
+		super.init();
+		queue.setPreferredSize(new Dimension(100, 25));
+		consumers.setPreferredSize(new Dimension(100, 25));
+		prefetchCount.setPreferredSize(new Dimension(100, 25));
+		serviceTime.setPreferredSize(new Dimension(100, 25));
+		exchange.setPreferredSize(new Dimension(100, 25));
+		routingKey.setPreferredSize(new Dimension(100, 25));
+
+		mainPanel.add(queue);
+		mainPanel.add(declareQueue);
+		mainPanel.add(queueType);
+		mainPanel.add(queueDurable);
+		mainPanel.add(queueAutoDelete);
+		mainPanel.add(exchange);
+		mainPanel.add(exchangeType);
+		mainPanel.add(exchangeDurable);
+		mainPanel.add(exchangeAutoDelete);
+		mainPanel.add(routingKey);
+		mainPanel.add(consumers);
+		mainPanel.add(prefetchCount);
+		mainPanel.add(serviceTime);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void configure(TestElement element) {
+		super.configure(element);
+		if (!(element instanceof AMQPResponder))
+			return;
+		AMQPResponder responder = (AMQPResponder) element;
+
+		queue.setText(responder.getQueue());
+		declareQueue.setSelected(responder.getDeclareQueue());
+		queueType.setText(responder.getQueueType());
+		queueDurable.setSelected(responder.getQueueDurable());
+		queueAutoDelete.setSelected(responder.getQueueAutoDelete());
+		exchange.setText(responder.getExchange());
+		exchangeType.setText(responder.getExchangeType());
+		exchangeDurable.setSelected(responder.getExchangeDurable());
+		exchangeAutoDelete.setSelected(responder.getExchangeAutoDelete());
+		routingKey.setText(responder.getRoutingKey());
+		consumers.setText(responder.getConsumers());
+		prefetchCount.setText(responder.getPrefetchCount());
+		serviceTime.setText(responder.getServiceTime());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clearGui() {
+		super.clearGui();
+		queue.setText("jmeterRpcQueue");
+		declareQueue.setSelected(true);
+		queueType.setText(AMQPSampler.QUEUE_TYPE_CLASSIC);
+		queueDurable.setSelected(false);
+		queueAutoDelete.setSelected(true);
+		exchange.setText("");
+		exchangeType.setText("direct");
+		exchangeDurable.setSelected(AMQPSampler.DEFAULT_EXCHANGE_DURABLE);
+		exchangeAutoDelete.setSelected(AMQPSampler.DEFAULT_EXCHANGE_AUTO_DELETE);
+		routingKey.setText("");
+		consumers.setText(AMQPResponder.DEFAULT_CONSUMERS_STRING);
+		prefetchCount.setText(AMQPResponder.DEFAULT_PREFETCH_COUNT_STRING);
+		serviceTime.setText("");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TestElement createTestElement() {
+		AMQPResponder responder = new AMQPResponder();
+		modifyTestElement(responder);
+		return responder;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void modifyTestElement(TestElement te) {
+		AMQPResponder responder = (AMQPResponder) te;
+		super.modifyTestElement(responder);
+
+		responder.setQueue(queue.getText());
+		responder.setDeclareQueue(declareQueue.isSelected());
+		responder.setQueueType(queueType.getText());
+		responder.setQueueDurable(queueDurable.isSelected());
+		responder.setQueueAutoDelete(queueAutoDelete.isSelected());
+		responder.setExchange(exchange.getText());
+		responder.setExchangeType(exchangeType.getText());
+		responder.setExchangeDurable(exchangeDurable.isSelected());
+		responder.setExchangeAutoDelete(exchangeAutoDelete.isSelected());
+		responder.setRoutingKey(routingKey.getText());
+		responder.setConsumers(consumers.getText());
+		responder.setPrefetchCount(prefetchCount.getText());
+		responder.setServiceTime(serviceTime.getText());
+	}
+
+	@Override
+	protected void setMainPanel(JPanel panel) {
+		mainPanel = panel;
+	}
+}
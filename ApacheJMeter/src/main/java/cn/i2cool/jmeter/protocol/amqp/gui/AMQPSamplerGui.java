@@ -19,6 +19,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import cn.i2cool.jmeter.protocol.amqp.AMQPSampler;
+import cn.i2cool.jmeter.protocol.amqp.ClusterBalancer;
 
 public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 
@@ -34,12 +35,15 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 	protected JLabeledTextField messageTTL = new JLabeledTextField("Message TTL");
 	protected JLabeledTextField messageExpires = new JLabeledTextField("Expires");
 	protected JLabeledTextField queuePriority = new JLabeledTextField("Queue Priority");
+	protected JLabeledTextField shardCount = new JLabeledTextField("Shards (%d in Queue/Routing Key)");
 	protected JLabeledChoice exchangeType = new JLabeledChoice("Exchange Type",
 			new String[] { "direct", "topic", "headers", "fanout" });
 	private final JCheckBox exchangeDurable = new JCheckBox("Durable?", AMQPSampler.DEFAULT_EXCHANGE_DURABLE);
 	private final JCheckBox exchangeAutoDelete = new JCheckBox("Auto Delete?",
 			AMQPSampler.DEFAULT_EXCHANGE_AUTO_DELETE);
 	private final JCheckBox queueDurable = new JCheckBox("Durable?", true);
+	private final JLabeledChoice queueType = new JLabeledChoice("Queue Type", new String[] {
+			AMQPSampler.QUEUE_TYPE_CLASSIC, AMQPSampler.QUEUE_TYPE_QUORUM, AMQPSampler.QUEUE_TYPE_STREAM });
 	private final JCheckBox queueRedeclare = new JCheckBox("Redeclare?", AMQPSampler.DEFAULT_QUEUE_REDECLARE);
 	private final JCheckBox queueExclusive = new JCheckBox("Exclusive", true);
 	private final JCheckBox queueAutoDelete = new JCheckBox("Auto Delete?", true);
@@ -50,8 +54,28 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 	protected JLabeledTextField username = new JLabeledTextField("Username");
 	protected JLabeledTextField password = new JLabeledTextField("Password");
 	private final JCheckBox ssl = new JCheckBox("SSL?", false);
+	protected JLabeledTextField connectionPoolSize = new JLabeledTextField("Shared Connections");
+	protected JLabeledTextField channelsPerConnection = new JLabeledTextField("Channels per Connection");
+	protected JLabeledTextField heartbeat = new JLabeledTextField("Heartbeat (s)");
+	private final JCheckBox automaticRecovery = new JCheckBox("Automatic Recovery?",
+			AMQPSampler.DEFAULT_AUTOMATIC_RECOVERY);
+	private final JCheckBox nio = new JCheckBox("NIO?", AMQPSampler.DEFAULT_NIO);
+	protected JLabeledTextField nioThreads = new JLabeledTextField("NIO Threads");
+	protected JLabeledTextField nioReadBufferSize = new JLabeledTextField("NIO Read Buffer");
+	protected JLabeledTextField nioWriteBufferSize = new JLabeledTextField("NIO Write Buffer");
+	private final JLabeledChoice balancing = new JLabeledChoice("Balancing", new String[] { ClusterBalancer.SHUFFLE,
+			ClusterBalancer.ROUND_ROBIN, ClusterBalancer.LEAST_CONNECTIONS });
+	private final JCheckBox labelByNode = new JCheckBox("Add Node to Sample Label?",
+			AMQPSampler.DEFAULT_LABEL_BY_NODE);
 
 	private final JLabeledTextField iterations = new JLabeledTextField("Number of samples to Aggregate");
+	private final JLabeledChoice resultMode = new JLabeledChoice("Result Mode",
+			new String[] { AMQPSampler.RESULT_MODE_FULL, AMQPSampler.RESULT_MODE_METRICS });
+	private final JLabeledTextField bodySampleBytes = new JLabeledTextField("Keep First N Body Bytes");
+	private final JLabeledTextField bodySampleRate = new JLabeledTextField("Keep Body of 1 in K Samples");
+	private final JLabeledChoice messageTimings = new JLabeledChoice("Per-Message Timings",
+			new String[] { AMQPSampler.MESSAGE_TIMINGS_NONE, AMQPSampler.MESSAGE_TIMINGS_PERCENTILES,
+					AMQPSampler.MESSAGE_TIMINGS_SUBRESULTS });
 
 	protected abstract void setMainPanel(JPanel panel);
 
@@ -76,19 +100,35 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 		messageTTL.setText(sampler.getMessageTTL());
 		messageExpires.setText(sampler.getMessageExpires());
 		queuePriority.setText(sampler.getQueuePriority());
+		shardCount.setText(sampler.getShardCount());
 		queueDurable.setSelected(sampler.queueDurable());
 		queueExclusive.setSelected(sampler.queueExclusive());
 		queueAutoDelete.setSelected(sampler.queueAutoDelete());
 		queueRedeclare.setSelected(sampler.getQueueRedeclare());
+		queueType.setText(sampler.getQueueType());
 
 		timeout.setText(sampler.getTimeout());
 		iterations.setText(sampler.getIterations());
+		resultMode.setText(sampler.getResultMode());
+		bodySampleBytes.setText(sampler.getBodySampleBytes());
+		bodySampleRate.setText(sampler.getBodySampleRate());
+		messageTimings.setText(sampler.getMessageTimings());
 
 		host.setText(sampler.getHost());
 		port.setText(sampler.getPort());
 		username.setText(sampler.getUsername());
 		password.setText(sampler.getPassword());
 		ssl.setSelected(sampler.connectionSSL());
+		connectionPoolSize.setText(sampler.getConnectionPoolSize());
+		channelsPerConnection.setText(sampler.getChannelsPerConnection());
+		heartbeat.setText(sampler.getHeartbeat());
+		automaticRecovery.setSelected(sampler.getAutomaticRecovery());
+		nio.setSelected(sampler.getNio());
+		nioThreads.setText(sampler.getNioThreads());
+		nioReadBufferSize.setText(sampler.getNioReadBufferSize());
+		nioWriteBufferSize.setText(sampler.getNioWriteBufferSize());
+		balancing.setText(sampler.getBalancing());
+		labelByNode.setSelected(sampler.getLabelByNode());
 		log.info("AMQPSamplerGui.configure() called");
 	}
 
@@ -108,19 +148,35 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 		messageExpires.setText("");
 		exchangeType.setText("direct");
 		queuePriority.setText("");
+		shardCount.setText(AMQPSampler.DEFAULT_SHARD_COUNT_STRING);
 		queueDurable.setSelected(true);
 		queueExclusive.setSelected(false);
 		queueAutoDelete.setSelected(false);
 		queueRedeclare.setSelected(AMQPSampler.DEFAULT_QUEUE_REDECLARE);
+		queueType.setText(AMQPSampler.QUEUE_TYPE_CLASSIC);
 
 		timeout.setText(AMQPSampler.DEFAULT_TIMEOUT_STRING);
 		iterations.setText(AMQPSampler.DEFAULT_ITERATIONS_STRING);
+		resultMode.setText(AMQPSampler.RESULT_MODE_FULL);
+		bodySampleBytes.setText("");
+		bodySampleRate.setText("");
+		messageTimings.setText(AMQPSampler.MESSAGE_TIMINGS_NONE);
 
 		host.setText("localhost");
 		port.setText(AMQPSampler.DEFAULT_PORT_STRING);
 		username.setText("guest");
 		password.setText("guest");
 		ssl.setSelected(false);
+		connectionPoolSize.setText(AMQPSampler.DEFAULT_CONNECTION_POOL_SIZE_STRING);
+		channelsPerConnection.setText(AMQPSampler.DEFAULT_CHANNELS_PER_CONNECTION_STRING);
+		heartbeat.setText(AMQPSampler.DEFAULT_HEARTBEAT_STRING);
+		automaticRecovery.setSelected(AMQPSampler.DEFAULT_AUTOMATIC_RECOVERY);
+		nio.setSelected(AMQPSampler.DEFAULT_NIO);
+		nioThreads.setText("");
+		nioReadBufferSize.setText("");
+		nioWriteBufferSize.setText("");
+		balancing.setText(ClusterBalancer.SHUFFLE);
+		labelByNode.setSelected(AMQPSampler.DEFAULT_LABEL_BY_NODE);
 	}
 
 	/**
@@ -143,19 +199,35 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 		sampler.setMessageExpires(messageExpires.getText());
 		sampler.setExchangeType(exchangeType.getText());
 		sampler.setQueuePriority(queuePriority.getText());
+		sampler.setShardCount(shardCount.getText());
 		sampler.setQueueDurable(queueDurable.isSelected());
 		sampler.setQueueExclusive(queueExclusive.isSelected());
 		sampler.setQueueAutoDelete(queueAutoDelete.isSelected());
 		sampler.setQueueRedeclare(queueRedeclare.isSelected());
+		sampler.setQueueType(queueType.getText());
 
 		sampler.setTimeout(timeout.getText());
 		sampler.setIterations(iterations.getText());
+		sampler.setResultMode(resultMode.getText());
+		sampler.setBodySampleBytes(bodySampleBytes.getText());
+		sampler.setBodySampleRate(bodySampleRate.getText());
+		sampler.setMessageTimings(messageTimings.getText());
 
 		sampler.setHost(host.getText());
 		sampler.setPort(port.getText());
 		sampler.setUsername(username.getText());
 		sampler.setPassword(password.getText());
 		sampler.setConnectionSSL(ssl.isSelected());
+		sampler.setConnectionPoolSize(connectionPoolSize.getText());
+		sampler.setChannelsPerConnection(channelsPerConnection.getText());
+		sampler.setHeartbeat(heartbeat.getText());
+		sampler.setAutomaticRecovery(automaticRecovery.isSelected());
+		sampler.setNio(nio.isSelected());
+		sampler.setNioThreads(nioThreads.getText());
+		sampler.setNioReadBufferSize(nioReadBufferSize.getText());
+		sampler.setNioWriteBufferSize(nioWriteBufferSize.getText());
+		sampler.setBalancing(balancing.getText());
+		sampler.setLabelByNode(labelByNode.isSelected());
 	}
 
 	protected void init() {
@@ -169,6 +241,11 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 
 		iterations.setPreferredSize(new Dimension(50, 25));
 		mainPanel.add(iterations);
+		mainPanel.add(messageTimings);
+		mainPanel.add(labelByNode);
+		mainPanel.add(resultMode);
+		mainPanel.add(bodySampleBytes);
+		mainPanel.add(bodySampleRate);
 
 		add(mainPanel);
 
@@ -236,6 +313,10 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 		gridBagConstraints.gridx = 0;
 		gridBagConstraints.gridy = 4;
 		queueSettings.add(queuePriority, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 5;
+		queueSettings.add(shardCount, gridBagConstraints);
 		
 		gridBagConstraints.gridx = 1;
 		gridBagConstraints.gridy = 1;
@@ -253,6 +334,10 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 		gridBagConstraints.gridy = 1;
 		queueSettings.add(queueRedeclare, gridBagConstraints);
 
+		gridBagConstraints.gridx = 1;
+		gridBagConstraints.gridy = 4;
+		queueSettings.add(queueType, gridBagConstraints);
+
 		gridBagConstraintsCommon.gridx = 0;
 		gridBagConstraintsCommon.gridy = 0;
 
@@ -273,6 +358,10 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 		gridBagConstraints.gridy = 1;
 		serverSettings.add(host, gridBagConstraints);
 
+		gridBagConstraints.gridx = 1;
+		gridBagConstraints.gridy = 1;
+		serverSettings.add(balancing, gridBagConstraints);
+
 		gridBagConstraints.gridx = 0;
 		gridBagConstraints.gridy = 2;
 		serverSettings.add(port, gridBagConstraints);
@@ -293,6 +382,38 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 		gridBagConstraints.gridy = 5;
 		serverSettings.add(timeout, gridBagConstraints);
 
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 6;
+		serverSettings.add(connectionPoolSize, gridBagConstraints);
+
+		gridBagConstraints.gridx = 1;
+		gridBagConstraints.gridy = 6;
+		serverSettings.add(channelsPerConnection, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 7;
+		serverSettings.add(heartbeat, gridBagConstraints);
+
+		gridBagConstraints.gridx = 1;
+		gridBagConstraints.gridy = 7;
+		serverSettings.add(automaticRecovery, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 8;
+		serverSettings.add(nioThreads, gridBagConstraints);
+
+		gridBagConstraints.gridx = 1;
+		gridBagConstraints.gridy = 8;
+		serverSettings.add(nio, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 9;
+		serverSettings.add(nioReadBufferSize, gridBagConstraints);
+
+		gridBagConstraints.gridx = 0;
+		gridBagConstraints.gridy = 10;
+		serverSettings.add(nioWriteBufferSize, gridBagConstraints);
+
 		gridBagConstraintsCommon.gridx = 1;
 		gridBagConstraintsCommon.gridy = 0;
 
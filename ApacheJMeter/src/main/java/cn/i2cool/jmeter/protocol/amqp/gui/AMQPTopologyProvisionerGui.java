@@ -0,0 +1,132 @@
+package cn.i2cool.jmeter.protocol.amqp.gui;
+
+import java.awt.Dimension;
+
+import javax.swing.JCheckBox;
+import javax.swing.JPanel;
+
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import cn.i2cool.jmeter.protocol.amqp.AMQPTopologyProvisioner;
+
+public class AMQPTopologyProvisionerGui extends AMQPConnectionConfigGui {
+
+	private static final long serialVersionUID = 1L;
+
+	private final JLabeledTextField exchange = new JLabeledTextField("Exchange");
+	private final JLabeledChoice exchangeType = new JLabeledChoice("Exchange Type",
+			new String[] { "direct", "topic", "headers", "fanout" });
+	private final JLabeledTextField queuePattern = new JLabeledTextField("Queue Name Pattern");
+	private final JLabeledTextField queueStart = new JLabeledTextField("First Queue Index");
+	private final JLabeledTextField queueCount = new JLabeledTextField("Number of Queues");
+	private final JLabeledTextField bindingPattern = new JLabeledTextField("Binding Key Pattern");
+	private final JLabeledTextField parallelism = new JLabeledTextField("Channels");
+	private final JCheckBox durable = new JCheckBox("Durable?", true);
+	private final JCheckBox teardown = new JCheckBox("Delete at Test End?", true);
+
+	private JPanel mainPanel;
+
+	public AMQPTopologyProvisionerGui() {
+		init();
+	}
+
+	@Override
+	public String getStaticLabel() {
+		return "AMQP Topology Provisioner";
+	}
+
+	@Override
+	protected void init() {
+		super.init();
+		exchange.setPreferredSize(new Dimension(100, 25));
+		queuePattern.setPreferredSize(new Dimension(100, 25));
+		queueStart.setPreferredSize(new Dimension(100, 25));
+		queueCount.setPreferredSize(new Dimension(100, 25));
+		bindingPattern.setPreferredSize(new Dimension(100, 25));
+		parallelism.setPreferredSize(new Dimension(100, 25));
+
+		mainPanel.add(exchange);
+		mainPanel.add(exchangeType);
+		mainPanel.add(queuePattern);
+		mainPanel.add(queueStart);
+		mainPanel.add(queueCount);
+		mainPanel.add(bindingPattern);
+		mainPanel.add(parallelism);
+		mainPanel.add(durable);
+		mainPanel.add(teardown);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void configure(TestElement element) {
+		super.configure(element);
+		if (!(element instanceof AMQPTopologyProvisioner))
+			return;
+		AMQPTopologyProvisioner provisioner = (AMQPTopologyProvisioner) element;
+
+		exchange.setText(provisioner.getExchange());
+		exchangeType.setText(provisioner.getExchangeType());
+		queuePattern.setText(provisioner.getQueuePattern());
+		queueStart.setText(provisioner.getQueueStart());
+		queueCount.setText(provisioner.getQueueCount());
+		bindingPattern.setText(provisioner.getBindingPattern());
+		parallelism.setText(provisioner.getParallelism());
+		durable.setSelected(provisioner.getDurable());
+		teardown.setSelected(provisioner.getTeardown());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clearGui() {
+		super.clearGui();
+		exchange.setText("jmeterExchange");
+		exchangeType.setText("topic");
+		queuePattern.setText(AMQPTopologyProvisioner.DEFAULT_QUEUE_PATTERN);
+		queueStart.setText("0");
+		queueCount.setText("100");
+		bindingPattern.setText("key.%04d.#");
+		parallelism.setText(AMQPTopologyProvisioner.DEFAULT_PARALLELISM_STRING);
+		durable.setSelected(true);
+		teardown.setSelected(true);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TestElement createTestElement() {
+		AMQPTopologyProvisioner provisioner = new AMQPTopologyProvisioner();
+		modifyTestElement(provisioner);
+		return provisioner;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void modifyTestElement(TestElement te) {
+		AMQPTopologyProvisioner provisioner = (AMQPTopologyProvisioner) te;
+		super.modifyTestElement(provisioner);
+
+		provisioner.setExchange(exchange.getText());
+		provisioner.setExchangeType(exchangeType.getText());
+		provisioner.setQueuePattern(queuePattern.getText());
+		provisioner.setQueueStart(queueStart.getText());
+		provisioner.setQueueCount(queueCount.getText());
+		provisioner.setBindingPattern(bindingPattern.getText());
+		provisioner.setParallelism(parallelism.getText());
+		provisioner.setDurable(durable.isSelected());
+		provisioner.setTeardown(teardown.isSelected());
+	}
+
+	@Override
+	protected void setMainPanel(JPanel panel) {
+		mainPanel = panel;
+	}
+}
@@ -0,0 +1,58 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class AckBatcherTest extends TestCase {
+
+	private final RecordingChannel channel = new RecordingChannel();
+
+	public void testAcksEveryBatchWithOneMultipleAck() throws IOException {
+		AckBatcher batcher = new AckBatcher(channel, 3, 0, false);
+		for (long tag = 1; tag <= 7; tag++) {
+			batcher.add(tag);
+		}
+		assertEquals(Arrays.asList("ack 3 multiple", "ack 6 multiple"), channel.calls);
+		batcher.flush();
+		assertEquals("ack 7", channel.calls.get(2));
+		batcher.flush();
+		assertEquals(3, channel.calls.size());
+	}
+
+	public void testCommitsWithEveryBatch() throws IOException {
+		AckBatcher batcher = new AckBatcher(channel, 2, 0, true);
+		batcher.add(1);
+		batcher.add(2);
+		assertEquals(Arrays.asList("ack 2 multiple", "commit"), channel.calls);
+	}
+
+	public void testFlushesOnceTheOldestDeliveryIsDue() throws Exception {
+		AckBatcher batcher = new AckBatcher(channel, 100, 20, false);
+		batcher.add(1);
+		batcher.flushIfDue();
+		assertEquals(Collections.emptyList(), channel.calls);
+		TimeUnit.MILLISECONDS.sleep(30);
+		batcher.flushIfDue();
+		assertEquals(Collections.singletonList("ack 1"), channel.calls);
+	}
+
+	public void testNothingIsSentOnAClosedChannel() throws IOException {
+		AckBatcher batcher = new AckBatcher(channel, 100, 0, false);
+		batcher.add(1);
+		channel.open = false;
+		batcher.flush();
+		assertEquals(Collections.emptyList(), channel.calls);
+	}
+
+	public void testSampleStatsAreTakenOnce() throws IOException {
+		AckBatcher batcher = new AckBatcher(channel, 1, 0, false);
+		batcher.add(1);
+		batcher.add(2);
+		assertTrue(batcher.takeSampleStats().startsWith("Ack Batches: 2\n"));
+		assertTrue(batcher.takeSampleStats().startsWith("Ack Batches: 0\n"));
+	}
+}
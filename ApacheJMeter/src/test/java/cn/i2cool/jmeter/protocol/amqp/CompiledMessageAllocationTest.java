@@ -0,0 +1,118 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.jmeter.config.Arguments;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.impl.recovery.AutorecoveringChannel;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Allocation-rate check of the publisher's per-message path.
+ *
+ * Runs whole samples of many messages against a channel that only counts
+ * the publishes, so the properties, routing key and body handed to
+ * basicPublish are prepared exactly as against a broker. The bytes the
+ * sampler thread allocates per message should stay near zero for a static
+ * message; the per-sample result is spread over the messages of the sample.
+ *
+ * Surefire skips the tests by default, run it with
+ * {@code mvn test -DskipTests=false -Dtest=CompiledMessageAllocationTest}.
+ */
+public class CompiledMessageAllocationTest extends TestCase {
+
+	private static final int MESSAGES_PER_SAMPLE = 1000;
+	private static final int WARMUP_SAMPLES = 100;
+	private static final int SAMPLES = 50;
+
+	public CompiledMessageAllocationTest(String testName) {
+		super(testName);
+	}
+
+	public static Test suite() {
+		return new TestSuite(CompiledMessageAllocationTest.class);
+	}
+
+	public void testStaticMessageIsAllocationFree() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		CountingChannel channel = new CountingChannel();
+		AMQPPublisher publisher = newPublisher(channel);
+		for (int i = 0; i < WARMUP_SAMPLES; i++) {
+			assertTrue(publisher.sample(null).isSuccessful());
+		}
+		long threadId = Thread.currentThread().getId();
+		long publishedBefore = channel.published;
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < SAMPLES; i++) {
+			publisher.sample(null);
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+		int messages = SAMPLES * MESSAGES_PER_SAMPLE;
+		assertEquals(messages, channel.published - publishedBefore);
+		double perMessage = (double) allocated / messages;
+		assertTrue("publish path allocates " + perMessage + " bytes per message", perMessage < 8.0);
+	}
+
+	public void testStaticMessageIsCompiledOnce() {
+		AMQPPublisher publisher = new AMQPPublisher();
+		publisher.setMessage("first");
+		publisher.setHeaders(new Arguments());
+		CompiledMessage first = publisher.getCompiledMessage();
+		assertSame(first, publisher.getCompiledMessage());
+		assertEquals("first", new String(first.getBody()));
+	}
+
+	private static AMQPPublisher newPublisher(CountingChannel channel) {
+		AMQPPublisher publisher = new AMQPPublisher();
+		publisher.setMessage("{\"order\":42,\"items\":[1,2,3]}");
+		publisher.setContentType("application/json");
+		publisher.setExchange("orders");
+		publisher.setMessageRoutingKey("orders.created");
+		publisher.setIterations(Integer.toString(MESSAGES_PER_SAMPLE));
+		publisher.setResultMode(AMQPSampler.RESULT_MODE_METRICS);
+		Arguments headers = new Arguments();
+		headers.addArgument("tenant", "load-test");
+		publisher.setHeaders(headers);
+		publisher.setChannel(channel);
+		return publisher;
+	}
+
+	/**
+	 * An open channel that counts the publishes, without a connection.
+	 */
+	private static final class CountingChannel extends AutorecoveringChannel {
+
+		long published;
+
+		CountingChannel() {
+			super(null, null);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public Connection getConnection() {
+			return null;
+		}
+
+		@Override
+		public void basicPublish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+			published++;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+	public void testSmallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int value = 1; value <= 100; value++) {
+			histogram.record(value);
+		}
+		assertEquals(100, histogram.getTotalCount());
+		assertEquals(50, histogram.getMean());
+		assertEquals(50, histogram.getValueAtPercentile(50));
+		assertEquals(99, histogram.getValueAtPercentile(99));
+		assertEquals(100, histogram.getValueAtPercentile(100));
+		assertEquals(100, histogram.getMax());
+	}
+
+	public void testLargeValuesAreWithinTheBucketPrecision() {
+		for (long value = 100; value < LatencyHistogram.MAX_VALUE; value = value * 3 + 7) {
+			LatencyHistogram histogram = new LatencyHistogram();
+			histogram.record(value);
+			histogram.record(value + 1);
+			long reported = histogram.getValueAtPercentile(50);
+			assertTrue(value + " reported as " + reported, reported >= value && reported <= value * 1.016 + 1);
+		}
+	}
+
+	public void testBucketsDoNotOverlap() {
+		for (int index = 1; index < LatencyHistogram.indexOf(LatencyHistogram.MAX_VALUE); index++) {
+			long highest = LatencyHistogram.highestEquivalentValue(index);
+			assertEquals(index, LatencyHistogram.indexOf(highest));
+			assertEquals(index + 1, LatencyHistogram.indexOf(highest + 1));
+		}
+	}
+
+	public void testOutOfRangeValuesAreClamped() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+		assertEquals(LatencyHistogram.MAX_VALUE, histogram.getValueAtPercentile(100));
+	}
+
+	public void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		assertEquals(0, histogram.getMean());
+		assertEquals("count=0 mean=0us p50=0us p99=0us p99.9=0us max=0us", histogram.summary());
+	}
+}
@@ -0,0 +1,95 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+/**
+ * Compares the JVM thread count and publish throughput of blocking I/O and
+ * NIO connections as the number of connections grows. Needs a broker:
+ *
+ * <pre>
+ * java cn.i2cool.jmeter.protocol.amqp.NioTransportBenchmark [host] [port] [connections,...] [messages]
+ * </pre>
+ *
+ * Messages are published to the default exchange with a routing key no queue
+ * is bound to, so the broker drops them.
+ */
+public class NioTransportBenchmark {
+
+	private static final int PUBLISHERS = 8;
+	private static final byte[] BODY = new byte[256];
+
+	public static void main(String[] args) throws Exception {
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 5672;
+		String[] counts = (args.length > 2 ? args[2] : "10,100,1000").split(",");
+		int messages = args.length > 3 ? Integer.parseInt(args[3]) : 200000;
+
+		System.out.printf("%-9s %12s %10s %12s%n", "transport", "connections", "threads", "msg/s");
+		for (String count : counts) {
+			for (boolean nio : new boolean[] { false, true }) {
+				run(host, port, Integer.parseInt(count.trim()), messages, nio);
+			}
+		}
+	}
+
+	private static void run(String host, int port, int connectionCount, int messages, boolean nio)
+			throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int baseline = threads.getThreadCount();
+		AMQPConnectionSettings settings = new AMQPConnectionSettings(host, port, "/", "guest", "guest", false, 10000,
+				AMQPConnectionSettings.DEFAULT_HEARTBEAT, false, nio, 0, 0, 0, ClusterBalancer.SHUFFLE);
+		ConnectionFactory factory = settings.newConnectionFactory();
+		List<Connection> connections = new ArrayList<>();
+		List<Channel> channels = new ArrayList<>();
+		ExecutorService publishers = Executors.newFixedThreadPool(PUBLISHERS);
+		try {
+			for (int i = 0; i < connectionCount; i++) {
+				Connection connection = settings.newConnection(factory);
+				connections.add(connection);
+				channels.add(connection.createChannel());
+			}
+			int threadCount = threads.getThreadCount() - baseline;
+
+			// no more publishers than channels, so every publisher sends
+			int publisherCount = Math.min(PUBLISHERS, connectionCount);
+			int perPublisher = messages / publisherCount;
+			long start = System.nanoTime();
+			List<Future<?>> done = new ArrayList<>();
+			for (int p = 0; p < publisherCount; p++) {
+				int publisher = p;
+				done.add(publishers.submit(() -> {
+					// every publisher owns the channels i with i % publisherCount == publisher
+					int owned = (connectionCount - publisher + publisherCount - 1) / publisherCount;
+					for (int m = 0; m < perPublisher; m++) {
+						Channel channel = channels.get(publisher + (m % owned) * publisherCount);
+						channel.basicPublish("", "nio-benchmark-unroutable", null, BODY);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : done) {
+				future.get();
+			}
+			long elapsed = System.nanoTime() - start;
+			long sent = (long) perPublisher * publisherCount;
+			System.out.printf("%-9s %12d %10d %12d%n", nio ? "nio" : "blocking", connectionCount, threadCount,
+					sent * TimeUnit.SECONDS.toNanos(1) / elapsed);
+		} finally {
+			publishers.shutdownNow();
+			for (Connection connection : connections) {
+				connection.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class PayloadGeneratorTest extends TestCase {
+
+	public void testParseSize() {
+		assertEquals(512, PayloadGenerator.parseSize("512"));
+		assertEquals(512, PayloadGenerator.parseSize("512B"));
+		assertEquals(1024, PayloadGenerator.parseSize("1KB"));
+		assertEquals(1536, PayloadGenerator.parseSize("1.5 kb"));
+		assertEquals(2 * 1024 * 1024, PayloadGenerator.parseSize(" 2 MB "));
+		for (String size : new String[] { "-1", "abc", "4096MB" }) {
+			try {
+				PayloadGenerator.parseSize(size);
+				fail("accepted " + size);
+			} catch (IllegalArgumentException e) {
+				// expected, NumberFormatException included
+			}
+		}
+	}
+
+	public void testFixedSizeAndCounter() {
+		PayloadGenerator generator = PayloadGenerator.create("fixed:16", PayloadGenerator.CONTENT_COMPRESSIBLE);
+		byte[] first = generator.next();
+		assertEquals(16, first.length);
+		assertEquals(0, first[7]);
+		byte[] second = generator.next();
+		assertSame(first, second);
+		assertEquals(1, second[7]);
+		assertEquals('s', second[8]);
+	}
+
+	public void testEmpiricalWeightsAreRelativeToTheirSum() {
+		PayloadGenerator generator = PayloadGenerator.create("3% 10, 1% 20", PayloadGenerator.CONTENT_RANDOM);
+		Map<Integer, Integer> counts = new HashMap<>();
+		int samples = 40000;
+		for (int i = 0; i < samples; i++) {
+			counts.merge(generator.next().length, 1, Integer::sum);
+		}
+		assertEquals(2, counts.size());
+		double small = counts.get(10) / (double) samples;
+		assertTrue("share of 10 byte bodies " + small, Math.abs(small - 0.75) < 0.02);
+	}
+
+	public void testUniformIsBucketed() {
+		PayloadGenerator generator = PayloadGenerator.create("uniform:1KB:1MB", PayloadGenerator.CONTENT_RANDOM);
+		Set<Integer> sizes = new HashSet<>();
+		for (int i = 0; i < 10000; i++) {
+			int size = generator.next().length;
+			assertTrue(size >= 1024 && size <= 1024 * 1024);
+			sizes.add(size);
+		}
+		assertEquals(PayloadGenerator.UNIFORM_STEPS, sizes.size());
+		assertTrue(sizes.contains(1024));
+		assertTrue(sizes.contains(1024 * 1024));
+	}
+
+	public void testNarrowUniformRangeHasOneBucketPerSize() {
+		PayloadGenerator generator = PayloadGenerator.create("uniform:10:12", PayloadGenerator.CONTENT_RANDOM);
+		Set<Integer> sizes = new HashSet<>();
+		for (int i = 0; i < 1000; i++) {
+			sizes.add(generator.next().length);
+		}
+		assertEquals(3, sizes.size());
+	}
+
+	public void testInvalidSpecs() {
+		for (String spec : new String[] { "uniform:10:5", "uniform:10", "0% 10, 0% 20", "-5% 10, 10% 20",
+				"% 10" }) {
+			try {
+				PayloadGenerator.create(spec, PayloadGenerator.CONTENT_RANDOM);
+				fail("accepted " + spec);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		try {
+			PayloadGenerator.create("10", "zeros");
+			fail("accepted unknown content");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
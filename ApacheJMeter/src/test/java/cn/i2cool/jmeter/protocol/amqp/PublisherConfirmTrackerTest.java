@@ -0,0 +1,68 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+public class PublisherConfirmTrackerTest extends TestCase {
+
+	public void testMultipleAckConfirmsEverythingUpToTheTag() throws Exception {
+		PublisherConfirmTracker tracker = new PublisherConfirmTracker(10, 1000);
+		for (long seqNo = 1; seqNo <= 5; seqNo++) {
+			tracker.register(seqNo);
+		}
+		tracker.handleAck(3, true);
+		assertEquals(2, tracker.getOutstanding());
+		tracker.handleNack(5, false);
+		assertEquals(1, tracker.getOutstanding());
+		PublisherConfirmTracker.Snapshot snapshot = tracker.snapshot();
+		assertEquals(1, snapshot.getNacked());
+		assertTrue(snapshot.format().startsWith("Confirmed: 3\nNacked: 1\nTimed Out: 0\nOutstanding: 1\n"));
+		assertEquals(0, tracker.snapshot().getNacked());
+	}
+
+	public void testUnknownAndRepeatedConfirmsAreIgnored() throws Exception {
+		PublisherConfirmTracker tracker = new PublisherConfirmTracker(10, 1000);
+		tracker.register(1);
+		tracker.handleAck(1, false);
+		tracker.handleAck(1, false);
+		tracker.handleAck(7, true);
+		assertTrue(tracker.snapshot().format().startsWith("Confirmed: 1\n"));
+	}
+
+	public void testFullWindowTimesOutTheOldestPublishes() throws Exception {
+		PublisherConfirmTracker tracker = new PublisherConfirmTracker(2, 20);
+		tracker.register(1);
+		tracker.register(2);
+		// waits for the window, then expires both to make room
+		tracker.register(3);
+		assertEquals(1, tracker.getOutstanding());
+		assertEquals(2, tracker.snapshot().getTimedOut());
+	}
+
+	public void testWaitForTheWindowIsInterruptible() throws Exception {
+		PublisherConfirmTracker tracker = new PublisherConfirmTracker(1, 1000);
+		tracker.register(1);
+		tracker.handleAck(1, false);
+		tracker.register(2);
+		Thread.currentThread().interrupt();
+		try {
+			tracker.register(3);
+			fail("the window is full");
+		} catch (InterruptedException e) {
+			// expected
+		}
+		assertEquals(1, tracker.expireAll());
+		assertEquals(0, tracker.getOutstanding());
+	}
+
+	public void testWindowFullThrowsWhenNothingExpires() throws Exception {
+		PublisherConfirmTracker tracker = new PublisherConfirmTracker(0, 10);
+		try {
+			tracker.register(1);
+			fail("a window of 0 never has room");
+		} catch (TimeoutException e) {
+			// expected
+		}
+	}
+}
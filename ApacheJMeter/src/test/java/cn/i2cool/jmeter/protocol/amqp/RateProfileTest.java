@@ -0,0 +1,94 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class RateProfileTest extends TestCase {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	public void testConstant() {
+		RateProfile profile = RateProfile.parse(100, "constant");
+		assertEquals(0, profile.offsetNanos(0));
+		assertEquals(SECOND / 100, profile.offsetNanos(1));
+		assertEquals(10 * SECOND, profile.offsetNanos(1000));
+		assertEquals(profile.offsetNanos(1000), RateProfile.parse(100, "").offsetNanos(1000));
+		assertEquals(profile.offsetNanos(1000), RateProfile.parse(100, null).offsetNanos(1000));
+	}
+
+	public void testRamp() {
+		// 0 to 100/s in 10 s sends 500 messages, the n-th at sqrt(n / 5) s
+		RateProfile profile = RateProfile.parse(100, "ramp:10");
+		assertEquals(0, profile.offsetNanos(0));
+		assertNear(5 * SECOND, profile.offsetNanos(125));
+		assertNear(10 * SECOND, profile.offsetNanos(500));
+		assertNear(11 * SECOND, profile.offsetNanos(600));
+		for (long message = 1; message < 700; message++) {
+			assertTrue(profile.offsetNanos(message) > profile.offsetNanos(message - 1));
+		}
+	}
+
+	public void testZeroLengthRamp() {
+		RateProfile profile = RateProfile.parse(100, "ramp:0");
+		assertEquals(0, profile.offsetNanos(0));
+		assertEquals(10 * SECOND, profile.offsetNanos(1000));
+	}
+
+	public void testStepToTargetThatIsNotAMultiple() {
+		// 100/s and 200/s for 10 s each, then 250/s
+		RateProfile profile = RateProfile.parse(250, "step:100:10");
+		assertNear(5 * SECOND, profile.offsetNanos(500));
+		assertNear(10 * SECOND, profile.offsetNanos(1000));
+		assertNear(15 * SECOND, profile.offsetNanos(2000));
+		assertNear(20 * SECOND, profile.offsetNanos(3000));
+		assertNear(24 * SECOND, profile.offsetNanos(4000));
+	}
+
+	public void testSpike() {
+		// 100/s for 10 s, 1000/s for 1 s, then 100/s again
+		RateProfile profile = RateProfile.parse(100, "spike:1000:10:1");
+		assertNear(10 * SECOND, profile.offsetNanos(1000));
+		assertNear(10 * SECOND + SECOND / 2, profile.offsetNanos(1500));
+		assertNear(12 * SECOND, profile.offsetNanos(2100));
+	}
+
+	public void testInvalidSpecs() {
+		for (String spec : new String[] { "ramp", "ramp:x", "ramp:-1", "step:0:10", "step:100", "step:100:-1",
+				"spike:1000:10", "spike:-1:10:1", "wave:10" }) {
+			try {
+				RateProfile.parse(100, spec);
+				fail("accepted " + spec);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		try {
+			RateProfile.parse(0, "constant");
+			fail("accepted a zero target rate");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testSchedulerIsSharedPerKey() {
+		RateScheduler.reset();
+		try {
+			RateScheduler scheduler = RateScheduler.get("publisher", 1000, "");
+			assertSame(scheduler, RateScheduler.get("publisher", 1000, ""));
+			assertNotSame(scheduler, RateScheduler.get("publisher", 2000, ""));
+			long first = scheduler.awaitNext();
+			long second = scheduler.awaitNext();
+			assertEquals(TimeUnit.MILLISECONDS.toNanos(1), second - first);
+			assertTrue(System.nanoTime() >= second);
+		} finally {
+			RateScheduler.reset();
+		}
+		assertEquals(0, RateScheduler.get("publisher", 1000, "").getLagMillis());
+		RateScheduler.reset();
+	}
+
+	private static void assertNear(long expected, long actual) {
+		assertTrue("expected " + expected + " but was " + actual, Math.abs(expected - actual) < 1000);
+	}
+}
@@ -0,0 +1,43 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.impl.recovery.AutorecoveringChannel;
+
+/**
+ * A channel without a connection that records the acks and commits sent on
+ * it.
+ */
+class RecordingChannel extends AutorecoveringChannel {
+
+	final List<String> calls = new ArrayList<>();
+	boolean open = true;
+
+	RecordingChannel() {
+		super(null, null);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public Connection getConnection() {
+		return null;
+	}
+
+	@Override
+	public void basicAck(long deliveryTag, boolean multiple) {
+		calls.add("ack " + deliveryTag + (multiple ? " multiple" : ""));
+	}
+
+	@Override
+	public AMQP.Tx.CommitOk txCommit() {
+		calls.add("commit");
+		return null;
+	}
+}
@@ -0,0 +1,40 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class RoutingKeyGeneratorTest extends TestCase {
+
+	public void testShardsAreSplitOverTheThreads() {
+		assertTrue(Arrays.equals(new int[] { 0, 3, 6, 9 }, RoutingKeyGenerator.shardsOf(0, 3, 10)));
+		assertTrue(Arrays.equals(new int[] { 1, 4, 7 }, RoutingKeyGenerator.shardsOf(1, 3, 10)));
+		assertTrue(Arrays.equals(new int[] { 2, 5, 8 }, RoutingKeyGenerator.shardsOf(2, 3, 10)));
+	}
+
+	public void testEveryShardHasExactlyOneThread() {
+		for (int threads = 1; threads <= 8; threads++) {
+			for (int shards = threads; shards <= 20; shards++) {
+				int[] owners = new int[shards];
+				for (int thread = 0; thread < threads; thread++) {
+					for (int shard : RoutingKeyGenerator.shardsOf(thread, threads, shards)) {
+						owners[shard]++;
+					}
+				}
+				for (int shard = 0; shard < shards; shard++) {
+					assertEquals(threads + " threads, " + shards + " shards", 1, owners[shard]);
+				}
+			}
+		}
+	}
+
+	public void testThreadsShareShardsWhenThereAreMoreThreads() {
+		assertTrue(Arrays.equals(new int[] { 0 }, RoutingKeyGenerator.shardsOf(0, 5, 2)));
+		assertTrue(Arrays.equals(new int[] { 1 }, RoutingKeyGenerator.shardsOf(3, 5, 2)));
+		assertTrue(Arrays.equals(new int[] { 0 }, RoutingKeyGenerator.shardsOf(4, 5, 2)));
+	}
+
+	public void testShardName() {
+		assertEquals("orders.0007", RoutingKeyGenerator.shardName("orders.%04d", 7));
+	}
+}
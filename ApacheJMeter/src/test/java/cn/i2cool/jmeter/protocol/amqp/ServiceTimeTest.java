@@ -0,0 +1,42 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class ServiceTimeTest extends TestCase {
+
+	public void testConstant() {
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(5), ServiceTime.parse("5").nextNanos());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(5), ServiceTime.parse("constant:5").nextNanos());
+		assertEquals(0, ServiceTime.parse("").nextNanos());
+		assertEquals(0, ServiceTime.parse(null).nextNanos());
+	}
+
+	public void testUniformStaysInRange() {
+		ServiceTime serviceTime = ServiceTime.parse("uniform:1:2");
+		for (int i = 0; i < 1000; i++) {
+			long nanos = serviceTime.nextNanos();
+			assertTrue(nanos >= TimeUnit.MILLISECONDS.toNanos(1) && nanos <= TimeUnit.MILLISECONDS.toNanos(2));
+		}
+	}
+
+	public void testNormalIsNeverNegative() {
+		ServiceTime serviceTime = ServiceTime.parse("normal:1:10");
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(serviceTime.nextNanos() >= 0);
+		}
+	}
+
+	public void testInvalidSpecs() {
+		for (String spec : new String[] { "-1", "uniform:2:1", "uniform:-1:1", "exponential:-1", "normal:5:-1",
+				"exponential", "gamma:1" }) {
+			try {
+				ServiceTime.parse(spec);
+				fail("accepted " + spec);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import junit.framework.TestCase;
+
+public class TopologyRegistryTest extends TestCase {
+
+	private final List<ShutdownListener> listeners = new ArrayList<>();
+
+	@Override
+	protected void setUp() {
+		TopologyRegistry.reset();
+	}
+
+	@Override
+	protected void tearDown() {
+		TopologyRegistry.reset();
+	}
+
+	public void testDeclaresOncePerTest() throws IOException {
+		AtomicInteger declared = new AtomicInteger();
+		for (int i = 0; i < 3; i++) {
+			TopologyRegistry.declareOnce("/@host:5672/queue/q", null, 1000, declared::incrementAndGet);
+		}
+		assertEquals(1, declared.get());
+		TopologyRegistry.reset();
+		TopologyRegistry.declareOnce("/@host:5672/queue/q", null, 1000, declared::incrementAndGet);
+		assertEquals(2, declared.get());
+	}
+
+	public void testFailedDeclarationIsRetried() throws IOException {
+		try {
+			TopologyRegistry.declareOnce("key", null, 1000, () -> {
+				throw new IOException("refused");
+			});
+			fail("the failure must be rethrown");
+		} catch (IOException e) {
+			assertEquals("refused", e.getMessage());
+		}
+		AtomicInteger declared = new AtomicInteger();
+		TopologyRegistry.declareOnce("key", null, 1000, declared::incrementAndGet);
+		assertEquals(1, declared.get());
+	}
+
+	public void testTransientEntityIsDeclaredAgainAfterItsOwnerShutsDown() throws IOException {
+		AtomicInteger declared = new AtomicInteger();
+		Connection owner = connection();
+		TopologyRegistry.declareOnce("key", owner, 1000, declared::incrementAndGet);
+		TopologyRegistry.declareOnce("key", connection(), 1000, declared::incrementAndGet);
+		assertEquals(1, declared.get());
+
+		shutDown();
+		TopologyRegistry.declareOnce("key", connection(), 1000, declared::incrementAndGet);
+		assertEquals(2, declared.get());
+	}
+
+	public void testDurableEntityOutlivesTheConnection() throws IOException {
+		AtomicInteger declared = new AtomicInteger();
+		TopologyRegistry.declareOnce("key", null, 1000, declared::incrementAndGet);
+		shutDown();
+		TopologyRegistry.declareOnce("key", null, 1000, declared::incrementAndGet);
+		assertEquals(1, declared.get());
+	}
+
+	public void testClaimOnce() {
+		assertTrue(TopologyRegistry.claimOnce("delete"));
+		assertFalse(TopologyRegistry.claimOnce("delete"));
+		TopologyRegistry.reset();
+		assertTrue(TopologyRegistry.claimOnce("delete"));
+	}
+
+	/**
+	 * @return a connection that only keeps its shutdown listeners
+	 */
+	private Connection connection() {
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+				(proxy, method, args) -> {
+					if ("addShutdownListener".equals(method.getName())) {
+						listeners.add((ShutdownListener) args[0]);
+					}
+					return null;
+				});
+	}
+
+	private void shutDown() {
+		ShutdownSignalException cause = new ShutdownSignalException(true, false, null, null);
+		for (ShutdownListener listener : listeners) {
+			listener.shutdownCompleted(cause);
+		}
+		listeners.clear();
+	}
+}
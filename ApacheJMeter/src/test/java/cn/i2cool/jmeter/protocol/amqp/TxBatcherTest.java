@@ -0,0 +1,60 @@
+package cn.i2cool.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+import junit.framework.TestCase;
+
+public class TxBatcherTest extends TestCase {
+
+	private final RecordingChannel channel = new RecordingChannel();
+
+	public void testCommitsEveryBatchAcrossSamples() throws IOException {
+		TxBatcher batcher = new TxBatcher(channel, 5, 0);
+		batcher.startSample();
+		batcher.add(3);
+		assertEquals(0, channel.calls.size());
+		assertEquals(3, batcher.getPending());
+		batcher.startSample();
+		batcher.add(3);
+		assertEquals(1, channel.calls.size());
+		assertEquals(0, batcher.getPending());
+		assertTrue(batcher.format().startsWith("Commits: 1\n"));
+		assertTrue(batcher.format().endsWith("Uncommitted: 0\n"));
+	}
+
+	public void testCommitsOnceTheOldestMessageIsDue() throws Exception {
+		TxBatcher batcher = new TxBatcher(channel, 0, 20);
+		batcher.startSample();
+		batcher.add(1);
+		batcher.commitIfDue();
+		assertEquals(0, channel.calls.size());
+		TimeUnit.MILLISECONDS.sleep(30);
+		batcher.commitIfDue();
+		assertEquals(1, channel.calls.size());
+	}
+
+	public void testNothingToCommit() throws IOException {
+		TxBatcher batcher = new TxBatcher(channel, 0, 0);
+		batcher.startSample();
+		batcher.commit();
+		assertEquals(0, channel.calls.size());
+		assertTrue(batcher.format().startsWith("Commits: 0\n"));
+	}
+
+	public void testOneSubResultPerCommit() throws IOException {
+		TxBatcher batcher = new TxBatcher(channel, 2, 0);
+		batcher.startSample();
+		for (int i = 0; i < 40; i++) {
+			batcher.add(1);
+		}
+		SampleResult parent = new SampleResult();
+		parent.setSampleLabel("publish");
+		batcher.addSubResults(parent);
+		assertEquals(20, parent.getSubResults().length);
+		assertEquals("publish commit", parent.getSubResults()[0].getSampleLabel());
+		assertEquals("2 messages", parent.getSubResults()[19].getResponseMessage());
+	}
+}